@@ -0,0 +1,96 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * logins against a {@link KeycloakStub} with several realms: the user is found in the last realm,
+ * so that the realms are all tried when they are tried in order.
+ * The realm affinity and the credential caches are disabled: each login calls the stub.
+ *
+ * @since   1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class AuthenticationBenchmark {
+
+    private static final Log logger = LogFactory.getLog(AuthenticationBenchmark.class);
+
+    @Param({"3"})
+    public int realms;
+
+    @Param({"1000"})
+    public int users;
+
+    @Param({"100"})
+    public int groups;
+
+    /**
+     * milliseconds each request to the stub waits before being answered
+     */
+    @Param({"0", "5"})
+    public long latency;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+    private String realm;
+    private String username;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        List<KeycloakStubRealm> stubRealms = new ArrayList<>();
+        List<String> realmNames = new ArrayList<>();
+        for (int i = 0; i < realms; i++) {
+            String name = "realm" + i;
+            stubRealms.add(KeycloakStubRealm.generate(name, users, groups, 3, i));
+            realmNames.add(name);
+        }
+        stub = new KeycloakStub(stubRealms, latency);
+        fixture = new KeycloakStubFixture(stub, realmNames);
+        fixture.getConfig().setParallelRealmsAuthentication(parallel);
+        fixture.start();
+        KeycloakStubRealm lastRealm = stubRealms.get(stubRealms.size() - 1);
+        realm = lastRealm.getName();
+        username = lastRealm.getUsers().get(users / 2).getUsername();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public String realmsAuthenticate() {
+        return fixture.getAuthenticationComponent().realmsAuthenticate(username, KeycloakStub.PASSWORD.toCharArray());
+    }
+
+    @Benchmark
+    public String realmsAuthenticateRejected() {
+        return fixture.getAuthenticationComponent().realmsAuthenticate(username, "wrong".toCharArray());
+    }
+
+    /**
+     * the instance created at login, read as alfresco does when the person must be created or updated
+     */
+    @Benchmark
+    public void loginInstance(Blackhole blackhole) {
+        KeycloakThreadInstance instance = fixture.newLoginInstance(realm, username);
+        blackhole.consume(instance.getUsers());
+        blackhole.consume(instance.getGroups());
+        instance.dispose(logger);
+    }
+}
@@ -0,0 +1,108 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.Closeable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * measures the heap allocated by all the threads, and the peak heap used, while it is open.
+ * Both are derived from the heap used before and after each garbage collection, so they are approximate
+ * with collectors that run concurrently with the application.
+ *
+ * @since   1.0
+ */
+final class HeapUsageMonitor implements NotificationListener, Closeable {
+
+    private final Set<String> heapPools = new HashSet<>();
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    /**
+     * heap used after the last collection, or when the monitor was opened
+     */
+    private long usedAfterCollection;
+    private long allocated;
+    private long peak;
+
+    HeapUsageMonitor() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool.getName());
+        }
+        usedAfterCollection = usedHeap();
+        peak = usedAfterCollection;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if(collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(this, null, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    /**
+     * @return bytes of heap currently used
+     */
+    static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public synchronized void handleNotification(Notification notification, Object handback) {
+        if(!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+            return;
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        long before = sum(info.getGcInfo().getMemoryUsageBeforeGc());
+        long after = sum(info.getGcInfo().getMemoryUsageAfterGc());
+        allocated += Math.max(0, before - usedAfterCollection);
+        peak = Math.max(peak, before);
+        usedAfterCollection = after;
+    }
+
+    private long sum(Map<String, MemoryUsage> usages) {
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> usage : usages.entrySet()) {
+            if(heapPools.contains(usage.getKey()))
+                used += usage.getValue().getUsed();
+        }
+        return used;
+    }
+
+    /**
+     * @return bytes allocated since the monitor was opened
+     */
+    synchronized long getAllocatedBytes() {
+        return allocated + Math.max(0, usedHeap() - usedAfterCollection);
+    }
+
+    /**
+     * @return highest number of bytes of heap used since the monitor was opened
+     */
+    synchronized long getPeakBytes() {
+        return Math.max(peak, usedHeap());
+    }
+
+    @Override
+    public void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                // already removed
+            }
+        }
+    }
+}
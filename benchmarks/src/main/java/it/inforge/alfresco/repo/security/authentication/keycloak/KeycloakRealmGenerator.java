@@ -0,0 +1,180 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.*;
+
+/**
+ * generates realms shaped like a company directory, to load the connector as a large keycloak would.
+ * <p>
+ * Groups form a forest nested up to the configured depth. Memberships are skewed: a few groups hold
+ * most of the users, and an all-staff group may contain all of them. Users carry directory attributes,
+ * the email contributor flag and email aliases. The same seed generates the same realm.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakRealmGenerator {
+
+    public static final String ALL_STAFF_GROUP = "all-staff";
+
+    private static final String[] GROUP_PREFIXES = {"sales", "engineering", "support", "finance", "legal",
+            "marketing", "operations", "research", "hr", "procurement"};
+    private static final String[] FIRST_NAMES = {"Anna", "Marco", "Giulia", "Luca", "Sara", "Paolo", "Elena", "Davide",
+            "Chiara", "Andrea", "Laura", "Matteo"};
+    private static final String[] LAST_NAMES = {"Rossi", "Bianchi", "Romano", "Colombo", "Ricci", "Marino", "Greco",
+            "Bruno", "Gallo", "Conti", "Costa", "Giordano"};
+    private static final String[] USER_ATTRIBUTES = {"department", "title", "phone", "employeeNumber", "location", "costCenter"};
+
+    private int users = 100000;
+    private int groups = 20000;
+    /**
+     * maximum nesting of the groups, 1 for top level groups only
+     */
+    private int depth = 8;
+    private int topGroups = 20;
+    /**
+     * average number of groups a user is directly member of, the all-staff group excluded
+     */
+    private int membershipsPerUser = 5;
+    /**
+     * the higher, the more the memberships concentrate on the first groups; 1 spreads them evenly
+     */
+    private double membershipSkew = 3;
+    private boolean allStaffGroup = true;
+    /**
+     * number of directory attributes of each user, up to six
+     */
+    private int userAttributes = 4;
+    private double userEmailContributorRatio = 0.01;
+    private double groupEmailContributorRatio = 0.02;
+    private double emailAliasRatio = 0.1;
+    private long seed = 1;
+
+    /**
+     * @param name realm name
+     * @return a new realm
+     */
+    public KeycloakStubRealm generate(String name) {
+        Random random = new Random(seed ^ name.hashCode());
+        KeycloakStubRealm realm = new KeycloakStubRealm(name);
+        List<GroupRepresentation> groupList = generateGroups(realm, random);
+        GroupRepresentation allStaff = allStaffGroup ? realm.addGroup(newId(random), ALL_STAFF_GROUP, null, new HashMap<>()) : null;
+        for (int i = 0; i < users; i++) {
+            UserRepresentation user = generateUser(realm, random, i);
+            if(allStaff != null)
+                realm.addMember(allStaff, user);
+            if(groupList.isEmpty())
+                continue;
+            int count = Math.min(groupList.size(), 1 + random.nextInt(Math.max(1, 2 * membershipsPerUser - 1)));
+            Set<GroupRepresentation> memberships = new HashSet<>();
+            while(memberships.size() < count) {
+                int index = (int) (groupList.size() * Math.pow(random.nextDouble(), membershipSkew));
+                memberships.add(groupList.get(Math.min(index, groupList.size() - 1)));
+            }
+            for (GroupRepresentation group : memberships) {
+                realm.addMember(group, user);
+            }
+        }
+        return realm;
+    }
+
+    /**
+     * adds the groups, each below a random group not yet at the maximum depth
+     *
+     * @return the groups, in creation order
+     */
+    private List<GroupRepresentation> generateGroups(KeycloakStubRealm realm, Random random) {
+        int count = Math.max(0, allStaffGroup ? groups - 1 : groups);
+        List<GroupRepresentation> groupList = new ArrayList<>(count);
+        List<GroupRepresentation> parents = new ArrayList<>();
+        Map<GroupRepresentation, Integer> levels = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            GroupRepresentation parent = i < topGroups || parents.isEmpty() ? null : parents.get(random.nextInt(parents.size()));
+            Map<String, List<String>> attributes = new HashMap<>();
+            if(random.nextDouble() < groupEmailContributorRatio)
+                attributes.put(KeycloakStubRealm.EMAIL_CONTRIBUTOR_ATTRIBUTE, Collections.singletonList("true"));
+            String groupName = String.format("%s-%05d", GROUP_PREFIXES[i % GROUP_PREFIXES.length], i);
+            GroupRepresentation group = realm.addGroup(newId(random), groupName, parent, attributes);
+            int level = parent == null ? 1 : levels.get(parent) + 1;
+            levels.put(group, level);
+            if(level < depth)
+                parents.add(group);
+            groupList.add(group);
+        }
+        return groupList;
+    }
+
+    private UserRepresentation generateUser(KeycloakStubRealm realm, Random random, int index) {
+        String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+        String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        String username = String.format("u%07d.%s", index, lastName.toLowerCase(Locale.ROOT));
+        Map<String, List<String>> attributes = new HashMap<>();
+        for (int i = 0; i < Math.min(userAttributes, USER_ATTRIBUTES.length); i++) {
+            attributes.put(USER_ATTRIBUTES[i], Collections.singletonList(String.format("%s-%d", USER_ATTRIBUTES[i], random.nextInt(1000))));
+        }
+        if(random.nextDouble() < userEmailContributorRatio)
+            attributes.put(KeycloakStubRealm.EMAIL_CONTRIBUTOR_ATTRIBUTE, Collections.singletonList("true"));
+        if(random.nextDouble() < emailAliasRatio) {
+            List<String> aliases = new ArrayList<>();
+            for (int i = 0, count = 1 + random.nextInt(3); i < count; i++) {
+                aliases.add(String.format("%s.%d@alias.example.com", username, i));
+            }
+            attributes.put(KeycloakStubRealm.EMAIL_ALIAS_ATTRIBUTE, aliases);
+        }
+        return realm.addUser(newId(random), username, String.format("%s@example.com", username), firstName, lastName, attributes);
+    }
+
+    private static String newId(Random random) {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    public void setUsers(int users) {
+        this.users = users;
+    }
+
+    public void setGroups(int groups) {
+        this.groups = groups;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public void setTopGroups(int topGroups) {
+        this.topGroups = topGroups;
+    }
+
+    public void setMembershipsPerUser(int membershipsPerUser) {
+        this.membershipsPerUser = membershipsPerUser;
+    }
+
+    public void setMembershipSkew(double membershipSkew) {
+        this.membershipSkew = membershipSkew;
+    }
+
+    public void setAllStaffGroup(boolean allStaffGroup) {
+        this.allStaffGroup = allStaffGroup;
+    }
+
+    public void setUserAttributes(int userAttributes) {
+        this.userAttributes = userAttributes;
+    }
+
+    public void setUserEmailContributorRatio(double userEmailContributorRatio) {
+        this.userEmailContributorRatio = userEmailContributorRatio;
+    }
+
+    public void setGroupEmailContributorRatio(double groupEmailContributorRatio) {
+        this.groupEmailContributorRatio = groupEmailContributorRatio;
+    }
+
+    public void setEmailAliasRatio(double emailAliasRatio) {
+        this.emailAliasRatio = emailAliasRatio;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+}
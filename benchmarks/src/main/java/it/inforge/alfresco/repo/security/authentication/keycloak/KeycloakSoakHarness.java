@@ -0,0 +1,168 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import it.inforge.alfresco.repo.security.sync.keycloak.KeycloakUserRegistry;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.sync.NodeDescription;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * runs repeated full synchronizations of generated realms through the {@link KeycloakUserRegistry},
+ * as the synchronization job does, against a {@link KeycloakStub}.
+ * <p>
+ * Options are given as <code>--name=value</code>: realms, users, groups, depth, memberships, skew, allStaff,
+ * seed, latency (milliseconds per request), parallelism, batchSize, adaptive, rateLimit (admin requests per second),
+ * maxConcurrentRequests, runs and changes (fraction of users whose email changes before each run after the first). Each run reports its wall time, the persons and groups
+ * returned to alfresco, the requests received by the stub, the peak heap and the allocation rate.
+ * The authorities returned by a run are the authorities alfresco holds in the following runs.
+ * </p>
+ *
+ * @since   1.0
+ */
+public final class KeycloakSoakHarness {
+
+    private static final long MB = 1024 * 1024;
+
+    private KeycloakSoakHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if(!arg.startsWith("--") || equals < 0)
+                throw new IllegalArgumentException(String.format("Invalid option \"%s\", expected --name=value", arg));
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        int realmCount = Integer.parseInt(options.getOrDefault("realms", "1"));
+        long latency = Long.parseLong(options.getOrDefault("latency", "0"));
+        int runs = Integer.parseInt(options.getOrDefault("runs", "3"));
+        double changes = Double.parseDouble(options.getOrDefault("changes", "0.01"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+
+        KeycloakRealmGenerator generator = new KeycloakRealmGenerator();
+        generator.setUsers(Integer.parseInt(options.getOrDefault("users", "100000")));
+        generator.setGroups(Integer.parseInt(options.getOrDefault("groups", "20000")));
+        generator.setDepth(Integer.parseInt(options.getOrDefault("depth", "8")));
+        generator.setMembershipsPerUser(Integer.parseInt(options.getOrDefault("memberships", "5")));
+        generator.setMembershipSkew(Double.parseDouble(options.getOrDefault("skew", "3")));
+        generator.setAllStaffGroup(Boolean.parseBoolean(options.getOrDefault("allStaff", "true")));
+        generator.setSeed(seed);
+
+        long start = System.nanoTime();
+        List<KeycloakStubRealm> realms = new ArrayList<>();
+        List<String> realmNames = new ArrayList<>();
+        for (int i = 0; i < realmCount; i++) {
+            KeycloakStubRealm realm = generator.generate("realm" + i);
+            realms.add(realm);
+            realmNames.add(realm.getName());
+        }
+        System.gc();
+        long baseline = HeapUsageMonitor.usedHeap();
+        System.out.println(String.format("Generated %d realms of %d users and %d groups in %d ms, %d MB of heap",
+                realmCount, realms.get(0).getUsers().size(), realms.get(0).getGroups().size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), baseline / MB));
+
+        Random random = new Random(seed);
+        try (KeycloakStub stub = new KeycloakStub(realms, latency);
+             KeycloakStubFixture fixture = new KeycloakStubFixture(stub, realmNames)) {
+            KeycloakConfig config = fixture.getConfig();
+            config.setSynchronizationParallelism(Integer.parseInt(options.getOrDefault("parallelism",
+                    String.valueOf(config.getSynchronizationParallelism()))));
+            config.setUserListingBatchSize(Integer.parseInt(options.getOrDefault("batchSize",
+                    String.valueOf(config.getUserListingBatchSize()))));
+            config.setUserListingAdaptive(Boolean.parseBoolean(options.getOrDefault("adaptive",
+                    String.valueOf(config.isUserListingAdaptive()))));
+            config.setAdminRateLimit(Double.parseDouble(options.getOrDefault("rateLimit",
+                    String.valueOf(config.getAdminRateLimit()))));
+            config.setAdminMaxConcurrentRequests(Integer.parseInt(options.getOrDefault("maxConcurrentRequests",
+                    String.valueOf(config.getAdminMaxConcurrentRequests()))));
+            fixture.start();
+            KeycloakUserRegistry userRegistry = fixture.newUserRegistry();
+            for (int run = 1; run <= runs; run++) {
+                if(run > 1)
+                    changeEmails(realms, changes, random);
+                stub.resetRequestCount();
+                synchronize(run, userRegistry, fixture.getRepository(), stub, baseline);
+            }
+            System.out.println("Synchronization phases:");
+            for (Map.Entry<String, String> timer : config.getMetrics().getTimers().entrySet()) {
+                if(timer.getKey().startsWith(KeycloakMetrics.SYNC_PHASE))
+                    System.out.println(String.format("  %s %s", timer.getKey(), timer.getValue()));
+            }
+            System.out.println("Admin request waits:");
+            for (Map.Entry<String, String> timer : config.getMetrics().getTimers().entrySet()) {
+                if(timer.getKey().startsWith(KeycloakMetrics.REST_WAIT))
+                    System.out.println(String.format("  %s %s", timer.getKey(), timer.getValue()));
+            }
+            System.out.println("Page sizes:");
+            for (Map.Entry<String, Double> gauge : config.getMetrics().getGauges().entrySet()) {
+                if(gauge.getKey().startsWith(KeycloakMetrics.SYNC_PAGE_SIZE) || gauge.getKey().startsWith(KeycloakMetrics.SYNC_PAGE_THROUGHPUT))
+                    System.out.println(String.format("  %s %.0f", gauge.getKey(), gauge.getValue()));
+            }
+        }
+    }
+
+    /**
+     * runs a full synchronization, reading the registry as alfresco does, and reports it
+     */
+    private static void synchronize(int run, KeycloakUserRegistry userRegistry, KeycloakStubRepository repository,
+                                    KeycloakStub stub, long baseline) {
+        int groups = 0;
+        int persons = 0;
+        int groupNames = 0;
+        int personNames = 0;
+        long nanos;
+        Throwable error = null;
+        Date start = new Date();
+        try (HeapUsageMonitor monitor = new HeapUsageMonitor()) {
+            long startNanos = System.nanoTime();
+            try {
+                userRegistry.pushThreadLocalInstance();
+                for (NodeDescription group : userRegistry.getGroups(null)) {
+                    repository.importGroup((String) group.getProperties().get(ContentModel.PROP_AUTHORITY_NAME), group.getChildAssociations());
+                    groups++;
+                }
+                for (NodeDescription person : userRegistry.getPersons(null)) {
+                    repository.importPerson((String) person.getProperties().get(ContentModel.PROP_USERNAME));
+                    persons++;
+                }
+                groupNames = userRegistry.getGroupNames().size();
+                for (String ignored : userRegistry.getPersonNames()) {
+                    personNames++;
+                }
+                userRegistry.commitThreadLocalInstance();
+            } catch (RuntimeException e) {
+                error = e;
+                throw e;
+            } finally {
+                userRegistry.clearThreadLocalInstance();
+                nanos = System.nanoTime() - startNanos;
+                userRegistry.synchronizationFinished(start, nanos, error);
+            }
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+            long allocated = monitor.getAllocatedBytes();
+            long peak = monitor.getPeakBytes();
+            System.gc();
+            System.out.println(String.format("Run %d: %d ms, %d groups and %d persons returned of %d and %d, %d requests, "
+                            + "peak heap %d MB (%d MB above the realms), %d MB retained, allocated %d MB (%d MB/s)",
+                    run, millis, groups, persons, groupNames, personNames, stub.getRequestCount(),
+                    peak / MB, Math.max(0, peak - baseline) / MB, Math.max(0, HeapUsageMonitor.usedHeap() - baseline) / MB,
+                    allocated / MB, allocated / MB * 1000 / millis));
+        }
+    }
+
+    /**
+     * changes the email of a random fraction of the users
+     */
+    private static void changeEmails(List<KeycloakStubRealm> realms, double fraction, Random random) {
+        for (KeycloakStubRealm realm : realms) {
+            for (UserRepresentation user : realm.getUsers()) {
+                if(random.nextDouble() < fraction)
+                    user.setEmail(String.format("%s.%d@example.com", user.getUsername(), random.nextInt(1000)));
+            }
+        }
+    }
+}
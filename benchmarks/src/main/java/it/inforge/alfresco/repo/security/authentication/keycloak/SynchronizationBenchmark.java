@@ -0,0 +1,109 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.alfresco.repo.security.sync.NodeDescription;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * full synchronizations against a {@link KeycloakStub}: the initialization of the synchronization instance,
+ * that loads groups and memberships, alone and followed by the listing of the persons.
+ * Each run is timed once, as a synchronization is too long to be repeated within an iteration.
+ *
+ * @since   1.0
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SynchronizationBenchmark {
+
+    private static final Log logger = LogFactory.getLog(SynchronizationBenchmark.class);
+
+    @Param({"1"})
+    public int realms;
+
+    @Param({"1000", "10000"})
+    public int users;
+
+    @Param({"200"})
+    public int groups;
+
+    @Param({"3"})
+    public int membershipsPerUser;
+
+    /**
+     * milliseconds each request to the stub waits before being answered
+     */
+    @Param({"0", "2"})
+    public long latency;
+
+    @Param({"1", "8"})
+    public int parallelism;
+
+    @Param({"true"})
+    public boolean partialExport;
+
+    /**
+     * adapts the page size to the stub's answers, or reads pages of the initial size
+     */
+    @Param({"false", "true"})
+    public boolean adaptive;
+
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        List<KeycloakStubRealm> stubRealms = new ArrayList<>();
+        List<String> realmNames = new ArrayList<>();
+        for (int i = 0; i < realms; i++) {
+            String name = "realm" + i;
+            stubRealms.add(KeycloakStubRealm.generate(name, users, groups, membershipsPerUser, i));
+            realmNames.add(name);
+        }
+        stub = new KeycloakStub(stubRealms, latency);
+        fixture = new KeycloakStubFixture(stub, realmNames);
+        fixture.getConfig().setSynchronizationParallelism(parallelism);
+        fixture.getConfig().setGroupPartialExport(partialExport);
+        fixture.getConfig().setUserListingAdaptive(adaptive);
+        fixture.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public void init(Blackhole blackhole) {
+        KeycloakThreadInstance instance = fixture.newSynchronizationInstance();
+        blackhole.consume(instance.getGroups());
+        instance.dispose(logger);
+    }
+
+    /**
+     * the groups, persons and person names read as alfresco reads them in a full synchronization
+     */
+    @Benchmark
+    public void fullSynchronization(Blackhole blackhole) {
+        KeycloakThreadInstance instance = fixture.newSynchronizationInstance();
+        blackhole.consume(instance.getGroups());
+        for (NodeDescription user : instance.getUsers()) {
+            blackhole.consume(user);
+        }
+        blackhole.consume(instance.getGroupNames());
+        for (String personName : instance.getPersonNames()) {
+            blackhole.consume(personName);
+        }
+        instance.dispose(logger);
+    }
+}
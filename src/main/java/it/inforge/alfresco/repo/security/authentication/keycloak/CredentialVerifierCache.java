@@ -0,0 +1,103 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * bounded cache of the outcome of credentials recently checked against a keycloak realm, keyed by realm and user.
+ * <p>
+ * Passwords are never stored: each entry keeps a random salt and the PBKDF2 hash of the password,
+ * so that a later attempt with the same password can be recognized without calling keycloak.
+ * Entries expire after a time to live and can be invalidated explicitly.
+ * </p>
+ *
+ * @since   1.0
+ */
+final class CredentialVerifierCache {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 256;
+
+    private final ExpiringLruCache<String, Verifier> verifiers;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param maxSize maximum number of cached verifiers
+     * @param timeToLive seconds a verifier is kept
+     * @param iterations PBKDF2 iterations used to hash the passwords
+     */
+    CredentialVerifierCache(int maxSize, long timeToLive, int iterations) {
+        this.verifiers = new ExpiringLruCache<>(maxSize, timeToLive);
+        this.iterations = iterations;
+    }
+
+    /**
+     * @param realm keycloak realm
+     * @param userName the username of the authenticating user.
+     * @param password the password of the authenticating user.
+     * @return true if the same credentials were cached for the realm and are not expired
+     */
+    boolean contains(String realm, String userName, char[] password) {
+        Verifier verifier = verifiers.get(getKey(realm, userName));
+        return verifier != null && MessageDigest.isEqual(verifier.hash, hash(password, verifier.salt));
+    }
+
+    /**
+     * caches the verifier of the credentials, replacing any verifier of the user for the realm
+     *
+     * @param realm keycloak realm
+     * @param userName the username of the authenticating user.
+     * @param password the password of the authenticating user.
+     */
+    void put(String realm, String userName, char[] password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        verifiers.put(getKey(realm, userName), new Verifier(salt, hash(password, salt)));
+    }
+
+    /**
+     * @param realm keycloak realm
+     * @param userName the user whose verifier for the realm is removed
+     */
+    void invalidate(String realm, String userName) {
+        verifiers.remove(getKey(realm, userName));
+    }
+
+    /**
+     * removes all the verifiers
+     */
+    void invalidateAll() {
+        verifiers.clear();
+    }
+
+    private String getKey(String realm, String userName) {
+        return realm + '\u0000' + userName.toLowerCase(Locale.ROOT);
+    }
+
+    private byte[] hash(char[] password, byte[] salt) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(String.format("%s is not available", ALGORITHM), e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static class Verifier {
+        final byte[] salt;
+        final byte[] hash;
+
+        Verifier(byte[] salt, byte[] hash) {
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+}
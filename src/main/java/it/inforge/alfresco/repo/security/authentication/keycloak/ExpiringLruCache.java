@@ -0,0 +1,71 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * thread safe map of at most maxSize entries, each one expiring timeToLive seconds after it was put.
+ * When the map is full the least recently used entry is evicted.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ * @since   1.0
+ */
+final class ExpiringLruCache<K, V> {
+
+    private final int maxSize;
+    private final long timeToLiveNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    ExpiringLruCache(int maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLiveNanos = TimeUnit.SECONDS.toNanos(timeToLive);
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > ExpiringLruCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key
+     * @return the value of the key, null if missing or expired
+     */
+    synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if(entry == null)
+            return null;
+        if(System.nanoTime() - entry.created > timeToLiveNanos) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value));
+    }
+
+    synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long created = System.nanoTime();
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+}
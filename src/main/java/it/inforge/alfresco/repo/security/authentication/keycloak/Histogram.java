@@ -0,0 +1,81 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * thread safe histogram of long samples over fixed bucket bounds.
+ * Percentiles are approximated with the upper bound of the bucket they fall in.
+ *
+ * @since   1.0
+ */
+final class Histogram {
+
+    /**
+     * bucket bounds of the durations, in milliseconds
+     */
+    static final long[] MILLIS_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+    /**
+     * bucket bounds of small counts
+     */
+    static final long[] COUNT_BOUNDS = {0, 1, 2, 3, 4, 5, 10, 20, 50, 100, 1000};
+
+    private final long[] bounds;
+    /**
+     * samples of each bucket, the last one counts the samples above the greatest bound
+     */
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    Histogram(long[] bounds) {
+        this.bounds = bounds;
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    void record(long value) {
+        int bucket = 0;
+        while(bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket of the percentile, the maximum if above the greatest bound
+     */
+    long getPercentile(double percentile) {
+        long total = count.get();
+        if(total == 0)
+            return 0;
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += buckets.get(i);
+            if(seen >= rank)
+                return Math.min(bounds[i], max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * @return count, mean, median, 95th and 99th percentiles and maximum of the samples
+     */
+    @Override
+    public String toString() {
+        long total = count.get();
+        if(total == 0)
+            return "count=0";
+        return String.format("count=%d mean=%d p50=%d p95=%d p99=%d max=%d",
+                total, sum.get() / total, getPercentile(50), getPercentile(95), getPercentile(99), max.get());
+    }
+}
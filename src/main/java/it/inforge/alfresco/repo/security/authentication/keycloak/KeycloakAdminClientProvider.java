@@ -0,0 +1,105 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.KeycloakBuilder;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * provides the keycloak admin client shared by all the {@link KeycloakThreadInstance}s of the subsystem.
+ * <p>
+ * The client is built on first use over a pooled connection manager sized by
+ * {@link KeycloakConfig#getAdminConnectionPoolSize()} and can be used by many threads at once.
+ * Its service-account token is reused and refreshed {@link KeycloakConfig#getAdminTokenMinValidity()}
+ * seconds before it expires. Its requests are rate limited, retried and suspended while keycloak fails
+ * by a {@link KeycloakAdminEngine}. The client is closed when the subsystem is stopped.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakAdminClientProvider implements DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    /**
+     * connector's configuration
+     */
+    private KeycloakConfig config;
+    /**
+     * shared keycloak admin client, built on first use
+     */
+    private volatile Keycloak keycloak;
+
+    /**
+     * @return the shared keycloak admin client
+     */
+    public Keycloak getKeycloak() {
+        Keycloak result = keycloak;
+        if(result == null) {
+            synchronized (this) {
+                result = keycloak;
+                if(result == null) {
+                    result = build();
+                    keycloak = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Keycloak build() {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Building keycloak admin client for \"%s\" with a pool of %d connections",
+                    config.getUrl(), config.getAdminConnectionPoolSize()));
+        }
+        ResteasyClientBuilder builder = new ResteasyClientBuilder()
+                .connectionPoolSize(config.getAdminConnectionPoolSize())
+                .maxPooledPerRoute(config.getAdminConnectionPoolSize())
+                .connectTimeout(config.getAdminConnectionTimeout(), TimeUnit.MILLISECONDS)
+                .readTimeout(config.getAdminSocketTimeout(), TimeUnit.MILLISECONDS)
+                .register(new KeycloakMetricsFilter(config.getMetrics()));
+        ClientHttpEngine engine = new KeycloakAdminEngine.Builder(config).resteasyClientBuilder(builder).build();
+        ResteasyClient resteasyClient = builder.httpEngine(engine).build();
+        Keycloak keycloak = KeycloakBuilder.builder()
+                .serverUrl(config.getUrl())
+                .realm("master")
+                .clientId(config.getAdminClient())
+                .clientSecret(config.getAdminSecret())
+                .grantType(OAuth2Constants.CLIENT_CREDENTIALS)
+                .resteasyClient(resteasyClient)
+                .build();
+        keycloak.tokenManager().setMinTokenValidity(config.getAdminTokenMinValidity());
+        return keycloak;
+    }
+
+    /**
+     * closes the shared admin client, if it was built
+     */
+    @Override
+    public synchronized void destroy() {
+        if(keycloak != null) {
+            try {
+                keycloak.close();
+            } catch (Exception e) {
+                logger.error("Error closing keycloak admin client", e);
+            }
+            keycloak = null;
+        }
+    }
+
+    /**
+     * Set the configuration used to build the admin client
+     *
+     * @param config the connector's configuration
+     */
+    public void setConfig(KeycloakConfig config) {
+        this.config = config;
+    }
+}
@@ -0,0 +1,383 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngineBuilder43;
+import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient43Engine;
+import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
+import org.jboss.resteasy.client.jaxrs.internal.ClientResponse;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.ProcessingException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * sends the requests of the shared keycloak admin client, protecting keycloak from the synchronizations.
+ * <p>
+ * Each request, whichever the caller, waits for a token of a bucket refilled with {@link KeycloakConfig#getAdminRateLimit()}
+ * tokens per second and holding up to {@link KeycloakConfig#getAdminRateBurst()} of them, then for one of the
+ * {@link KeycloakConfig#getAdminMaxConcurrentRequests()} slots of the requests waiting for keycloak's answer.
+ * A request still waiting after {@link KeycloakConfig#getAdminQueueTimeout()} milliseconds fails, giving its token back.
+ * </p>
+ * <p>
+ * A read (GET or HEAD) that failed to connect, timed out, or was answered 429 or 5xx is sent again up to
+ * {@link KeycloakConfig#getAdminRetries()} times, after a delay doubling from {@link KeycloakConfig#getAdminRetryDelay()}
+ * up to {@link KeycloakConfig#getAdminRetryMaxDelay()} milliseconds, of which a random half is waited,
+ * so that the threads failed together do not retry together, and at least the delay of the Retry-After header.
+ * Other requests are sent once.
+ * </p>
+ * <p>
+ * After {@link KeycloakConfig#getAdminCircuitFailures()} failures in a row the circuit opens: the requests fail
+ * without being sent for {@link KeycloakConfig#getAdminCircuitResetTimeout()} milliseconds, then a single request
+ * is sent, whose success closes the circuit and whose failure opens it again.
+ * </p>
+ * <p>
+ * The engine is built by a {@link Builder} from the settings of a resteasy client builder: resteasy expects
+ * the engine of its clients to be its own, so it extends it instead of wrapping it.
+ * </p>
+ *
+ * @since   1.0
+ */
+final class KeycloakAdminEngine extends ApacheHttpClient43Engine {
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    /**
+     * a single request is sent to check whether keycloak has recovered
+     */
+    private static final int HALF_OPEN = 2;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final KeycloakMetrics metrics;
+    /**
+     * null if the requests are not rate limited
+     */
+    private final TokenBucket tokenBucket;
+    /**
+     * null if the concurrent requests are not limited
+     */
+    private final Semaphore slots;
+    private final long queueTimeout;
+    private final int retries;
+    private final long retryDelay;
+    private final long retryMaxDelay;
+    /**
+     * failures in a row opening the circuit, 0 if it never opens
+     */
+    private final int circuitFailures;
+    private final long circuitResetTimeout;
+
+    private int circuitState = CLOSED;
+    private int failures;
+    private long openedAt;
+
+    /**
+     * @param httpClient sends the requests, closed with the engine
+     * @param config the rate limit, concurrency, retries and circuit breaker of the admin client
+     */
+    private KeycloakAdminEngine(HttpClient httpClient, KeycloakConfig config) {
+        super(httpClient, true);
+        this.metrics = config.getMetrics();
+        this.tokenBucket = config.getAdminRateLimit() > 0
+                ? new TokenBucket(config.getAdminRateLimit(), Math.max(1, config.getAdminRateBurst())) : null;
+        this.slots = config.getAdminMaxConcurrentRequests() > 0 ? new Semaphore(config.getAdminMaxConcurrentRequests(), true) : null;
+        this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getAdminQueueTimeout()));
+        this.retries = Math.max(0, config.getAdminRetries());
+        this.retryDelay = Math.max(1, config.getAdminRetryDelay());
+        this.retryMaxDelay = Math.max(retryDelay, config.getAdminRetryMaxDelay());
+        this.circuitFailures = Math.max(0, config.getAdminCircuitFailures());
+        this.circuitResetTimeout = TimeUnit.MILLISECONDS.toNanos(config.getAdminCircuitResetTimeout());
+    }
+
+    @Override
+    public ClientResponse invoke(ClientInvocation request) {
+        String endpoint = KeycloakMetrics.endpoint(request.getMethod(), request.getUri().getPath());
+        boolean read = "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+        for (int attempt = 0; ; attempt++) {
+            boolean probe = allowRequest(endpoint);
+            ClientResponse response = null;
+            ProcessingException failure = null;
+            try {
+                response = send(request, endpoint);
+            } catch (Rejection e) {
+                // not sent: keycloak did not fail
+                if(probe)
+                    reopen();
+                throw e;
+            } catch (ProcessingException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                if(probe)
+                    recordResult(true);
+                throw e;
+            }
+            boolean failed = failure != null || isFailure(response.getStatus());
+            recordResult(!failed);
+            if(!failed || !read || attempt >= retries || isOpen() || !retry(endpoint, attempt, response)) {
+                if(failure != null)
+                    throw failure;
+                return response;
+            }
+            if(response != null)
+                response.close();
+        }
+    }
+
+    /**
+     * sends a request once a token and a slot are available
+     */
+    private ClientResponse send(ClientInvocation request, String endpoint) {
+        long start = System.nanoTime();
+        if(tokenBucket != null) {
+            long wait = tokenBucket.reserve(queueTimeout);
+            if(wait < 0)
+                throw reject(endpoint, "rate", "Keycloak admin request rate limit exceeded");
+            if(wait > 0 && !sleep(wait)) {
+                tokenBucket.refund();
+                throw reject(endpoint, "interrupted", "Interrupted waiting for the keycloak admin request rate limit");
+            }
+        }
+        if(slots != null) {
+            boolean acquired = false;
+            try {
+                acquired = slots.tryAcquire(Math.max(0, queueTimeout - (System.nanoTime() - start)), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if(!acquired) {
+                // not sent: the token is left to the next request
+                if(tokenBucket != null)
+                    tokenBucket.refund();
+                if(Thread.currentThread().isInterrupted())
+                    throw reject(endpoint, "interrupted", "Interrupted waiting for a keycloak admin request slot");
+                throw reject(endpoint, "concurrency", "Too many concurrent keycloak admin requests");
+            }
+        }
+        long sent = System.nanoTime();
+        try {
+            if(metrics != null && (tokenBucket != null || slots != null))
+                metrics.timer(KeycloakMetrics.REST_WAIT, KeycloakMetrics.tags("endpoint", endpoint), sent - start);
+            return super.invoke(request);
+        } catch (ProcessingException e) {
+            // no response, as on a connect or read timeout: the metrics filter does not see the request
+            if(metrics != null)
+                metrics.request(endpoint, 0, System.nanoTime() - sent);
+            throw e;
+        } finally {
+            if(slots != null)
+                slots.release();
+        }
+    }
+
+    /**
+     * waits before sending a read again
+     *
+     * @param attempt attempts already failed, minus one
+     * @param response the failed response, null if no response was received
+     * @return false if the delay exceeds the maximum delay or the thread was interrupted
+     */
+    private boolean retry(String endpoint, int attempt, ClientResponse response) {
+        long delay = Math.min(retryMaxDelay, retryDelay << Math.min(attempt, 30));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        long retryAfter = response != null ? getRetryAfter(response) : 0;
+        if(retryAfter > retryMaxDelay)
+            return false;
+        delay = Math.max(delay, retryAfter);
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("Retrying keycloak admin request %s in %d ms (%s)", endpoint, delay,
+                    response != null ? "status " + response.getStatus() : "no response"));
+        if(metrics != null)
+            metrics.counter(KeycloakMetrics.REST_RETRIES, KeycloakMetrics.tags("endpoint", endpoint), 1);
+        return sleep(TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+
+    /**
+     * @return milliseconds of the Retry-After header, in seconds, 0 if missing or a date
+     */
+    private static long getRetryAfter(ClientResponse response) {
+        String retryAfter = response.getHeaderString("Retry-After");
+        if(retryAfter == null)
+            return 0;
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isFailure(int status) {
+        return status == 429 || status >= 500;
+    }
+
+    /**
+     * @return true if the request is the single one sent to check whether keycloak has recovered
+     * @throws ProcessingException if the circuit is open
+     */
+    private boolean allowRequest(String endpoint) {
+        if(circuitFailures == 0)
+            return false;
+        int openFailures;
+        synchronized (this) {
+            if(circuitState == CLOSED)
+                return false;
+            if(circuitState == OPEN && System.nanoTime() - openedAt >= circuitResetTimeout) {
+                circuitState = HALF_OPEN;
+                return true;
+            }
+            openFailures = failures;
+        }
+        throw reject(endpoint, "circuit", String.format("Keycloak admin requests suspended after %d failures in a row", openFailures));
+    }
+
+    private synchronized boolean isOpen() {
+        return circuitState == OPEN;
+    }
+
+    /**
+     * lets the next request check whether keycloak has recovered, after the check could not be sent
+     */
+    private synchronized void reopen() {
+        if(circuitState == HALF_OPEN)
+            circuitState = OPEN;
+    }
+
+    /**
+     * counts the failures in a row, opening or closing the circuit
+     */
+    private void recordResult(boolean success) {
+        if(circuitFailures == 0)
+            return;
+        int previousState;
+        int state;
+        int openFailures;
+        synchronized (this) {
+            previousState = circuitState;
+            if(success) {
+                failures = 0;
+                circuitState = CLOSED;
+            } else if(++failures >= circuitFailures || circuitState == HALF_OPEN) {
+                circuitState = OPEN;
+                openedAt = System.nanoTime();
+            }
+            state = circuitState;
+            openFailures = failures;
+        }
+        if(state == OPEN && previousState != OPEN) {
+            logger.warn(String.format("Keycloak admin requests suspended for %d ms after %d failures in a row",
+                    TimeUnit.NANOSECONDS.toMillis(circuitResetTimeout), openFailures));
+        } else if(state == CLOSED && previousState != CLOSED) {
+            logger.info("Keycloak admin requests resumed");
+        }
+        if(metrics != null && state != previousState)
+            metrics.gauge(KeycloakMetrics.REST_CIRCUIT, KeycloakMetrics.tags(), state == OPEN ? 1 : 0);
+    }
+
+    private Rejection reject(String endpoint, String reason, String message) {
+        if(metrics != null)
+            metrics.counter(KeycloakMetrics.REST_REJECTED, KeycloakMetrics.tags("endpoint", endpoint, "reason", reason), 1);
+        return new Rejection(message);
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private static boolean sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * builds a {@link KeycloakAdminEngine} with the connection pool, timeouts and ssl settings of a resteasy client builder
+     */
+    static final class Builder extends ClientHttpEngineBuilder43 {
+        private final KeycloakConfig config;
+
+        Builder(KeycloakConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        protected ClientHttpEngine createEngine(HttpClientConnectionManager connectionManager, RequestConfig.Builder requestConfig,
+                                                HttpHost defaultProxy, int responseBufferSize,
+                                                HostnameVerifier hostnameVerifier, SSLContext sslContext) {
+            HttpClient httpClient = HttpClientBuilder.create()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig.build())
+                    .setProxy(defaultProxy)
+                    .disableContentCompression()
+                    .build();
+            KeycloakAdminEngine engine = new KeycloakAdminEngine(httpClient, config);
+            engine.setResponseBufferSize(responseBufferSize);
+            engine.setHostnameVerifier(hostnameVerifier);
+            engine.setSslContext(sslContext);
+            return engine;
+        }
+    }
+
+    /**
+     * tokens refilled at a constant rate; a request that finds none reserves the next one and waits for it,
+     * so that the waiting requests are sent in order
+     */
+    private static final class TokenBucket {
+        private final double nanosPerToken;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(double tokensPerSecond, int capacity) {
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / tokensPerSecond;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        /**
+         * takes a token
+         *
+         * @param timeout maximum nanoseconds to wait for it
+         * @return the nanoseconds to wait before using the token, -1 if it would exceed the timeout
+         */
+        synchronized long reserve(long timeout) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) / nanosPerToken);
+            refilledAt = now;
+            long wait = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * nanosPerToken);
+            if(wait > timeout)
+                return -1;
+            tokens--;
+            return wait;
+        }
+
+        /**
+         * gives back a token taken by a request that was not sent
+         */
+        synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+    }
+
+    /**
+     * a request failed without being sent
+     */
+    private static final class Rejection extends ProcessingException {
+        private static final long serialVersionUID = 1L;
+
+        Rejection(String message) {
+            super(message);
+        }
+    }
+}
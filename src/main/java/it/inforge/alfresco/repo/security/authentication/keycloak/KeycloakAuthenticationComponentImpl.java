@@ -6,19 +6,43 @@ import org.alfresco.repo.security.authentication.AbstractAuthenticationComponent
 import org.alfresco.repo.security.authentication.AuthenticationException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.keycloak.admin.client.Keycloak;
-import org.keycloak.representations.AccessTokenResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * authentication component for the keycloak server, base on the {@link AbstractAuthenticationComponent}.
- * It authenticates a user against one of the available realms and set it as the current Alfresco user
+ * It authenticates a user against one of the available realms and set it as the current Alfresco user.
+ * Its caches are exposed by the JMX MBean <code>it.inforge.alfresco:type=KeycloakAuthentication,id=&lt;subsystem&gt;</code>
  *
  * @author  Francesco Milesi
  * @see     AbstractAuthenticationComponent
  * @since   1.0
  */
-public class KeycloakAuthenticationComponentImpl extends AbstractAuthenticationComponent implements InitializingBean, ActivateableBean {
+public class KeycloakAuthenticationComponentImpl extends AbstractAuthenticationComponent
+        implements InitializingBean, DisposableBean, ActivateableBean, KeycloakAuthenticationMXBean {
 
     private final Log logger = LogFactory.getLog(getClass());
 
@@ -27,6 +51,40 @@ public class KeycloakAuthenticationComponentImpl extends AbstractAuthenticationC
     private KeycloakConfig config;
 
     private KeycloakUserRegistry userRegistry;
+    private KeycloakAdminClientProvider adminClientProvider;
+    private KeycloakDirectGrantAuthenticator directGrantAuthenticator;
+    private KeycloakGroupTreeCache groupTreeCache;
+    private KeycloakZoneAuthorities zoneAuthorities;
+
+    /**
+     * realm each user was last authenticated against, null if the realm affinity is disabled
+     */
+    private ExpiringLruCache<String, String> realmAffinityCache;
+    private final AtomicLong realmAffinityHits = new AtomicLong();
+    private final AtomicLong realmAffinityMisses = new AtomicLong();
+
+    /**
+     * verifiers of the credentials recently accepted by a realm, null if the credential cache is disabled
+     */
+    private CredentialVerifierCache credentialCache;
+    private final AtomicLong credentialCacheHits = new AtomicLong();
+
+    /**
+     * verifiers of the credentials recently rejected by a realm, null if the rejected credential cache is disabled
+     */
+    private CredentialVerifierCache rejectedCredentialCache;
+    private final AtomicLong rejectedCredentialCacheHits = new AtomicLong();
+    /**
+     * backoff of the users repeatedly rejected by a realm, null if the throttling is disabled
+     */
+    private LoginThrottle loginThrottle;
+    private final AtomicLong throttledAttempts = new AtomicLong();
+
+    /**
+     * runs the password grants sent to all the realms at once, null if the realms are tried in order
+     */
+    private ExecutorService realmsExecutor;
+    private ObjectName objectName;
 
     /**
      * @throws Exception if the mandatory configuration properties are missing
@@ -45,6 +103,60 @@ public class KeycloakAuthenticationComponentImpl extends AbstractAuthenticationC
         {
             throw new IllegalStateException("The keycloak realms must be set");
         }
+        if (config.getRealmAffinityCacheSize() > 0 && config.getRealms().size() > 1)
+        {
+            realmAffinityCache = new ExpiringLruCache<>(config.getRealmAffinityCacheSize(), config.getRealmAffinityCacheTtl());
+        }
+        if (config.getCredentialCacheSize() > 0)
+        {
+            credentialCache = new CredentialVerifierCache(config.getCredentialCacheSize(),
+                    config.getCredentialCacheTtl(), config.getCredentialCacheIterations());
+        }
+        if (config.getRejectedCredentialCacheSize() > 0)
+        {
+            rejectedCredentialCache = new CredentialVerifierCache(config.getRejectedCredentialCacheSize(),
+                    config.getRejectedCredentialCacheTtl(), config.getCredentialCacheIterations());
+        }
+        if (config.getLoginThrottleThreshold() > 0)
+        {
+            loginThrottle = new LoginThrottle(config.getLoginThrottleSize(), config.getLoginThrottleThreshold(),
+                    config.getLoginThrottleDelay(), config.getLoginThrottleMaxDelay());
+        }
+        if (config.isParallelRealmsAuthentication() && config.getRealms().size() > 1)
+        {
+            // at most one thread per pooled connection: more would only wait for a free connection
+            int threads = config.getAuthenticationConnectionPoolSize();
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, String.format("keycloak-authentication-%d", threadCount.incrementAndGet()));
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            realmsExecutor = executor;
+        }
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName(String.format("it.inforge.alfresco:type=KeycloakAuthentication,id=%s", ObjectName.quote(String.valueOf(id))));
+        if(mBeanServer.isRegistered(objectName))
+            mBeanServer.unregisterMBean(objectName);
+        mBeanServer.registerMBean(this, objectName);
+    }
+
+    /**
+     * stops the threads authenticating against the realms in parallel and unregisters the MBean
+     */
+    @Override
+    public void destroy() {
+        if(realmsExecutor != null)
+            realmsExecutor.shutdownNow();
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if(objectName != null && mBeanServer.isRegistered(objectName))
+                mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn(String.format("Cannot unregister MBean %s", objectName), e);
+        }
     }
 
     /**
@@ -57,51 +169,342 @@ public class KeycloakAuthenticationComponentImpl extends AbstractAuthenticationC
      */
     @Override
     protected void authenticateImpl(String userName, char[] password) {
-        String realm = realmsAuthenticate(userName, password);
-        if(realm == null) {
-            if (logger.isDebugEnabled()) {
-                logger.debug(String.format("User \"%s\" non present in any keycloak realm", userName));
-            }
-            throw new AuthenticationException("Invalid user name");
-        }
+        long start = System.nanoTime();
+        AtomicInteger attempts = new AtomicInteger();
+        String realm = null;
+        String result = "error";
         try {
-            userRegistry.pushThreadLocalInstance(new KeycloakThreadInstance(config, realm, userName));
-            setCurrentUser(userName);
+            realm = realmsAuthenticate(userName, password, attempts);
+            if(realm == null) {
+                result = "rejected";
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("User \"%s\" non present in any keycloak realm", userName));
+                }
+                throw new AuthenticationException("Invalid user name");
+            }
+            try {
+                userRegistry.pushThreadLocalInstance(new KeycloakThreadInstance(config, adminClientProvider, groupTreeCache, zoneAuthorities, realm, userName));
+                setCurrentUser(userName);
+            } finally {
+                userRegistry.clearThreadLocalInstance();
+            }
+            result = attempts.get() == 0 ? "cached" : "success";
         } finally {
-            userRegistry.clearThreadLocalInstance();
+            KeycloakMetrics metrics = config.getMetrics();
+            metrics.timer(KeycloakMetrics.LOGIN, KeycloakMetrics.tags("realm", realm == null ? "none" : realm, "result", result),
+                    System.nanoTime() - start);
+            metrics.summary(KeycloakMetrics.LOGIN_REALM_ATTEMPTS, Collections.emptyMap(), attempts.get());
         }
     }
 
     /**
      *
-     * Tries to authenticate the user against one of the available keycloak realms
+     * Tries to authenticate the user against one of the available keycloak realms.
+     * The realm the user was last authenticated against, if known, is tried first
      *
      * @param userName the username of the authenticating user.
      * @param password the password of the authenticating user.
      * @return the name of the realm the user was authenticated against. null if the authentication was unsuccesfull
      */
     protected String realmsAuthenticate(String userName, char[] password) {
+        return realmsAuthenticate(userName, password, new AtomicInteger());
+    }
+
+    /**
+     * @param userName the username of the authenticating user.
+     * @param password the password of the authenticating user.
+     * @param attempts incremented at each request sent to a realm
+     * @return the name of the realm the user was authenticated against. null if the authentication was unsuccesfull
+     */
+    private String realmsAuthenticate(String userName, char[] password, AtomicInteger attempts) {
         if (!userName.equals(userName.trim()))
         {
             throw new AuthenticationException("Invalid user ID with leading or trailing whitespace");
         }
-        for (String realm : config.getRealms()) {
-            try {
-                realmAuthenticate(realm, userName, password);
+        String cachedRealm = getCachedCredentialsRealm(userName, password);
+        if(cachedRealm != null) {
+            credentialCacheHits.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("User \"%s\" logged into keycloak realm \"%s\" with cached credentials", userName, cachedRealm));
+            }
+            return cachedRealm;
+        }
+        String affinityRealm = getAffinityRealm(userName);
+        if(affinityRealm != null) {
+            if(tryRealm(affinityRealm, userName, password, attempts)) {
+                realmAffinityHits.incrementAndGet();
+                return affinityRealm;
+            }
+            realmAffinityCache.remove(getAffinityKey(userName));
+        }
+        if(realmAffinityCache != null)
+            realmAffinityMisses.incrementAndGet();
+        List<String> realms = new ArrayList<>(config.getRealms());
+        realms.remove(affinityRealm);
+        String realm = realmsExecutor != null && realms.size() > 1 ?
+                parallelRealmsAuthenticate(realms, userName, password, attempts) :
+                sequentialRealmsAuthenticate(realms, userName, password, attempts);
+        if(realm != null && realmAffinityCache != null)
+            realmAffinityCache.put(getAffinityKey(userName), realm);
+        return realm;
+    }
+
+    /**
+     * Tries the realms one after the other, in the configured order
+     *
+     * @param realms the realms to try
+     * @param userName the username of the authenticating user.
+     * @param password the password of the authenticating user.
+     * @param attempts incremented at each request sent to a realm
+     * @return the first realm accepting the credentials, null if none accepted them
+     */
+    private String sequentialRealmsAuthenticate(List<String> realms, String userName, char[] password, AtomicInteger attempts) {
+        for (String realm : realms) {
+            if(tryRealm(realm, userName, password, attempts))
+                return realm;
+        }
+        return null;
+    }
+
+    /**
+     * Sends the password grant to all the realms at once.
+     * When several realms accept the credentials the one coming first in the configured order wins,
+     * as it would with {@link #sequentialRealmsAuthenticate(List, String, char[], AtomicInteger)}: the requests that can no longer
+     * change the outcome are aborted as soon as it is known.
+     *
+     * @param realms the realms to try
+     * @param userName the username of the authenticating user.
+     * @param password the password of the authenticating user.
+     * @param attempts incremented at each request sent to a realm
+     * @return the first realm, in the configured order, accepting the credentials, null if none accepted them
+     */
+    private String parallelRealmsAuthenticate(List<String> realms, String userName, char[] password, AtomicInteger attempts) {
+        int size = realms.size();
+        HttpPost[] requests = new HttpPost[size];
+        List<Future<Boolean>> futures = new ArrayList<>(size);
+        Map<Future<Boolean>, Integer> indexes = new IdentityHashMap<>();
+        Boolean[] results = new Boolean[size];
+        CompletionService<Boolean> completionService = new ExecutorCompletionService<>(realmsExecutor);
+        for (int i = 0; i < size; i++) {
+            String realm = realms.get(i);
+            HttpPost request = directGrantAuthenticator.newRequest(realm, userName, password);
+            Future<Boolean> future = completionService.submit(() -> tryRealm(realm, userName, password, request, attempts));
+            requests[i] = request;
+            futures.add(future);
+            indexes.put(future, i);
+        }
+        try {
+            for (int completed = 0; completed < size; completed++) {
+                Future<Boolean> future = completionService.take();
+                int index = indexes.get(future);
+                results[index] = !future.isCancelled() && future.get();
+                if(results[index]) {
+                    // realms after this one can no longer win
+                    abort(requests, futures, index + 1, size);
+                }
+                for (int i = 0; i < size; i++) {
+                    if(results[i] == null)
+                        break;
+                    if(results[i])
+                        return realms.get(i);
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationException("Interrupted while authenticating against the keycloak realms", e);
+        } catch (ExecutionException e) {
+            throw new AuthenticationException("Error authenticating against the keycloak realms", e.getCause());
+        } finally {
+            abort(requests, futures, 0, size);
+        }
+    }
+
+    private void abort(HttpPost[] requests, List<Future<Boolean>> futures, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if(!futures.get(i).isDone()) {
+                futures.get(i).cancel(false);
+                requests[i].abort();
+            }
+        }
+    }
+
+    private boolean tryRealm(String realm, String userName, char[] password, AtomicInteger attempts) {
+        return tryRealm(realm, userName, password, null, attempts);
+    }
+
+    private boolean tryRealm(String realm, String userName, char[] password, HttpPost request, AtomicInteger attempts) {
+        if(isSuppressed(realm, userName, password))
+            return false;
+        attempts.incrementAndGet();
+        try {
+            if(request == null ? realmAuthenticate(realm, userName, password) : directGrantAuthenticator.execute(realm, request)) {
                 if (logger.isDebugEnabled()) {
                     logger.debug(String.format("User \"%s\" logged into keycloak realm \"%s\"", userName, realm));
                 }
-                return realm;
+                if(isCacheable(password))
+                    credentialCache.put(realm, userName, password);
+                if(rejectedCredentialCache != null)
+                    rejectedCredentialCache.invalidate(realm, userName);
+                if(loginThrottle != null)
+                    loginThrottle.accepted(realm, userName);
+                return true;
             }
-            catch (Exception e) {
+            // the cached credentials are left: anybody could evict them with a wrong password.
+            // They are replaced when the realm accepts another password
+            if(rejectedCredentialCache != null && password != null && password.length > 0)
+                rejectedCredentialCache.put(realm, userName, password);
+            if(loginThrottle != null)
+                loginThrottle.rejected(realm, userName);
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("User \"%s\" non present in keycloak realm \"%s\"", userName, realm));
+            }
+        }
+        catch (Exception e) {
+            if(request != null && request.isAborted()) {
                 if (logger.isDebugEnabled()) {
-                    logger.debug(String.format("User \"%s\" non present in keycloak realm \"%s\"", userName, realm));
+                    logger.debug(String.format("Authentication of user \"%s\" against keycloak realm \"%s\" aborted", userName, realm));
+                }
+            } else {
+                // a realm down fails every login: the stack trace is only logged at debug level
+                logger.warn(String.format("Cannot authenticate user \"%s\" against keycloak realm \"%s\": %s", userName, realm, e));
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Authentication of user \"%s\" against keycloak realm \"%s\" failed", userName, realm), e);
                 }
             }
         }
+        return false;
+    }
+
+    /**
+     * @param realm the name of the realm the user is being authenticated against.
+     * @param userName the username of the authenticating user.
+     * @param password the password of the authenticating user.
+     * @return true if the realm must not be called: it recently rejected the same credentials or the user is in backoff
+     */
+    private boolean isSuppressed(String realm, String userName, char[] password) {
+        if(loginThrottle != null && loginThrottle.isBlocked(realm, userName)) {
+            throttledAttempts.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("User \"%s\" throttled for keycloak realm \"%s\"", userName, realm));
+            }
+            return true;
+        }
+        if(rejectedCredentialCache != null && password != null && password.length > 0
+                && rejectedCredentialCache.contains(realm, userName, password)) {
+            rejectedCredentialCacheHits.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Credentials of user \"%s\" recently rejected by keycloak realm \"%s\"", userName, realm));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of realm calls suppressed because the realm recently rejected the same credentials
+     */
+    @Override
+    public long getRejectedCredentialCacheHits() {
+        return rejectedCredentialCacheHits.get();
+    }
+
+    /**
+     * @return number of realm calls suppressed because the user was in backoff for the realm
+     */
+    @Override
+    public long getThrottledAttempts() {
+        return throttledAttempts.get();
+    }
+
+    /**
+     * @param userName the username of the authenticating user.
+     * @param password the password of the authenticating user.
+     * @return the first realm, in the configured order, that recently accepted the same credentials
+     */
+    private String getCachedCredentialsRealm(String userName, char[] password) {
+        if(!isCacheable(password))
+            return null;
+        for (String realm : config.getRealms()) {
+            if(credentialCache.contains(realm, userName, password))
+                return realm;
+        }
         return null;
     }
 
+    private boolean isCacheable(char[] password) {
+        return credentialCache != null && password != null && password.length > 0;
+    }
+
+    /**
+     * removes the cached credentials and the backoff of a user: the next authentication of the user will call keycloak
+     *
+     * @param userName the user whose credentials are removed
+     */
+    @Override
+    public void invalidateCachedCredentials(String userName) {
+        for (String realm : config.getRealms()) {
+            if(credentialCache != null)
+                credentialCache.invalidate(realm, userName);
+            if(rejectedCredentialCache != null)
+                rejectedCredentialCache.invalidate(realm, userName);
+            if(loginThrottle != null)
+                loginThrottle.accepted(realm, userName);
+        }
+    }
+
+    /**
+     * removes all the cached credentials and backoffs
+     */
+    @Override
+    public void invalidateCachedCredentials() {
+        if(credentialCache != null)
+            credentialCache.invalidateAll();
+        if(rejectedCredentialCache != null)
+            rejectedCredentialCache.invalidateAll();
+        if(loginThrottle != null)
+            loginThrottle.clear();
+    }
+
+    /**
+     * @return number of authentications accepted with cached credentials, without calling keycloak
+     */
+    @Override
+    public long getCredentialCacheHits() {
+        return credentialCacheHits.get();
+    }
+
+    /**
+     * @param userName the username of the authenticating user.
+     * @return the cached realm the user was last authenticated against, if still configured
+     */
+    private String getAffinityRealm(String userName) {
+        if(realmAffinityCache == null)
+            return null;
+        String realm = realmAffinityCache.get(getAffinityKey(userName));
+        return realm != null && config.getRealms().contains(realm) ? realm : null;
+    }
+
+    private String getAffinityKey(String userName) {
+        return userName.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return number of logins authenticated by the realm the user was last authenticated against
+     */
+    @Override
+    public long getRealmAffinityHits() {
+        return realmAffinityHits.get();
+    }
+
+    /**
+     * @return number of logins that had to scan the configured realms
+     */
+    @Override
+    public long getRealmAffinityMisses() {
+        return realmAffinityMisses.get();
+    }
+
     /**
      *
      * Tries to authenticate the user against a keycloak realm via the the configured keycloak authentication client
@@ -109,18 +512,11 @@ public class KeycloakAuthenticationComponentImpl extends AbstractAuthenticationC
      * @param realm the name of the realm the user is being authenticated against.
      * @param userName the username of the authenticating user.
      * @param password the password of the authenticating user.
+     * @return true if the realm accepted the credentials, false if it rejected them
+     * @throws IOException if the realm could not be reached
      */
-    private void realmAuthenticate(String realm, String userName, char[] password) {
-        Keycloak keycloak = null;
-        try {
-            String passwd = String.valueOf(password);
-            keycloak = Keycloak.getInstance(config.getUrl(), realm, userName, passwd, config.getAuthenticationClient());
-            AccessTokenResponse token = keycloak.tokenManager().getAccessToken();
-        }
-        finally {
-            if(keycloak != null)
-                keycloak.close();
-        }
+    private boolean realmAuthenticate(String realm, String userName, char[] password) throws IOException {
+        return directGrantAuthenticator.authenticate(realm, userName, password);
     }
 
     public void setActive(boolean active) {
@@ -173,4 +569,40 @@ public class KeycloakAuthenticationComponentImpl extends AbstractAuthenticationC
     public void setUserRegistry(KeycloakUserRegistry userRegistry) {
         this.userRegistry = userRegistry;
     }
+
+    /**
+     * Set the provider of the keycloak admin client used to import the authenticated users
+     *
+     * @param adminClientProvider provider of the shared keycloak admin client
+     */
+    public void setAdminClientProvider(KeycloakAdminClientProvider adminClientProvider) {
+        this.adminClientProvider = adminClientProvider;
+    }
+
+    /**
+     * Set the authenticator used to check the users' credentials against the keycloak realms
+     *
+     * @param directGrantAuthenticator checks the credentials with the realms' token endpoints
+     */
+    public void setDirectGrantAuthenticator(KeycloakDirectGrantAuthenticator directGrantAuthenticator) {
+        this.directGrantAuthenticator = directGrantAuthenticator;
+    }
+
+    /**
+     * Set the cache of the group hierarchies used to import the groups of the authenticated users
+     *
+     * @param groupTreeCache cache of the realms' group hierarchies
+     */
+    public void setGroupTreeCache(KeycloakGroupTreeCache groupTreeCache) {
+        this.groupTreeCache = groupTreeCache;
+    }
+
+    /**
+     * Set the cache of the authorities imported from keycloak, used to keep the other members of the email contributors group
+     *
+     * @param zoneAuthorities cache of the authorities in the authentication zones
+     */
+    public void setZoneAuthorities(KeycloakZoneAuthorities zoneAuthorities) {
+        this.zoneAuthorities = zoneAuthorities;
+    }
 }
@@ -0,0 +1,32 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+/**
+ * JMX view of the credential caches and login throttling of a keycloak subsystem's {@link KeycloakAuthenticationComponentImpl}.
+ * The invalidate operations make the changes of a password or of a disabled user in keycloak effective at once.
+ *
+ * @since   1.0
+ */
+public interface KeycloakAuthenticationMXBean {
+
+    long getCredentialCacheHits();
+
+    long getRejectedCredentialCacheHits();
+
+    long getThrottledAttempts();
+
+    long getRealmAffinityHits();
+
+    long getRealmAffinityMisses();
+
+    /**
+     * removes the cached credentials and the backoff of a user
+     *
+     * @param userName the user whose credentials are removed
+     */
+    void invalidateCachedCredentials(String userName);
+
+    /**
+     * removes all the cached credentials and backoffs
+     */
+    void invalidateCachedCredentials();
+}
@@ -24,10 +24,70 @@ public class KeycloakConfig {
      * realms a user can be authenticated against
      */
     private List<String> realms;
+    /**
+     * if true the credentials are sent to all the realms at once instead of trying the realms one after the other
+     */
+    private boolean parallelRealmsAuthentication;
+    /**
+     * maximum number of users whose last authentication realm is remembered, 0 to disable the realm affinity
+     */
+    private int realmAffinityCacheSize;
+    /**
+     * seconds the last authentication realm of a user is remembered
+     */
+    private long realmAffinityCacheTtl;
+    /**
+     * maximum number of cached verifiers of accepted credentials, 0 to disable the credential cache
+     */
+    private int credentialCacheSize;
+    /**
+     * seconds accepted credentials are cached
+     */
+    private long credentialCacheTtl;
+    /**
+     * PBKDF2 iterations used to hash the cached credentials
+     */
+    private int credentialCacheIterations;
+    /**
+     * maximum number of cached verifiers of rejected credentials, 0 to disable the rejected credential cache
+     */
+    private int rejectedCredentialCacheSize;
+    /**
+     * seconds rejected credentials are cached
+     */
+    private long rejectedCredentialCacheTtl;
+    /**
+     * consecutive rejections of a user by a realm before the realm is no more called for the user, 0 to disable the throttling
+     */
+    private int loginThrottleThreshold;
+    /**
+     * maximum number of users and realms whose rejections are tracked
+     */
+    private int loginThrottleSize;
+    /**
+     * seconds a realm is not called for a user after loginThrottleThreshold rejections, doubled at each further rejection
+     */
+    private long loginThrottleDelay;
+    /**
+     * maximum seconds a realm is not called for a user
+     */
+    private long loginThrottleMaxDelay;
     /**
      * keycloak client application used for the authentication
      */
     private String authenticationClient;
+    /**
+     * maximum number of pooled connections used to authenticate the users
+     */
+    private int authenticationConnectionPoolSize;
+    /**
+     * timeout, in milliseconds, to establish a connection used to authenticate the users
+     */
+    private long authenticationConnectionTimeout;
+    /**
+     * socket read timeout, in milliseconds, of the calls authenticating the users
+     */
+    private long authenticationSocketTimeout;
     /**
      * username used with permission to perform the authentication and synchronization calls
      * to the authentication client application
@@ -38,10 +98,159 @@ public class KeycloakConfig {
      * to the authentication client application
      */
     private String adminSecret;
+    /**
+     * maximum number of pooled connections of the shared admin client
+     */
+    private int adminConnectionPoolSize;
+    /**
+     * the admin client's token is refreshed when it expires within this number of seconds
+     */
+    private int adminTokenMinValidity;
+    /**
+     * timeout, in milliseconds, to establish a connection of the admin client
+     */
+    private long adminConnectionTimeout;
+    /**
+     * socket read timeout, in milliseconds, of the admin client
+     */
+    private long adminSocketTimeout;
+    /**
+     * requests per second the admin client sends, 0 for no limit
+     */
+    private double adminRateLimit;
+    /**
+     * requests the admin client can send at once after being idle
+     */
+    private int adminRateBurst;
+    /**
+     * maximum number of admin requests waiting at once for keycloak's answer, 0 for no limit
+     */
+    private int adminMaxConcurrentRequests;
+    /**
+     * milliseconds an admin request waits for the rate limit or a free slot before failing
+     */
+    private long adminQueueTimeout;
+    /**
+     * times a failed admin read is sent again
+     */
+    private int adminRetries;
+    /**
+     * milliseconds before the first retry of an admin read, doubled at each retry up to {@link #adminRetryMaxDelay}
+     */
+    private long adminRetryDelay;
+    private long adminRetryMaxDelay;
+    /**
+     * admin requests failed in a row after which the requests fail without being sent, 0 to always send them
+     */
+    private int adminCircuitFailures;
+    /**
+     * milliseconds the admin requests fail without being sent before keycloak is tried again
+     */
+    private long adminCircuitResetTimeout;
     /**
      * user data are imported into alfresco import in batches of this size
      */
     private int userListingBatchSize;
+    /**
+     * if true, the number of users or members requested with each page adapts to keycloak's answers,
+     * starting from {@link #userListingBatchSize}
+     */
+    private boolean userListingAdaptive;
+    /**
+     * bounds of the adapted page size
+     */
+    private int userListingBatchSizeMin;
+    private int userListingBatchSizeMax;
+    /**
+     * milliseconds within which a page must be answered for the adapted page size to grow
+     */
+    private long userListingTargetLatency;
+    /**
+     * bytes a page must not exceed for the adapted page size to grow, 0 for no limit
+     */
+    private long userListingMaxPayload;
+    /**
+     * users of the previous page requested again with each page of users, to detect the pages shifted
+     * by the users created or deleted during a synchronization
+     */
+    private int userListingOverlap;
+    /**
+     * seconds a cached group hierarchy is used before being refreshed in background
+     */
+    private long groupTreeCacheTtl;
+    /**
+     * if true, the groups of a realm are loaded with a single partial export of the realm
+     */
+    private boolean groupPartialExport;
+    /**
+     * maximum number of groups whose attributes are read in parallel, when the realm cannot be exported
+     */
+    private int groupLoadParallelism;
+    /**
+     * if true, the synchronizations persist a fingerprint of each person and group
+     * and return to alfresco only those changed since the last synchronization
+     */
+    private boolean synchronizationFingerprints;
+    /**
+     * if true, full synchronizations too return to alfresco only the persons and groups changed
+     * since the last synchronization, unless they are missing from alfresco
+     */
+    private boolean synchronizationSuppressUnchanged;
+    /**
+     * seconds after which a full synchronization returns again all the persons and groups, even if
+     * {@link #synchronizationSuppressUnchanged}, to repair those alfresco lost. 0 never repairs them
+     */
+    private long synchronizationSuppressUnchangedRepairInterval;
+    /**
+     * maximum number of pages of users or group members a synchronization fetches in parallel
+     */
+    private int synchronizationParallelism;
+    /**
+     * maximum number of requests a synchronization sends in parallel to the same realm
+     */
+    private int synchronizationRealmParallelism;
+    /**
+     * secret keycloak sends with the change events, empty if the events are not accepted
+     */
+    private String synchronizationEventsSecret;
+    /**
+     * milliseconds the change events are collected before the affected users and groups are synchronized
+     */
+    private long synchronizationEventsDelay;
+    /**
+     * maximum number of users and groups synchronized together after change events
+     */
+    private int synchronizationEventsBatchSize;
+    /**
+     * if true, the change events are synchronized even if the authentication chain has other active user registries,
+     * that alfresco synchronizes too
+     */
+    private boolean synchronizationEventsWithOtherRegistries;
+    /**
+     * if true, the keycloak reads of the full synchronizations are spread over the nodes of the cluster
+     */
+    private boolean synchronizationSharded;
+    /**
+     * number of users read by a shard of a sharded synchronization
+     */
+    private int synchronizationShardUsers;
+    /**
+     * number of groups whose members are read by a shard of a sharded synchronization
+     */
+    private int synchronizationShardGroups;
+    /**
+     * seconds the nodes of a sharded synchronization have to read all the shards
+     */
+    private long synchronizationShardTimeout;
+    /**
+     * if true, the shards read by a failed full synchronization are kept and resumed by the next one
+     */
+    private boolean synchronizationCheckpoints;
+    /**
+     * seconds after which the shards of a failed full synchronization are no more resumed. Only count changes and
+     * shifted ranges make the resumed shards read again, the other changes made since are synchronized later
+     */
+    private long synchronizationCheckpointsMaxAge;
     /**
      * Alfresco's authentication zones
      */
@@ -66,6 +275,10 @@ public class KeycloakConfig {
      */
     private QName userAspect;
     private ServiceRegistry serviceRegistry;
+    /**
+     * measures of the subsystem
+     */
+    private KeycloakMetrics metrics = new KeycloakMetrics();
 
     public String getUrl() {
         return url;
@@ -84,6 +297,102 @@ public class KeycloakConfig {
             this.realms = Arrays.asList(realms.split(","));
     }
 
+    public boolean isParallelRealmsAuthentication() {
+        return parallelRealmsAuthentication;
+    }
+
+    public void setParallelRealmsAuthentication(boolean parallelRealmsAuthentication) {
+        this.parallelRealmsAuthentication = parallelRealmsAuthentication;
+    }
+
+    public int getRealmAffinityCacheSize() {
+        return realmAffinityCacheSize;
+    }
+
+    public void setRealmAffinityCacheSize(int realmAffinityCacheSize) {
+        this.realmAffinityCacheSize = realmAffinityCacheSize;
+    }
+
+    public long getRealmAffinityCacheTtl() {
+        return realmAffinityCacheTtl;
+    }
+
+    public void setRealmAffinityCacheTtl(long realmAffinityCacheTtl) {
+        this.realmAffinityCacheTtl = realmAffinityCacheTtl;
+    }
+
+    public int getCredentialCacheSize() {
+        return credentialCacheSize;
+    }
+
+    public void setCredentialCacheSize(int credentialCacheSize) {
+        this.credentialCacheSize = credentialCacheSize;
+    }
+
+    public long getCredentialCacheTtl() {
+        return credentialCacheTtl;
+    }
+
+    public void setCredentialCacheTtl(long credentialCacheTtl) {
+        this.credentialCacheTtl = credentialCacheTtl;
+    }
+
+    public int getCredentialCacheIterations() {
+        return credentialCacheIterations;
+    }
+
+    public void setCredentialCacheIterations(int credentialCacheIterations) {
+        this.credentialCacheIterations = credentialCacheIterations;
+    }
+
+    public int getRejectedCredentialCacheSize() {
+        return rejectedCredentialCacheSize;
+    }
+
+    public void setRejectedCredentialCacheSize(int rejectedCredentialCacheSize) {
+        this.rejectedCredentialCacheSize = rejectedCredentialCacheSize;
+    }
+
+    public long getRejectedCredentialCacheTtl() {
+        return rejectedCredentialCacheTtl;
+    }
+
+    public void setRejectedCredentialCacheTtl(long rejectedCredentialCacheTtl) {
+        this.rejectedCredentialCacheTtl = rejectedCredentialCacheTtl;
+    }
+
+    public int getLoginThrottleThreshold() {
+        return loginThrottleThreshold;
+    }
+
+    public void setLoginThrottleThreshold(int loginThrottleThreshold) {
+        this.loginThrottleThreshold = loginThrottleThreshold;
+    }
+
+    public int getLoginThrottleSize() {
+        return loginThrottleSize;
+    }
+
+    public void setLoginThrottleSize(int loginThrottleSize) {
+        this.loginThrottleSize = loginThrottleSize;
+    }
+
+    public long getLoginThrottleDelay() {
+        return loginThrottleDelay;
+    }
+
+    public void setLoginThrottleDelay(long loginThrottleDelay) {
+        this.loginThrottleDelay = loginThrottleDelay;
+    }
+
+    public long getLoginThrottleMaxDelay() {
+        return loginThrottleMaxDelay;
+    }
+
+    public void setLoginThrottleMaxDelay(long loginThrottleMaxDelay) {
+        this.loginThrottleMaxDelay = loginThrottleMaxDelay;
+    }
+
     public String getAuthenticationClient() {
         return authenticationClient;
     }
@@ -92,6 +401,30 @@ public class KeycloakConfig {
         this.authenticationClient = authenticationClient;
     }
 
+    public int getAuthenticationConnectionPoolSize() {
+        return authenticationConnectionPoolSize;
+    }
+
+    public void setAuthenticationConnectionPoolSize(int authenticationConnectionPoolSize) {
+        this.authenticationConnectionPoolSize = authenticationConnectionPoolSize;
+    }
+
+    public long getAuthenticationConnectionTimeout() {
+        return authenticationConnectionTimeout;
+    }
+
+    public void setAuthenticationConnectionTimeout(long authenticationConnectionTimeout) {
+        this.authenticationConnectionTimeout = authenticationConnectionTimeout;
+    }
+
+    public long getAuthenticationSocketTimeout() {
+        return authenticationSocketTimeout;
+    }
+
+    public void setAuthenticationSocketTimeout(long authenticationSocketTimeout) {
+        this.authenticationSocketTimeout = authenticationSocketTimeout;
+    }
+
     public String getAdminClient() {
         return adminClient;
     }
@@ -108,6 +441,110 @@ public class KeycloakConfig {
         this.adminSecret = adminSecret;
     }
 
+    public int getAdminConnectionPoolSize() {
+        return adminConnectionPoolSize;
+    }
+
+    public void setAdminConnectionPoolSize(int adminConnectionPoolSize) {
+        this.adminConnectionPoolSize = adminConnectionPoolSize;
+    }
+
+    public int getAdminTokenMinValidity() {
+        return adminTokenMinValidity;
+    }
+
+    public void setAdminTokenMinValidity(int adminTokenMinValidity) {
+        this.adminTokenMinValidity = adminTokenMinValidity;
+    }
+
+    public long getAdminConnectionTimeout() {
+        return adminConnectionTimeout;
+    }
+
+    public void setAdminConnectionTimeout(long adminConnectionTimeout) {
+        this.adminConnectionTimeout = adminConnectionTimeout;
+    }
+
+    public long getAdminSocketTimeout() {
+        return adminSocketTimeout;
+    }
+
+    public void setAdminSocketTimeout(long adminSocketTimeout) {
+        this.adminSocketTimeout = adminSocketTimeout;
+    }
+
+    public double getAdminRateLimit() {
+        return adminRateLimit;
+    }
+
+    public void setAdminRateLimit(double adminRateLimit) {
+        this.adminRateLimit = adminRateLimit;
+    }
+
+    public int getAdminRateBurst() {
+        return adminRateBurst;
+    }
+
+    public void setAdminRateBurst(int adminRateBurst) {
+        this.adminRateBurst = adminRateBurst;
+    }
+
+    public int getAdminMaxConcurrentRequests() {
+        return adminMaxConcurrentRequests;
+    }
+
+    public void setAdminMaxConcurrentRequests(int adminMaxConcurrentRequests) {
+        this.adminMaxConcurrentRequests = adminMaxConcurrentRequests;
+    }
+
+    public long getAdminQueueTimeout() {
+        return adminQueueTimeout;
+    }
+
+    public void setAdminQueueTimeout(long adminQueueTimeout) {
+        this.adminQueueTimeout = adminQueueTimeout;
+    }
+
+    public int getAdminRetries() {
+        return adminRetries;
+    }
+
+    public void setAdminRetries(int adminRetries) {
+        this.adminRetries = adminRetries;
+    }
+
+    public long getAdminRetryDelay() {
+        return adminRetryDelay;
+    }
+
+    public void setAdminRetryDelay(long adminRetryDelay) {
+        this.adminRetryDelay = adminRetryDelay;
+    }
+
+    public long getAdminRetryMaxDelay() {
+        return adminRetryMaxDelay;
+    }
+
+    public void setAdminRetryMaxDelay(long adminRetryMaxDelay) {
+        this.adminRetryMaxDelay = adminRetryMaxDelay;
+    }
+
+    public int getAdminCircuitFailures() {
+        return adminCircuitFailures;
+    }
+
+    public void setAdminCircuitFailures(int adminCircuitFailures) {
+        this.adminCircuitFailures = adminCircuitFailures;
+    }
+
+    public long getAdminCircuitResetTimeout() {
+        return adminCircuitResetTimeout;
+    }
+
+    public void setAdminCircuitResetTimeout(long adminCircuitResetTimeout) {
+        this.adminCircuitResetTimeout = adminCircuitResetTimeout;
+    }
+
     public int getUserListingBatchSize() {
         return userListingBatchSize;
     }
@@ -116,6 +553,198 @@ public class KeycloakConfig {
         this.userListingBatchSize = userListingBatchSize;
     }
 
+    public boolean isUserListingAdaptive() {
+        return userListingAdaptive;
+    }
+
+    public void setUserListingAdaptive(boolean userListingAdaptive) {
+        this.userListingAdaptive = userListingAdaptive;
+    }
+
+    public int getUserListingBatchSizeMin() {
+        return userListingBatchSizeMin;
+    }
+
+    public void setUserListingBatchSizeMin(int userListingBatchSizeMin) {
+        this.userListingBatchSizeMin = userListingBatchSizeMin;
+    }
+
+    public int getUserListingBatchSizeMax() {
+        return userListingBatchSizeMax;
+    }
+
+    public void setUserListingBatchSizeMax(int userListingBatchSizeMax) {
+        this.userListingBatchSizeMax = userListingBatchSizeMax;
+    }
+
+    public long getUserListingTargetLatency() {
+        return userListingTargetLatency;
+    }
+
+    public void setUserListingTargetLatency(long userListingTargetLatency) {
+        this.userListingTargetLatency = userListingTargetLatency;
+    }
+
+    public long getUserListingMaxPayload() {
+        return userListingMaxPayload;
+    }
+
+    public void setUserListingMaxPayload(long userListingMaxPayload) {
+        this.userListingMaxPayload = userListingMaxPayload;
+    }
+
+    public long getGroupTreeCacheTtl() {
+        return groupTreeCacheTtl;
+    }
+
+    public void setGroupTreeCacheTtl(long groupTreeCacheTtl) {
+        this.groupTreeCacheTtl = groupTreeCacheTtl;
+    }
+
+    public boolean isGroupPartialExport() {
+        return groupPartialExport;
+    }
+
+    public void setGroupPartialExport(boolean groupPartialExport) {
+        this.groupPartialExport = groupPartialExport;
+    }
+
+    public int getGroupLoadParallelism() {
+        return groupLoadParallelism;
+    }
+
+    public void setGroupLoadParallelism(int groupLoadParallelism) {
+        this.groupLoadParallelism = groupLoadParallelism;
+    }
+
+    public boolean isSynchronizationFingerprints() {
+        return synchronizationFingerprints;
+    }
+
+    public void setSynchronizationFingerprints(boolean synchronizationFingerprints) {
+        this.synchronizationFingerprints = synchronizationFingerprints;
+    }
+
+    public boolean isSynchronizationSuppressUnchanged() {
+        return synchronizationSuppressUnchanged;
+    }
+
+    public void setSynchronizationSuppressUnchanged(boolean synchronizationSuppressUnchanged) {
+        this.synchronizationSuppressUnchanged = synchronizationSuppressUnchanged;
+    }
+
+    public long getSynchronizationSuppressUnchangedRepairInterval() {
+        return synchronizationSuppressUnchangedRepairInterval;
+    }
+
+    public void setSynchronizationSuppressUnchangedRepairInterval(long synchronizationSuppressUnchangedRepairInterval) {
+        this.synchronizationSuppressUnchangedRepairInterval = synchronizationSuppressUnchangedRepairInterval;
+    }
+
+    public int getSynchronizationParallelism() {
+        return synchronizationParallelism;
+    }
+
+    public void setSynchronizationParallelism(int synchronizationParallelism) {
+        this.synchronizationParallelism = synchronizationParallelism;
+    }
+
+    public int getSynchronizationRealmParallelism() {
+        return synchronizationRealmParallelism;
+    }
+
+    public void setSynchronizationRealmParallelism(int synchronizationRealmParallelism) {
+        this.synchronizationRealmParallelism = synchronizationRealmParallelism;
+    }
+
+    public String getSynchronizationEventsSecret() {
+        return synchronizationEventsSecret;
+    }
+
+    public void setSynchronizationEventsSecret(String synchronizationEventsSecret) {
+        this.synchronizationEventsSecret = synchronizationEventsSecret;
+    }
+
+    public long getSynchronizationEventsDelay() {
+        return synchronizationEventsDelay;
+    }
+
+    public void setSynchronizationEventsDelay(long synchronizationEventsDelay) {
+        this.synchronizationEventsDelay = synchronizationEventsDelay;
+    }
+
+    public int getSynchronizationEventsBatchSize() {
+        return synchronizationEventsBatchSize;
+    }
+
+    public void setSynchronizationEventsBatchSize(int synchronizationEventsBatchSize) {
+        this.synchronizationEventsBatchSize = synchronizationEventsBatchSize;
+    }
+
+    public boolean isSynchronizationEventsWithOtherRegistries() {
+        return synchronizationEventsWithOtherRegistries;
+    }
+
+    public void setSynchronizationEventsWithOtherRegistries(boolean synchronizationEventsWithOtherRegistries) {
+        this.synchronizationEventsWithOtherRegistries = synchronizationEventsWithOtherRegistries;
+    }
+
+    public boolean isSynchronizationSharded() {
+        return synchronizationSharded;
+    }
+
+    public void setSynchronizationSharded(boolean synchronizationSharded) {
+        this.synchronizationSharded = synchronizationSharded;
+    }
+
+    public int getSynchronizationShardUsers() {
+        return synchronizationShardUsers;
+    }
+
+    public void setSynchronizationShardUsers(int synchronizationShardUsers) {
+        this.synchronizationShardUsers = synchronizationShardUsers;
+    }
+
+    public int getSynchronizationShardGroups() {
+        return synchronizationShardGroups;
+    }
+
+    public void setSynchronizationShardGroups(int synchronizationShardGroups) {
+        this.synchronizationShardGroups = synchronizationShardGroups;
+    }
+
+    public long getSynchronizationShardTimeout() {
+        return synchronizationShardTimeout;
+    }
+
+    public void setSynchronizationShardTimeout(long synchronizationShardTimeout) {
+        this.synchronizationShardTimeout = synchronizationShardTimeout;
+    }
+
+    public boolean isSynchronizationCheckpoints() {
+        return synchronizationCheckpoints;
+    }
+
+    public void setSynchronizationCheckpoints(boolean synchronizationCheckpoints) {
+        this.synchronizationCheckpoints = synchronizationCheckpoints;
+    }
+
+    public long getSynchronizationCheckpointsMaxAge() {
+        return synchronizationCheckpointsMaxAge;
+    }
+
+    public void setSynchronizationCheckpointsMaxAge(long synchronizationCheckpointsMaxAge) {
+        this.synchronizationCheckpointsMaxAge = synchronizationCheckpointsMaxAge;
+    }
+
+    public int getUserListingOverlap() {
+        return userListingOverlap;
+    }
+
+    public void setUserListingOverlap(int userListingOverlap) {
+        this.userListingOverlap = userListingOverlap;
+    }
+
     public Set<String> getAuthZones() {
         return authZones;
     }
@@ -156,6 +785,14 @@ public class KeycloakConfig {
         this.userAspect = QName.createQName(userAspect);
     }
 
+    public KeycloakMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(KeycloakMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public ServiceRegistry getServiceRegistry() {
         return serviceRegistry;
     }
@@ -0,0 +1,190 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.OAuthErrorException;
+import org.keycloak.representations.idm.OAuth2ErrorRepresentation;
+import org.keycloak.util.JsonSerialization;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * checks a user's credentials with a single call to the token endpoint of a keycloak realm
+ * (resource owner password credentials grant) through a pooled http client.
+ * <p>
+ * Unlike the keycloak admin client, no client object graph is built per attempt: the pooled
+ * connections are kept alive between logins and closed when the subsystem is stopped.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakDirectGrantAuthenticator implements DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    /**
+     * connector's configuration
+     */
+    private KeycloakConfig config;
+    /**
+     * pooled http client, built on first use
+     */
+    private volatile CloseableHttpClient httpClient;
+
+    /**
+     * authenticates a user against a keycloak realm via the configured keycloak authentication client
+     *
+     * @param realm the name of the realm the user is being authenticated against.
+     * @param userName the username of the authenticating user.
+     * @param password the password of the authenticating user.
+     * @return true if the realm granted a token to the user, false if it rejected the credentials
+     * @throws IOException if keycloak could not be reached or answered with an unexpected error
+     */
+    public boolean authenticate(String realm, String userName, char[] password) throws IOException {
+        return execute(realm, newRequest(realm, userName, password));
+    }
+
+    /**
+     * sends a request built by {@link #newRequest(String, String, char[])}.
+     * The request can be aborted from another thread while it is running
+     *
+     * @param realm the name of the realm the user is being authenticated against.
+     * @param request the password grant request
+     * @return true if the realm granted a token to the user, false if it rejected the credentials
+     * @throws IOException if keycloak could not be reached, answered with an unexpected error or the request was aborted
+     */
+    boolean execute(String realm, HttpPost request) throws IOException {
+        long start = System.nanoTime();
+        int status = 0;
+        try (CloseableHttpResponse response = getHttpClient().execute(request)) {
+            status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if(status == 200) {
+                EntityUtils.consume(entity);
+                return true;
+            }
+            String body = entity == null ? null : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+            if((status == 400 || status == 401) && OAuthErrorException.INVALID_GRANT.equals(getError(body))) {
+                return false;
+            }
+            throw new IOException(String.format("Keycloak realm \"%s\" answered with status %d: %s", realm, status, body));
+        } finally {
+            config.getMetrics().request(KeycloakMetrics.endpoint(request.getMethod(), request.getURI().getPath()),
+                    status, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param realm the name of the realm the user is being authenticated against.
+     * @param userName the username of the authenticating user.
+     * @param password the password of the authenticating user.
+     * @return the password grant request for the token endpoint of the realm
+     */
+    HttpPost newRequest(String realm, String userName, char[] password) {
+        List<NameValuePair> form = new ArrayList<>();
+        form.add(new BasicNameValuePair(OAuth2Constants.GRANT_TYPE, OAuth2Constants.PASSWORD));
+        form.add(new BasicNameValuePair(OAuth2Constants.CLIENT_ID, config.getAuthenticationClient()));
+        form.add(new BasicNameValuePair("username", userName));
+        form.add(new BasicNameValuePair(OAuth2Constants.PASSWORD, String.valueOf(password)));
+        HttpPost request = new HttpPost(getTokenEndpoint(realm));
+        request.setEntity(new UrlEncodedFormEntity(form, StandardCharsets.UTF_8));
+        return request;
+    }
+
+    private String getTokenEndpoint(String realm) {
+        String url = config.getUrl();
+        if(url.endsWith("/"))
+            url = url.substring(0, url.length() - 1);
+        try {
+            String encodedRealm = URLEncoder.encode(realm, "UTF-8").replace("+", "%20");
+            return String.format("%s/realms/%s/protocol/openid-connect/token", url, encodedRealm);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String getError(String body) {
+        if(Utils.isEmpty(body))
+            return null;
+        try {
+            return JsonSerialization.readValue(body, OAuth2ErrorRepresentation.class).getError();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private CloseableHttpClient getHttpClient() {
+        CloseableHttpClient result = httpClient;
+        if(result == null) {
+            synchronized (this) {
+                result = httpClient;
+                if(result == null) {
+                    result = build();
+                    httpClient = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private CloseableHttpClient build() {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Building keycloak authentication http client with a pool of %d connections",
+                    config.getAuthenticationConnectionPoolSize()));
+        }
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(config.getAuthenticationConnectionPoolSize());
+        connectionManager.setDefaultMaxPerRoute(config.getAuthenticationConnectionPoolSize());
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout((int) config.getAuthenticationConnectionTimeout())
+                .setConnectionRequestTimeout((int) config.getAuthenticationConnectionTimeout())
+                .setSocketTimeout((int) config.getAuthenticationSocketTimeout())
+                .build();
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .disableCookieManagement()
+                .build();
+    }
+
+    /**
+     * closes the pooled http client, if it was built
+     */
+    @Override
+    public synchronized void destroy() {
+        if(httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                logger.error("Error closing keycloak authentication http client", e);
+            }
+            httpClient = null;
+        }
+    }
+
+    /**
+     * Set the configuration used to reach the keycloak token endpoints
+     *
+     * @param config the connector's configuration
+     */
+    public void setConfig(KeycloakConfig config) {
+        this.config = config;
+    }
+}
@@ -0,0 +1,224 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.resource.GroupsResource;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.RealmRepresentation;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * immutable snapshot of the group hierarchy of a keycloak realm, with the attributes
+ * the connector needs for each group.
+ *
+ * @since   1.0
+ */
+public final class KeycloakGroupTree {
+
+    /**
+     * realm of the groups
+     */
+    private final String realm;
+    /**
+     * groups by keycloak id, parents before their subgroups
+     */
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    /**
+     * time the snapshot was loaded, as returned by {@link System#nanoTime()}
+     */
+    private final long loaded = System.nanoTime();
+    /**
+     * number of keycloak requests made to load the snapshot
+     */
+    private int requestCount;
+
+    private KeycloakGroupTree(String realm) {
+        this.realm = realm;
+    }
+
+    /**
+     * loads the whole group hierarchy of a realm with a single partial export of the realm,
+     * that returns all the groups with their attributes
+     *
+     * @param keycloak the keycloak admin client
+     * @param realm the realm whose groups are loaded
+     * @param emailContributorAttribute name of the group attribute that makes its group an email contributor, if true
+     * @return the group hierarchy of the realm
+     * @throws javax.ws.rs.WebApplicationException if the admin client is not allowed to export the realm
+     */
+    static KeycloakGroupTree export(Keycloak keycloak, String realm, String emailContributorAttribute) {
+        KeycloakGroupTree tree = new KeycloakGroupTree(realm);
+        tree.requestCount++;
+        RealmRepresentation realmRepresentation = keycloak.realm(realm).partialExport(true, false);
+        List<GroupRepresentation> groupRepresentations = realmRepresentation.getGroups();
+        Map<String, Boolean> emailContributors = new HashMap<>();
+        collectEmailContributors(groupRepresentations == null ? Collections.emptyList() : groupRepresentations,
+                emailContributorAttribute, emailContributors);
+        tree.collect(null, groupRepresentations, emailContributors);
+        return tree;
+    }
+
+    /**
+     * loads the whole group hierarchy of a realm with a single request, then the attributes of each group.
+     * The attributes are read in parallel on the executor, if any
+     *
+     * @param keycloak the keycloak admin client
+     * @param realm the realm whose groups are loaded
+     * @param emailContributorAttribute name of the group attribute that makes its group an email contributor, if true
+     * @param executor reads the attributes of the groups, null to read them one after another
+     * @return the group hierarchy of the realm
+     */
+    static KeycloakGroupTree load(Keycloak keycloak, String realm, String emailContributorAttribute, ExecutorService executor) {
+        KeycloakGroupTree tree = new KeycloakGroupTree(realm);
+        GroupsResource groupsResource = keycloak.realm(realm).groups();
+        tree.requestCount++;
+        List<GroupRepresentation> groupRepresentations = groupsResource.groups();
+        List<GroupRepresentation> allGroupRepresentations = new ArrayList<>();
+        flatten(groupRepresentations, allGroupRepresentations);
+        Map<String, Future<Boolean>> futures = new LinkedHashMap<>();
+        for (GroupRepresentation groupRepresentation : allGroupRepresentations) {
+            Callable<Boolean> emailContributor = () -> Utils.getBooleanAttribute(
+                    groupsResource.group(groupRepresentation.getId()).toRepresentation().getAttributes(), emailContributorAttribute);
+            FutureTask<Boolean> task = new FutureTask<>(emailContributor);
+            if(executor == null)
+                task.run();
+            else
+                executor.execute(task);
+            futures.put(groupRepresentation.getId(), task);
+        }
+        Map<String, Boolean> emailContributors = new HashMap<>();
+        try {
+            for (Map.Entry<String, Future<Boolean>> future : futures.entrySet()) {
+                emailContributors.put(future.getKey(), future.getValue().get());
+                tree.requestCount++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("Interrupted while loading the groups of keycloak realm \"%s\"", realm), e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(String.format("Cannot load the groups of keycloak realm \"%s\"", realm), e.getCause());
+        } finally {
+            for (Future<Boolean> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+        tree.collect(null, groupRepresentations, emailContributors);
+        return tree;
+    }
+
+    private static void flatten(List<GroupRepresentation> groupRepresentations, List<GroupRepresentation> all) {
+        for (GroupRepresentation groupRepresentation : groupRepresentations) {
+            all.add(groupRepresentation);
+            if(groupRepresentation.getSubGroups() != null)
+                flatten(groupRepresentation.getSubGroups(), all);
+        }
+    }
+
+    private static void collectEmailContributors(List<GroupRepresentation> groupRepresentations, String emailContributorAttribute,
+                                                 Map<String, Boolean> emailContributors) {
+        List<GroupRepresentation> allGroupRepresentations = new ArrayList<>();
+        flatten(groupRepresentations, allGroupRepresentations);
+        for (GroupRepresentation groupRepresentation : allGroupRepresentations) {
+            emailContributors.put(groupRepresentation.getId(),
+                    Utils.getBooleanAttribute(groupRepresentation.getAttributes(), emailContributorAttribute));
+        }
+    }
+
+    private void collect(Node parent, List<GroupRepresentation> groupRepresentations, Map<String, Boolean> emailContributors) {
+        if(groupRepresentations == null)
+            return;
+        for (GroupRepresentation groupRepresentation : groupRepresentations) {
+            boolean emailContributor = Boolean.TRUE.equals(emailContributors.get(groupRepresentation.getId()));
+            Node node = new Node(groupRepresentation.getId(), groupRepresentation.getName(),
+                    parent == null ? null : parent.id, emailContributor);
+            nodes.put(node.id, node);
+            if(parent != null)
+                parent.childIds.add(node.id);
+            collect(node, groupRepresentation.getSubGroups(), emailContributors);
+        }
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    /**
+     * @param id keycloak group id
+     * @return the group, null if not in the snapshot
+     */
+    public Node get(String id) {
+        return nodes.get(id);
+    }
+
+    /**
+     * @return all the groups of the realm, parents before their subgroups
+     */
+    public Collection<Node> getNodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    /**
+     * @return number of keycloak requests made to load the snapshot
+     */
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @param timeToLive seconds a snapshot is considered up to date
+     * @return true if the snapshot was loaded more than timeToLive seconds ago
+     */
+    boolean isExpired(long timeToLive) {
+        return System.nanoTime() - loaded > timeToLive * 1000000000L;
+    }
+
+    /**
+     * a keycloak group
+     */
+    public static final class Node {
+        private final String id;
+        private final String name;
+        private final String parentId;
+        private final boolean emailContributor;
+        private final List<String> childIds = new ArrayList<>();
+
+        private Node(String id, String name, String parentId, boolean emailContributor) {
+            this.id = id;
+            this.name = name;
+            this.parentId = parentId;
+            this.emailContributor = emailContributor;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return keycloak id of the parent group, null for a top level group
+         */
+        public String getParentId() {
+            return parentId;
+        }
+
+        /**
+         * @return true if the group is a member of the alfresco email contributors group
+         */
+        public boolean isEmailContributor() {
+            return emailContributor;
+        }
+
+        /**
+         * @return keycloak ids of the subgroups
+         */
+        public List<String> getChildIds() {
+            return Collections.unmodifiableList(childIds);
+        }
+    }
+}
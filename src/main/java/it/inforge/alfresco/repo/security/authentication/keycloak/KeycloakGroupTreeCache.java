@@ -0,0 +1,171 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.ForbiddenException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * per realm cache of the {@link KeycloakGroupTree}s, shared by the logins of the subsystem.
+ * <p>
+ * A snapshot older than {@link KeycloakConfig#getGroupTreeCacheTtl()} seconds is still returned,
+ * while a fresh one is loaded in background: only the first login of a realm waits for its groups.
+ * Full synchronizations always load the hierarchy and refresh the cache with it.
+ * </p>
+ * <p>
+ * A realm whose export is forbidden to the admin client is then always loaded one group at a time;
+ * after another client error only that load is. Server errors are not retried with the slower walk.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakGroupTreeCache implements DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    /**
+     * connector's configuration
+     */
+    private KeycloakConfig config;
+    /**
+     * provider of the shared keycloak admin client
+     */
+    private KeycloakAdminClientProvider adminClientProvider;
+
+    private final ConcurrentMap<String, KeycloakGroupTree> trees = new ConcurrentHashMap<>();
+    /**
+     * realms whose group hierarchy is being loaded in background
+     */
+    private final ConcurrentMap<String, Boolean> refreshing = new ConcurrentHashMap<>();
+    private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "keycloak-group-tree-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * reads the attributes of the groups when the realms cannot be exported, created on first use
+     */
+    private volatile ExecutorService loadExecutor;
+    /**
+     * realms the admin client is not allowed to export
+     */
+    private final Set<String> exportForbidden = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param realm keycloak realm
+     * @return the cached group hierarchy of the realm, loaded now if never loaded before
+     */
+    public KeycloakGroupTree get(String realm) {
+        KeycloakGroupTree tree = trees.get(realm);
+        if(tree == null)
+            return reload(realm);
+        if(tree.isExpired(config.getGroupTreeCacheTtl()))
+            refreshInBackground(realm);
+        return tree;
+    }
+
+    /**
+     * loads the group hierarchy of a realm and caches it
+     *
+     * @param realm keycloak realm
+     * @return the group hierarchy of the realm
+     */
+    public KeycloakGroupTree reload(String realm) {
+        KeycloakGroupTree tree = null;
+        if(config.isGroupPartialExport() && !exportForbidden.contains(realm)) {
+            try {
+                tree = KeycloakGroupTree.export(adminClientProvider.getKeycloak(), realm, config.getEmailContributorAttribute());
+            } catch (ForbiddenException e) {
+                exportForbidden.add(realm);
+                logger.warn(String.format("Cannot export the groups of keycloak realm \"%s\" (%s): they will be loaded one at a time",
+                        realm, e.getMessage()));
+            } catch (ClientErrorException e) {
+                // the many requests of the walk would not help a rate limited export, nor server errors, that propagate
+                if(e.getResponse().getStatus() == 429)
+                    throw e;
+                logger.warn(String.format("Cannot export the groups of keycloak realm \"%s\" (%s): loading them one at a time",
+                        realm, e.getMessage()));
+            }
+        }
+        if(tree == null)
+            tree = KeycloakGroupTree.load(adminClientProvider.getKeycloak(), realm, config.getEmailContributorAttribute(), getLoadExecutor());
+        trees.put(realm, tree);
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Loaded %d groups of keycloak realm \"%s\" with %d requests",
+                    tree.getNodes().size(), realm, tree.getRequestCount()));
+        }
+        return tree;
+    }
+
+    private ExecutorService getLoadExecutor() {
+        int parallelism = config.getGroupLoadParallelism();
+        if(parallelism <= 1)
+            return null;
+        if(loadExecutor == null) {
+            synchronized (this) {
+                if(loadExecutor == null) {
+                    AtomicInteger threadCount = new AtomicInteger();
+                    loadExecutor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                        Thread thread = new Thread(runnable, "keycloak-group-tree-load-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return loadExecutor;
+    }
+
+    private void refreshInBackground(String realm) {
+        if(refreshing.putIfAbsent(realm, Boolean.TRUE) != null)
+            return;
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    reload(realm);
+                } catch (Exception e) {
+                    logger.warn(String.format("Cannot refresh the groups of keycloak realm \"%s\"", realm), e);
+                } finally {
+                    refreshing.remove(realm);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(realm);
+        }
+    }
+
+    /**
+     * empties the cache
+     */
+    public void clear() {
+        trees.clear();
+        exportForbidden.clear();
+    }
+
+    /**
+     * stops the background refreshes
+     */
+    @Override
+    public void destroy() {
+        refreshExecutor.shutdownNow();
+        if(loadExecutor != null)
+            loadExecutor.shutdownNow();
+    }
+
+    public void setConfig(KeycloakConfig config) {
+        this.config = config;
+    }
+
+    public void setAdminClientProvider(KeycloakAdminClientProvider adminClientProvider) {
+        this.adminClientProvider = adminClientProvider;
+    }
+}
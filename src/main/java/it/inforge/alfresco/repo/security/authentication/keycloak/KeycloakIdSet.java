@@ -0,0 +1,111 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * compact set of keycloak ids.
+ * <p>
+ * The ids keycloak generates are lower case UUIDs: they are kept as two longs in an open addressing table,
+ * 16 bytes each instead of the hundred of a string in a hash set. The other ids, as those of the federated users,
+ * are kept as strings. The set is not thread safe.
+ * </p>
+ *
+ * @since   1.0
+ */
+final class KeycloakIdSet {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * most and least significant bits of each UUID, in consecutive slots: 0, 0 for an empty slot
+     */
+    private long[] table = new long[INITIAL_CAPACITY * 2];
+    private int uuidCount;
+    /**
+     * true if the nil UUID, that cannot be told from an empty slot, was added
+     */
+    private boolean nilUuid;
+    private final Set<String> others = new HashSet<>();
+
+    /**
+     * @param id keycloak id
+     * @return true if the id was not in the set
+     */
+    boolean add(String id) {
+        if(!isUuid(id))
+            return others.add(id);
+        long mostSigBits = parseHex(id, 0, 8) << 32 | parseHex(id, 9, 13) << 16 | parseHex(id, 14, 18);
+        long leastSigBits = parseHex(id, 19, 23) << 48 | parseHex(id, 24, 36);
+        if(mostSigBits == 0 && leastSigBits == 0) {
+            boolean added = !nilUuid;
+            nilUuid = true;
+            return added;
+        }
+        if((uuidCount + 1) * 4 > table.length)
+            rehash();
+        if(!insert(table, mostSigBits, leastSigBits))
+            return false;
+        uuidCount++;
+        return true;
+    }
+
+    /**
+     * @return number of ids in the set
+     */
+    int size() {
+        return uuidCount + (nilUuid ? 1 : 0) + others.size();
+    }
+
+    /**
+     * @return true if the pair was not in the table
+     */
+    private static boolean insert(long[] table, long mostSigBits, long leastSigBits) {
+        int mask = table.length / 2 - 1;
+        long hash = mostSigBits ^ leastSigBits;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while(table[slot * 2] != 0 || table[slot * 2 + 1] != 0) {
+            if(table[slot * 2] == mostSigBits && table[slot * 2 + 1] == leastSigBits)
+                return false;
+            slot = (slot + 1) & mask;
+        }
+        table[slot * 2] = mostSigBits;
+        table[slot * 2 + 1] = leastSigBits;
+        return true;
+    }
+
+    private void rehash() {
+        long[] rehashed = new long[table.length * 2];
+        for (int slot = 0; slot < table.length; slot += 2) {
+            if(table[slot] != 0 || table[slot + 1] != 0)
+                insert(rehashed, table[slot], table[slot + 1]);
+        }
+        table = rehashed;
+    }
+
+    /**
+     * @return true if the id is a UUID in its canonical, lower case, form
+     */
+    private static boolean isUuid(String id) {
+        if(id.length() != 36)
+            return false;
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            if(i == 8 || i == 13 || i == 18 || i == 23) {
+                if(c != '-')
+                    return false;
+            } else if((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String id, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value << 4 | Character.digit(id.charAt(i), 16);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,306 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * compact model of the groups to synchronize and of their members.
+ * <p>
+ * Authority names are dictionary encoded: each distinct name is stored once and identified by an int,
+ * so a user member of many groups costs an int per group. The members of a group are kept in an int array,
+ * or in a bit set of the authority ids once that is smaller, as for a group containing all the users.
+ * Groups are identified by their index, in the order they were added. Keycloak groups with the same name under
+ * different parents are the same alfresco group: the group keeps the keycloak id of each of them.
+ * The model is not thread safe.
+ * </p>
+ *
+ * @since   1.0
+ */
+final class KeycloakMembershipModel {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * authority names by id
+     */
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int nameCount;
+    /**
+     * open addressing table of the names: each slot holds a name id plus one, or 0 if empty
+     */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+    /**
+     * group index by name id, -1 for the names that are not groups
+     */
+    private int[] groupByName = newIntArray(INITIAL_CAPACITY, -1);
+
+    private int groupCount;
+    private int[] groupNames = new int[INITIAL_CAPACITY];
+    private String[] groupRealms = new String[INITIAL_CAPACITY];
+    private String[] groupSourceIds = new String[INITIAL_CAPACITY];
+    /**
+     * keycloak ids of the groups after the first one, null for the groups with a single id
+     */
+    private String[][] groupExtraSourceIds = new String[INITIAL_CAPACITY][];
+    private String[] groupDisplayNames = new String[INITIAL_CAPACITY];
+    private Members[] groupMembers = new Members[INITIAL_CAPACITY];
+
+    /**
+     * @param authorityName alfresco authority name
+     * @return id of the name, added to the dictionary if missing
+     */
+    int intern(String authorityName) {
+        int mask = table.length - 1;
+        int slot = hash(authorityName) & mask;
+        while(table[slot] != 0) {
+            int id = table[slot] - 1;
+            if(names[id].equals(authorityName))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+        if(nameCount == names.length) {
+            names = Arrays.copyOf(names, nameCount * 2);
+            int[] grown = newIntArray(nameCount * 2, -1);
+            System.arraycopy(groupByName, 0, grown, 0, nameCount);
+            groupByName = grown;
+        }
+        int id = nameCount++;
+        names[id] = authorityName;
+        table[slot] = id + 1;
+        if(nameCount * 2 > table.length)
+            rehash();
+        return id;
+    }
+
+    /**
+     * @param authorityName alfresco authority name
+     * @return id of the name, -1 if not in the dictionary
+     */
+    private int find(String authorityName) {
+        int mask = table.length - 1;
+        int slot = hash(authorityName) & mask;
+        while(table[slot] != 0) {
+            int id = table[slot] - 1;
+            if(names[id].equals(authorityName))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash() {
+        int[] rehashed = new int[table.length * 2];
+        int mask = rehashed.length - 1;
+        for (int id = 0; id < nameCount; id++) {
+            int slot = hash(names[id]) & mask;
+            while(rehashed[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            rehashed[slot] = id + 1;
+        }
+        table = rehashed;
+    }
+
+    private static int hash(String name) {
+        int hash = name.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return number of distinct authority names
+     */
+    int getNameCount() {
+        return nameCount;
+    }
+
+    /**
+     * adds a group, without members
+     *
+     * @param authorityName alfresco authority name of the group
+     * @param realm realm of the group
+     * @param sourceId id of the group in keycloak, or in alfresco for a group not imported from keycloak
+     * @param displayName display name of the group
+     * @return index of the group
+     * @throws IllegalArgumentException if a group with the same name was already added
+     */
+    int addGroup(String authorityName, String realm, String sourceId, String displayName) {
+        int name = intern(authorityName);
+        if(groupByName[name] >= 0)
+            throw new IllegalArgumentException(String.format("Group \"%s\" already added", authorityName));
+        if(groupCount == groupNames.length) {
+            int capacity = groupCount * 2;
+            groupNames = Arrays.copyOf(groupNames, capacity);
+            groupRealms = Arrays.copyOf(groupRealms, capacity);
+            groupSourceIds = Arrays.copyOf(groupSourceIds, capacity);
+            groupExtraSourceIds = Arrays.copyOf(groupExtraSourceIds, capacity);
+            groupDisplayNames = Arrays.copyOf(groupDisplayNames, capacity);
+            groupMembers = Arrays.copyOf(groupMembers, capacity);
+        }
+        int group = groupCount++;
+        groupNames[group] = name;
+        groupRealms[group] = realm;
+        groupSourceIds[group] = sourceId;
+        groupDisplayNames[group] = displayName;
+        groupMembers[group] = new Members();
+        groupByName[name] = group;
+        return group;
+    }
+
+    /**
+     * adds the keycloak id of another group with the same name
+     *
+     * @param group index of the group
+     * @param sourceId id of the group in keycloak
+     * @return false if the group already has the id
+     */
+    boolean addSourceId(int group, String sourceId) {
+        if(groupSourceIds[group].equals(sourceId))
+            return false;
+        String[] extraSourceIds = groupExtraSourceIds[group];
+        if(extraSourceIds == null) {
+            groupExtraSourceIds[group] = new String[] {sourceId};
+            return true;
+        }
+        for (String extraSourceId : extraSourceIds) {
+            if(extraSourceId.equals(sourceId))
+                return false;
+        }
+        extraSourceIds = Arrays.copyOf(extraSourceIds, extraSourceIds.length + 1);
+        extraSourceIds[extraSourceIds.length - 1] = sourceId;
+        groupExtraSourceIds[group] = extraSourceIds;
+        return true;
+    }
+
+    /**
+     * @param authorityName alfresco authority name
+     * @return index of the group, -1 if there is no such group
+     */
+    int getGroup(String authorityName) {
+        int name = find(authorityName);
+        return name < 0 ? -1 : groupByName[name];
+    }
+
+    /**
+     * @return number of groups
+     */
+    int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * @param group index of the group
+     * @param authorityName alfresco authority name of the user or group to add to the group
+     */
+    void addMember(int group, String authorityName) {
+        groupMembers[group].add(intern(authorityName));
+    }
+
+    String getAuthorityName(int group) {
+        return names[groupNames[group]];
+    }
+
+    String getRealm(int group) {
+        return groupRealms[group];
+    }
+
+    /**
+     * @return the first id of the group
+     */
+    String getSourceId(int group) {
+        return groupSourceIds[group];
+    }
+
+    /**
+     * @return all the ids of the group, the first one first
+     */
+    List<String> getSourceIds(int group) {
+        String[] extraSourceIds = groupExtraSourceIds[group];
+        if(extraSourceIds == null)
+            return Collections.singletonList(groupSourceIds[group]);
+        List<String> sourceIds = new ArrayList<>(extraSourceIds.length + 1);
+        sourceIds.add(groupSourceIds[group]);
+        Collections.addAll(sourceIds, extraSourceIds);
+        return sourceIds;
+    }
+
+    String getDisplayName(int group) {
+        return groupDisplayNames[group];
+    }
+
+    boolean hasMembers(int group) {
+        return !groupMembers[group].isEmpty();
+    }
+
+    /**
+     * @param group index of the group
+     * @param action called with the authority name of each member, once per member in ascending id order
+     * if the members are in a bit set, in the order they were added otherwise, duplicates included
+     */
+    void forEachMember(int group, Consumer<String> action) {
+        groupMembers[group].forEach(id -> action.accept(names[id]));
+    }
+
+    private static int[] newIntArray(int length, int value) {
+        int[] array = new int[length];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    /**
+     * ids of the members of a group
+     */
+    private static final class Members {
+        private static final int[] EMPTY = new int[0];
+        /**
+         * smallest number of members kept in a bit set
+         */
+        private static final int MIN_BITSET_SIZE = 64;
+
+        private int[] ids = EMPTY;
+        private int size;
+        /**
+         * highest id in the array
+         */
+        private int maxId = -1;
+        private BitSet bits;
+
+        void add(int id) {
+            if(bits != null) {
+                bits.set(id);
+                return;
+            }
+            if(size == ids.length)
+                ids = Arrays.copyOf(ids, Math.max(4, size + (size >> 1)));
+            ids[size++] = id;
+            maxId = Math.max(maxId, id);
+            // an int array takes 32 bits per member, a bit set one bit per id up to the highest
+            if(size >= MIN_BITSET_SIZE && (long) size * Integer.SIZE > maxId) {
+                bits = new BitSet();
+                for (int i = 0; i < size; i++) {
+                    bits.set(ids[i]);
+                }
+                ids = EMPTY;
+                size = 0;
+            }
+        }
+
+        boolean isEmpty() {
+            return bits == null ? size == 0 : bits.isEmpty();
+        }
+
+        void forEach(IntConsumer action) {
+            if(bits != null) {
+                bits.stream().forEach(action);
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                action.accept(ids[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * measures of the logins, synchronizations and keycloak requests of a keycloak subsystem.
+ * <p>
+ * The measures are kept in memory and exposed by a JMX MBean named
+ * <code>it.inforge.alfresco:type=KeycloakMetrics,id=&lt;subsystem id&gt;</code>, registered while the subsystem runs.
+ * Each measure is also forwarded to the {@link KeycloakMetricsRegistry}s set in the registries property.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakMetrics implements KeycloakMetricsRegistry, KeycloakMetricsMXBean, InitializingBean, DisposableBean {
+
+    public static final String LOGIN = "keycloak.login";
+    public static final String LOGIN_REALM_ATTEMPTS = "keycloak.login.realm.attempts";
+    public static final String REST_REQUESTS = "keycloak.rest.requests";
+    public static final String REST_LATENCY = "keycloak.rest.latency";
+    public static final String REST_WAIT = "keycloak.rest.wait";
+    public static final String REST_RETRIES = "keycloak.rest.retries";
+    public static final String REST_REJECTED = "keycloak.rest.rejected";
+    public static final String REST_CIRCUIT = "keycloak.rest.circuit";
+    public static final String SYNC_PHASE = "keycloak.sync.phase";
+    public static final String SYNC_ENTITIES = "keycloak.sync.entities";
+    public static final String SYNC_RETURNED = "keycloak.sync.returned";
+    public static final String SYNC_DURATION = "keycloak.sync.duration";
+    public static final String SYNC_LAST_SUCCESS = "keycloak.sync.last.success";
+    public static final String SYNC_EVENTS = "keycloak.sync.events";
+    public static final String SYNC_EVENTS_BATCH = "keycloak.sync.events.batch";
+    public static final String SYNC_EVENTS_DROPPED = "keycloak.sync.events.dropped";
+    public static final String SYNC_SHARDS = "keycloak.sync.shards";
+    public static final String SYNC_PAGE_SIZE = "keycloak.sync.page.size";
+    public static final String SYNC_PAGE_THROUGHPUT = "keycloak.sync.page.throughput";
+
+    private static final Pattern ID_SEGMENT = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}|\\d+");
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    /**
+     * id of the subsystem, part of the MBean name
+     */
+    private String id;
+    /**
+     * registries the measures are forwarded to
+     */
+    private List<KeycloakMetricsRegistry> registries = Collections.emptyList();
+    private ObjectName objectName;
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> summaries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Double> gauges = new ConcurrentHashMap<>();
+
+    private volatile String lastSynchronizationStatus;
+    private volatile Date lastSynchronizationStart;
+    private volatile long lastSynchronizationDuration;
+    private volatile String lastSynchronizationError;
+
+    /**
+     * registers the MBean, replacing the one left by a previous start of the subsystem
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName(String.format("it.inforge.alfresco:type=KeycloakMetrics,id=%s", ObjectName.quote(String.valueOf(id))));
+        if(mBeanServer.isRegistered(objectName))
+            mBeanServer.unregisterMBean(objectName);
+        mBeanServer.registerMBean(this, objectName);
+    }
+
+    /**
+     * unregisters the MBean
+     */
+    @Override
+    public void destroy() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        if(objectName != null && mBeanServer.isRegistered(objectName))
+            mBeanServer.unregisterMBean(objectName);
+    }
+
+    /**
+     * @param keyValues tag names followed by their values
+     * @return the tags
+     */
+    public static Map<String, String> tags(String... keyValues) {
+        Map<String, String> tags = new TreeMap<>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            tags.put(keyValues[i], String.valueOf(keyValues[i + 1]));
+        }
+        return tags;
+    }
+
+    /**
+     * @param method http method
+     * @param path path of the request
+     * @return the endpoint of the request, with the realm and the ids replaced by placeholders
+     */
+    static String endpoint(String method, String path) {
+        StringBuilder endpoint = new StringBuilder(method).append(' ');
+        String previous = null;
+        for (String segment : path.split("/")) {
+            if(segment.isEmpty())
+                continue;
+            endpoint.append('/');
+            if("realms".equals(previous))
+                endpoint.append("{realm}");
+            else if(ID_SEGMENT.matcher(segment).matches())
+                endpoint.append("{id}");
+            else
+                endpoint.append(segment);
+            previous = segment;
+        }
+        return endpoint.toString();
+    }
+
+    /**
+     * records a request sent to keycloak
+     *
+     * @param endpoint as returned by {@link #endpoint(String, String)}
+     * @param status http status of the response, 0 if no response was received
+     * @param nanos duration of the request
+     */
+    void request(String endpoint, int status, long nanos) {
+        Map<String, String> tags = tags("endpoint", endpoint, "status", status == 0 ? "error" : String.format("%dxx", status / 100));
+        counter(REST_REQUESTS, tags, 1);
+        timer(REST_LATENCY, tags, nanos);
+    }
+
+    /**
+     * records the end of a synchronization
+     *
+     * @param start when the synchronization started
+     * @param nanos duration of the synchronization
+     * @param error the error that stopped the synchronization, null if it succeeded
+     */
+    public void synchronizationFinished(Date start, long nanos, Throwable error) {
+        lastSynchronizationStart = start;
+        lastSynchronizationDuration = TimeUnit.NANOSECONDS.toMillis(nanos);
+        lastSynchronizationStatus = error == null ? "SUCCESS" : "FAILURE";
+        lastSynchronizationError = error == null ? null : String.valueOf(error);
+        timer(SYNC_DURATION, tags("status", lastSynchronizationStatus), nanos);
+        gauge(SYNC_LAST_SUCCESS, Collections.emptyMap(), error == null ? 1 : 0);
+    }
+
+    @Override
+    public void counter(String name, Map<String, String> tags, long amount) {
+        counters.computeIfAbsent(key(name, tags), key -> new AtomicLong()).addAndGet(amount);
+        for (KeycloakMetricsRegistry registry : registries) {
+            try {
+                registry.counter(name, tags, amount);
+            } catch (RuntimeException e) {
+                logger.warn(String.format("Cannot forward counter %s", name), e);
+            }
+        }
+    }
+
+    @Override
+    public void timer(String name, Map<String, String> tags, long nanos) {
+        timers.computeIfAbsent(key(name, tags), key -> new Histogram(Histogram.MILLIS_BOUNDS)).record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        for (KeycloakMetricsRegistry registry : registries) {
+            try {
+                registry.timer(name, tags, nanos);
+            } catch (RuntimeException e) {
+                logger.warn(String.format("Cannot forward timer %s", name), e);
+            }
+        }
+    }
+
+    @Override
+    public void summary(String name, Map<String, String> tags, long value) {
+        summaries.computeIfAbsent(key(name, tags), key -> new Histogram(Histogram.COUNT_BOUNDS)).record(value);
+        for (KeycloakMetricsRegistry registry : registries) {
+            try {
+                registry.summary(name, tags, value);
+            } catch (RuntimeException e) {
+                logger.warn(String.format("Cannot forward summary %s", name), e);
+            }
+        }
+    }
+
+    @Override
+    public void gauge(String name, Map<String, String> tags, double value) {
+        gauges.put(key(name, tags), value);
+        for (KeycloakMetricsRegistry registry : registries) {
+            try {
+                registry.gauge(name, tags, value);
+            } catch (RuntimeException e) {
+                logger.warn(String.format("Cannot forward gauge %s", name), e);
+            }
+        }
+    }
+
+    private static String key(String name, Map<String, String> tags) {
+        if(tags.isEmpty())
+            return name;
+        StringBuilder key = new StringBuilder(name).append('{');
+        for (Map.Entry<String, String> tag : new TreeMap<>(tags).entrySet()) {
+            if(key.charAt(key.length() - 1) != '{')
+                key.append(',');
+            key.append(tag.getKey()).append('=').append(tag.getValue());
+        }
+        return key.append('}').toString();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((key, counter) -> values.put(key, counter.get()));
+        return values;
+    }
+
+    @Override
+    public Map<String, String> getTimers() {
+        Map<String, String> values = new TreeMap<>();
+        timers.forEach((key, histogram) -> values.put(key, histogram.toString()));
+        return values;
+    }
+
+    @Override
+    public Map<String, String> getSummaries() {
+        Map<String, String> values = new TreeMap<>();
+        summaries.forEach((key, histogram) -> values.put(key, histogram.toString()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getGauges() {
+        return new TreeMap<>(gauges);
+    }
+
+    @Override
+    public String getLastSynchronizationStatus() {
+        return lastSynchronizationStatus;
+    }
+
+    @Override
+    public Date getLastSynchronizationStart() {
+        return lastSynchronizationStart;
+    }
+
+    @Override
+    public long getLastSynchronizationDuration() {
+        return lastSynchronizationDuration;
+    }
+
+    @Override
+    public String getLastSynchronizationError() {
+        return lastSynchronizationError;
+    }
+
+    @Override
+    public void reset() {
+        counters.clear();
+        timers.clear();
+        summaries.clear();
+        gauges.clear();
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public void setRegistries(List<KeycloakMetricsRegistry> registries) {
+        this.registries = registries == null ? Collections.emptyList() : registries;
+    }
+}
@@ -0,0 +1,90 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * records in the {@link KeycloakMetrics} the count and latency of the requests sent by the keycloak admin client,
+ * by endpoint, and counts the bytes of the responses read by each thread.
+ * The requests failing without a response are recorded by the {@link KeycloakAdminEngine}.
+ *
+ * @since   1.0
+ */
+final class KeycloakMetricsFilter implements ClientRequestFilter, ClientResponseFilter {
+
+    private static final String PROP_START = KeycloakMetricsFilter.class.getName() + ".start";
+    /**
+     * bytes of the responses read by each thread since the last {@link #takeResponseBytes()}
+     */
+    private static final ThreadLocal<long[]> RESPONSE_BYTES = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final KeycloakMetrics metrics;
+
+    KeycloakMetricsFilter(KeycloakMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void filter(ClientRequestContext requestContext) {
+        requestContext.setProperty(PROP_START, System.nanoTime());
+    }
+
+    @Override
+    public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) {
+        Object start = requestContext.getProperty(PROP_START);
+        if(start == null)
+            return;
+        String endpoint = KeycloakMetrics.endpoint(requestContext.getMethod(), requestContext.getUri().getPath());
+        metrics.request(endpoint, responseContext.getStatus(), System.nanoTime() - (Long) start);
+        if(responseContext.hasEntity())
+            responseContext.setEntityStream(new CountingInputStream(responseContext.getEntityStream()));
+    }
+
+    /**
+     * @return the bytes of the responses read by the current thread since the last call
+     */
+    static long takeResponseBytes() {
+        long[] bytes = RESPONSE_BYTES.get();
+        long taken = bytes[0];
+        bytes[0] = 0;
+        return taken;
+    }
+
+    /**
+     * counts the bytes of a response as the admin client reads it
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if(read >= 0)
+                RESPONSE_BYTES.get()[0]++;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if(read > 0)
+                RESPONSE_BYTES.get()[0] += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            RESPONSE_BYTES.get()[0] += skipped;
+            return skipped;
+        }
+    }
+}
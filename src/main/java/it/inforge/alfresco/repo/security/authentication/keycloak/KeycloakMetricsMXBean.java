@@ -0,0 +1,49 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * JMX view of the {@link KeycloakMetrics} of a keycloak subsystem.
+ * Measures are keyed by name followed by their tags, such as <code>keycloak.login{realm=users,result=success}</code>.
+ *
+ * @since   1.0
+ */
+public interface KeycloakMetricsMXBean {
+
+    Map<String, Long> getCounters();
+
+    /**
+     * @return count, mean, percentiles and maximum of each timer, in milliseconds
+     */
+    Map<String, String> getTimers();
+
+    /**
+     * @return count, mean, percentiles and maximum of each distribution
+     */
+    Map<String, String> getSummaries();
+
+    Map<String, Double> getGauges();
+
+    /**
+     * @return SUCCESS or FAILURE, null if no synchronization ran since the subsystem started
+     */
+    String getLastSynchronizationStatus();
+
+    Date getLastSynchronizationStart();
+
+    /**
+     * @return duration of the last synchronization, in milliseconds
+     */
+    long getLastSynchronizationDuration();
+
+    /**
+     * @return error of the last synchronization, null if it succeeded
+     */
+    String getLastSynchronizationError();
+
+    /**
+     * forgets all the measures
+     */
+    void reset();
+}
@@ -0,0 +1,44 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import java.util.Map;
+
+/**
+ * receives the measures taken by the keycloak connector.
+ * <p>
+ * {@link KeycloakMetrics} keeps them in memory for JMX and forwards them to the registries configured
+ * in its registries property, so that an adapter to a metrics library (such as Micrometer) can be plugged
+ * into the subsystem without changing the connector.
+ * </p>
+ *
+ * @since   1.0
+ */
+public interface KeycloakMetricsRegistry {
+
+    /**
+     * @param name name of the counter
+     * @param tags dimensions of the measure
+     * @param amount added to the counter
+     */
+    void counter(String name, Map<String, String> tags, long amount);
+
+    /**
+     * @param name name of the timer
+     * @param tags dimensions of the measure
+     * @param nanos duration of the timed event
+     */
+    void timer(String name, Map<String, String> tags, long nanos);
+
+    /**
+     * @param name name of the distribution
+     * @param tags dimensions of the measure
+     * @param value sample of the distribution
+     */
+    void summary(String name, Map<String, String> tags, long value);
+
+    /**
+     * @param name name of the gauge
+     * @param tags dimensions of the measure
+     * @param value current value of the gauge
+     */
+    void gauge(String name, Map<String, String> tags, double value);
+}
@@ -0,0 +1,293 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * reads paged keycloak resources, such as the users of some realms or the members of some groups,
+ * with many requests in flight.
+ * <p>
+ * The pages of all the sources are fetched in parallel on an executor, with at most parallelism pages
+ * fetched and not yet consumed, and at most realmParallelism requests in flight for the same realm.
+ * The pages are returned in a deterministic order: the order of the sources, then the page offsets,
+ * as if they were read one after another.
+ * </p>
+ * <p>
+ * The pages of a source are planned from its count, when known, and then one page at a time
+ * while the last page read is full, so that a resource growing during the synchronization is read to the end.
+ * Each page is planned with the size the {@link KeycloakPageSizer} chooses for its realm when it is submitted,
+ * and the sizer is told how long each page took.
+ * </p>
+ *
+ * @since   1.0
+ */
+final class KeycloakPageFetcher {
+
+    private final Executor executor;
+    private final int parallelism;
+    private final int realmParallelism;
+    private final KeycloakPageSizer pageSizer;
+
+    /**
+     * @param executor runs the requests
+     * @param parallelism maximum number of pages fetched and not yet consumed
+     * @param realmParallelism maximum number of requests in flight for the same realm
+     * @param pageSizer chooses the number of elements requested with each page
+     */
+    KeycloakPageFetcher(Executor executor, int parallelism, int realmParallelism, KeycloakPageSizer pageSizer) {
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.realmParallelism = Math.max(1, realmParallelism);
+        this.pageSizer = pageSizer;
+    }
+
+    /**
+     * @param sources the paged resources to read
+     * @param <S> type of the sources
+     * @param <T> type of the elements of the pages
+     * @return iterator over the pages of the sources, fetched while it is consumed
+     */
+    <S extends Source<T>, T> Iterator<Page<S, T>> pages(List<S> sources) {
+        return new PageIterator<>(sources);
+    }
+
+    /**
+     * a paged keycloak resource
+     *
+     * @param <T> type of the elements of the pages
+     */
+    abstract static class Source<T> {
+        private final String realm;
+
+        Source(String realm) {
+            this.realm = realm;
+        }
+
+        String getRealm() {
+            return realm;
+        }
+
+        /**
+         * @return number of elements of the resource, 0 if unknown
+         */
+        int count() {
+            return 0;
+        }
+
+        /**
+         * @param first offset of the first element of a page
+         * @return number of elements before first returned with the page, that do not count in its size
+         */
+        int overlap(int first) {
+            return 0;
+        }
+
+        /**
+         * @param first offset of the first element
+         * @param max maximum number of elements returned
+         * @return a page of the resource
+         */
+        abstract List<T> fetch(int first, int max);
+    }
+
+    /**
+     * a page read from a source
+     *
+     * @param <S> type of the source
+     * @param <T> type of the elements
+     */
+    static final class Page<S, T> {
+        private final S source;
+        private final int first;
+        private final List<T> elements;
+
+        private Page(S source, int first, List<T> elements) {
+            this.source = source;
+            this.first = first;
+            this.elements = elements;
+        }
+
+        S getSource() {
+            return source;
+        }
+
+        /**
+         * @return offset the page was requested from
+         */
+        int getFirst() {
+            return first;
+        }
+
+        List<T> getElements() {
+            return elements;
+        }
+    }
+
+    private class SourceState<S extends Source<T>, T> {
+        final S source;
+        /**
+         * pages are planned below this offset
+         */
+        int limit;
+        /**
+         * offset of the next page to submit
+         */
+        int nextSubmitted;
+        /**
+         * offset of the next page to consume
+         */
+        int nextConsumed;
+        /**
+         * submitted pages not yet consumed, by offset
+         */
+        final Map<Integer, FutureTask<List<T>>> submitted = new HashMap<>();
+        /**
+         * number of elements requested with the submitted pages not yet consumed, by offset
+         */
+        final Map<Integer, Integer> sizes = new HashMap<>();
+        /**
+         * offsets of the submitted pages counted among the requests in flight of the realm
+         */
+        final Set<Integer> inFlight = new HashSet<>();
+
+        SourceState(S source) {
+            this.source = source;
+            this.limit = Math.max(source.count(), 1);
+        }
+
+        boolean isConsumed() {
+            return nextConsumed >= limit;
+        }
+
+        /**
+         * plans the following page when a full page, without the elements of the previous one, is read
+         * at the end of the planned ones
+         */
+        void completed(int first, List<T> elements) {
+            int size = sizes.get(first);
+            if(elements.size() - source.overlap(first) >= size && first + size >= limit)
+                limit = first + size + 1;
+        }
+    }
+
+    private class PageIterator<S extends Source<T>, T> implements Iterator<Page<S, T>> {
+        private final List<SourceState<S, T>> states = new ArrayList<>();
+        /**
+         * sources with requests in flight
+         */
+        private final Set<SourceState<S, T>> active = new LinkedHashSet<>();
+        private final Map<String, Integer> inFlightByRealm = new HashMap<>();
+        /**
+         * index of the source being consumed
+         */
+        private int current = 0;
+        /**
+         * pages submitted and not yet consumed
+         */
+        private int outstanding = 0;
+
+        PageIterator(List<S> sources) {
+            for (S source : sources) {
+                states.add(new SourceState<>(source));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(current < states.size() && states.get(current).isConsumed()) {
+                current++;
+            }
+            return current < states.size();
+        }
+
+        @Override
+        public Page<S, T> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            SourceState<S, T> state = states.get(current);
+            int first = state.nextConsumed;
+            if(!state.submitted.containsKey(first))
+                submit(state);
+            fill();
+            FutureTask<List<T>> task = state.submitted.remove(first);
+            List<T> elements = get(task);
+            release(state, first);
+            state.completed(first, elements);
+            state.nextConsumed += state.sizes.remove(first);
+            outstanding--;
+            return new Page<>(state.source, first, elements);
+        }
+
+        /**
+         * releases the requests completed since the last call and submits the earliest planned pages,
+         * within the parallelism limits, looking ahead at most 4 * parallelism sources
+         */
+        private void fill() {
+            for (SourceState<S, T> state : new ArrayList<>(active)) {
+                for (Integer first : new ArrayList<>(state.inFlight)) {
+                    FutureTask<List<T>> task = state.submitted.get(first);
+                    if(task.isDone()) {
+                        release(state, first);
+                        try {
+                            state.completed(first, task.get());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        } catch (ExecutionException e) {
+                            // reported when the page is consumed
+                        }
+                    }
+                }
+            }
+            int lookahead = Math.min(states.size(), current + 4 * parallelism);
+            for (int i = current; i < lookahead && outstanding < parallelism; i++) {
+                SourceState<S, T> state = states.get(i);
+                while(outstanding < parallelism && state.nextSubmitted < state.limit
+                        && inFlightByRealm.getOrDefault(state.source.getRealm(), 0) < realmParallelism) {
+                    submit(state);
+                }
+            }
+        }
+
+        private void submit(SourceState<S, T> state) {
+            int first = state.nextSubmitted;
+            S source = state.source;
+            int size = pageSizer.getPageSize(source.getRealm());
+            FutureTask<List<T>> task = new FutureTask<>(() -> pageSizer.fetch(source.getRealm(), size, source.overlap(first), () -> source.fetch(first, size)));
+            state.submitted.put(first, task);
+            state.sizes.put(first, size);
+            state.inFlight.add(first);
+            state.nextSubmitted += size;
+            active.add(state);
+            outstanding++;
+            inFlightByRealm.merge(source.getRealm(), 1, Integer::sum);
+            executor.execute(task);
+        }
+
+        /**
+         * stops counting a page among the requests in flight of its realm
+         */
+        private void release(SourceState<S, T> state, int first) {
+            if(!state.inFlight.remove(first))
+                return;
+            if(state.inFlight.isEmpty())
+                active.remove(state);
+            inFlightByRealm.merge(state.source.getRealm(), -1, Integer::sum);
+        }
+
+        private List<T> get(FutureTask<List<T>> task) {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading from keycloak", e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException("Cannot read from keycloak", e.getCause());
+            }
+        }
+    }
+}
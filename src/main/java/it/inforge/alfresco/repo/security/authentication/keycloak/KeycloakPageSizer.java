@@ -0,0 +1,183 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import javax.ws.rs.ClientErrorException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * chooses the number of elements requested with each page of the users or group members of a realm.
+ * <p>
+ * The size starts from {@link KeycloakConfig#getUserListingBatchSize()} and adapts, within
+ * {@link KeycloakConfig#getUserListingBatchSizeMin()} and {@link KeycloakConfig#getUserListingBatchSizeMax()},
+ * to the answers of keycloak: it doubles after each full page answered within {@link KeycloakConfig#getUserListingTargetLatency()}
+ * milliseconds and {@link KeycloakConfig#getUserListingMaxPayload()} bytes, until a page is too slow or too large,
+ * then grows by the initial size. A page too slow or too large, or a request failed for a reason other than
+ * the request itself, such as a group deleted meanwhile, halves it.
+ * Only the pages requested with the current size make it grow, so that the pages in flight when it changed
+ * are not counted twice. Each realm has its own size.
+ * </p>
+ * <p>
+ * The chosen size of each realm and the elements read per second by a request, averaged over the recent pages,
+ * are the {@link KeycloakMetrics#SYNC_PAGE_SIZE} and {@link KeycloakMetrics#SYNC_PAGE_THROUGHPUT} gauges.
+ * The sizer is thread safe.
+ * </p>
+ *
+ * @since   1.0
+ */
+final class KeycloakPageSizer {
+
+    /**
+     * weight of the last page in the throughput
+     */
+    private static final double THROUGHPUT_WEIGHT = 0.2;
+
+    private final int initial;
+    private final int min;
+    private final int max;
+    private final long targetLatency;
+    private final long maxPayload;
+    private final KeycloakMetrics metrics;
+    private final Map<String, RealmSize> sizes = new ConcurrentHashMap<>();
+
+    /**
+     * @param config the size bounds, the target latency and payload; fixed at the initial size
+     *               unless {@link KeycloakConfig#isUserListingAdaptive()}
+     */
+    KeycloakPageSizer(KeycloakConfig config) {
+        this.initial = Math.max(1, config.getUserListingBatchSize());
+        if(config.isUserListingAdaptive()) {
+            this.min = Math.max(1, Math.min(config.getUserListingBatchSizeMin(), initial));
+            this.max = Math.max(config.getUserListingBatchSizeMax(), initial);
+        } else {
+            this.min = initial;
+            this.max = initial;
+        }
+        this.targetLatency = TimeUnit.MILLISECONDS.toNanos(config.getUserListingTargetLatency());
+        this.maxPayload = config.getUserListingMaxPayload();
+        this.metrics = config.getMetrics();
+    }
+
+    /**
+     * @return the number of elements to request with the next page of the realm
+     */
+    int getPageSize(String realm) {
+        return getRealmSize(realm).size;
+    }
+
+    /**
+     * sends the request of a page, then adapts the size of the realm to how long it took and how large it was
+     *
+     * @param size number of elements requested
+     * @param request sends the request
+     * @return the elements of the page
+     */
+    <T> List<T> fetch(String realm, int size, Supplier<List<T>> request) {
+        return fetch(realm, size, 0, request);
+    }
+
+    /**
+     * sends the request of a page requested with the last elements of the previous one,
+     * then adapts the size of the realm to the elements that were not already read
+     *
+     * @param size number of elements requested, besides the overlapping ones
+     * @param overlap number of elements of the previous page requested again
+     * @param request sends the request
+     * @return the elements of the page, the overlapping ones included
+     */
+    <T> List<T> fetch(String realm, int size, int overlap, Supplier<List<T>> request) {
+        KeycloakMetricsFilter.takeResponseBytes();
+        long start = System.nanoTime();
+        try {
+            List<T> elements = request.get();
+            completed(realm, size, Math.max(0, elements.size() - overlap), System.nanoTime() - start, KeycloakMetricsFilter.takeResponseBytes());
+            return elements;
+        } catch (ClientErrorException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            failed(realm, size);
+            throw e;
+        }
+    }
+
+    /**
+     * adapts the size of the realm to a page read
+     *
+     * @param size number of elements requested
+     * @param elements number of elements returned
+     * @param nanos duration of the request
+     * @param bytes size of the response, 0 if unknown
+     */
+    void completed(String realm, int size, int elements, long nanos, long bytes) {
+        RealmSize realmSize = getRealmSize(realm);
+        synchronized (realmSize) {
+            realmSize.throughput = realmSize.throughput < 0 ? throughput(elements, nanos)
+                    : THROUGHPUT_WEIGHT * throughput(elements, nanos) + (1 - THROUGHPUT_WEIGHT) * realmSize.throughput;
+            if(nanos > targetLatency || (maxPayload > 0 && bytes > maxPayload)) {
+                shrink(realmSize, size);
+            } else if(elements >= size && size == realmSize.size && size < max) {
+                // a partial page, at the end of the resource, tells nothing of larger pages
+                realmSize.size = (int) Math.min(max, realmSize.slowStart ? 2L * size : (long) size + initial);
+            }
+            record(realm, realmSize);
+        }
+    }
+
+    /**
+     * halves the size of the realm after a request failed, or timed out
+     *
+     * @param size number of elements requested
+     */
+    void failed(String realm, int size) {
+        RealmSize realmSize = getRealmSize(realm);
+        synchronized (realmSize) {
+            shrink(realmSize, size);
+            record(realm, realmSize);
+        }
+    }
+
+    /**
+     * halves the size, unless already halved after a smaller page
+     */
+    private void shrink(RealmSize realmSize, int size) {
+        realmSize.slowStart = false;
+        if(size >= realmSize.size)
+            realmSize.size = Math.max(min, realmSize.size / 2);
+    }
+
+    private void record(String realm, RealmSize realmSize) {
+        if(metrics == null)
+            return;
+        metrics.gauge(KeycloakMetrics.SYNC_PAGE_SIZE, KeycloakMetrics.tags("realm", realm), realmSize.size);
+        metrics.gauge(KeycloakMetrics.SYNC_PAGE_THROUGHPUT, KeycloakMetrics.tags("realm", realm), Math.round(realmSize.throughput));
+    }
+
+    private static double throughput(int elements, long nanos) {
+        return elements * 1e9 / Math.max(1, nanos);
+    }
+
+    private RealmSize getRealmSize(String realm) {
+        return sizes.computeIfAbsent(realm, key -> new RealmSize(initial));
+    }
+
+    /**
+     * page size of a realm
+     */
+    private static final class RealmSize {
+        volatile int size;
+        /**
+         * true until the first page too slow or too large: the size doubles instead of growing linearly
+         */
+        boolean slowStart = true;
+        /**
+         * elements read per second, moving average over the pages, negative before the first page
+         */
+        double throughput = -1;
+
+        RealmSize(int size) {
+            this.size = size;
+        }
+    }
+}
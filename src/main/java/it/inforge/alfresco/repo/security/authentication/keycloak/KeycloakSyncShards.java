@@ -0,0 +1,892 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.resource.GroupResource;
+import org.keycloak.admin.client.resource.UsersResource;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import javax.ws.rs.NotFoundException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * spreads the keycloak reads of the full synchronizations over the nodes of an alfresco cluster,
+ * and checkpoints them.
+ * <p>
+ * The node whose synchronization job acquires the coordinator lock plans the shards of the synchronization,
+ * ranges of the users of each realm and ranges of the ids of the groups whose members are read, and publishes
+ * the plan in the attribute service. The synchronization jobs of the other nodes, finding the lock taken,
+ * read shards instead of synchronizing: a node claims a shard with a job lock, reads it from keycloak and stores
+ * its rows in the attribute service, in chunks small enough for the serialized values of any database, reading
+ * {@link KeycloakConfig#getSynchronizationParallelism()} shards at a time. The coordinator reads shards too,
+ * waits for those claimed by the other nodes and feeds the synchronization with the stored rows.
+ * The shard of a node that stopped is claimed again once its lock expires.
+ * A plan is live for {@link KeycloakConfig#getSynchronizationShardTimeout()} seconds after the coordinator published
+ * or resumed it, as long as the coordinator waits for its shards: the other nodes only read the shards of a live plan,
+ * and stop once it is replaced or removed.
+ * </p>
+ * <p>
+ * Users created or deleted while the shards are read shift the ranges: each range is read with the last users
+ * of the previous one, and the coordinator reads again from keycloak the realms whose ranges do not join
+ * or whose count changed, returning each user once, as {@link KeycloakUserPages} does.
+ * The groups created after a node loaded the group hierarchy of a realm are read by the coordinator.
+ * </p>
+ * <p>
+ * Each shard is committed as soon as it is read. If {@link KeycloakConfig#isSynchronizationCheckpoints()},
+ * the plan and the shards of a synchronization that failed are kept, and the next synchronization resumes them,
+ * reading only the shards missing, unless the plan is older than {@link KeycloakConfig#getSynchronizationCheckpointsMaxAge()}
+ * seconds or the realms or shard sizes changed. The shards resumed are not read again unless their realm's count
+ * changed or their ranges shifted: the other changes made since they were read wait for the next synchronization.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakSyncShards {
+
+    private static final String KEY_SHARDS = "keycloak.shards";
+    private static final String KEY_PLAN = "plan";
+    private static final String TYPE_USERS = "users";
+    private static final String TYPE_MEMBERS = "members";
+    /**
+     * rows of a shard: the users read, the email contributors among them and the members of the groups read
+     */
+    private static final String SERIES_USERS = "u";
+    private static final String SERIES_CONTRIBUTORS = "c";
+    private static final String SERIES_MEMBERS = "m";
+    private static final String SHIFTED = "shifted";
+    private static final char FIELD_SEPARATOR = '\u0000';
+    private static final char VALUE_SEPARATOR = '\u0001';
+    private static final String NULL_FIELD = "\u0002";
+    /**
+     * rows stored in an attribute: the serialized values of some databases are limited to 64KB
+     */
+    private static final int CHUNK_ROWS = 200;
+    /**
+     * milliseconds a lock lives unless refreshed
+     */
+    private static final long LOCK_TTL = 60000;
+    /**
+     * milliseconds between two checks of the shards read by the other nodes
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private KeycloakConfig config;
+    private KeycloakAdminClientProvider adminClientProvider;
+    private KeycloakGroupTreeCache groupTreeCache;
+    /**
+     * true while this node coordinates a synchronization
+     */
+    private final AtomicBoolean coordinating = new AtomicBoolean();
+
+    /**
+     * tries to make this node the coordinator of a synchronization. The lock is kept until {@link #releaseCoordination()}
+     *
+     * @return true if this node coordinates the synchronization, false if another one does
+     */
+    public boolean acquireCoordination() {
+        if(!coordinating.compareAndSet(false, true))
+            return false;
+        try {
+            getJobLockService().getLock(getLockQName("coordinator"), LOCK_TTL, new JobLockService.JobLockRefreshCallback() {
+                @Override
+                public boolean isActive() {
+                    return coordinating.get();
+                }
+
+                @Override
+                public void lockReleased() {
+                    coordinating.set(false);
+                }
+            });
+            return true;
+        } catch (LockAcquisitionException e) {
+            coordinating.set(false);
+            return false;
+        }
+    }
+
+    /**
+     * gives up the coordination: the lock is released when it is next refreshed
+     */
+    public void releaseCoordination() {
+        coordinating.set(false);
+    }
+
+    /**
+     * reads the shards of the synchronization coordinated by another node, waiting for its plan,
+     * and returns once no shard is left to claim. The plans that are not live, as those kept by a failed
+     * synchronization and not yet resumed, are not read
+     */
+    public void work() {
+        long deadline = System.currentTimeMillis() + config.getSynchronizationShardTimeout() * 1000;
+        Plan plan;
+        while((plan = loadPlan()) == null || !isLive(plan)) {
+            if(System.currentTimeMillis() > deadline || !sleep()) {
+                logger.info("No keycloak synchronization to read shards for");
+                return;
+            }
+        }
+        read(plan, false, deadline);
+    }
+
+    /**
+     * @return true if the coordinator of the plan still waits for its shards
+     */
+    private boolean isLive(Plan plan) {
+        return System.currentTimeMillis() - plan.started < config.getSynchronizationShardTimeout() * 1000;
+    }
+
+    /**
+     * @return true if the plan is the one published, and is live
+     */
+    private boolean isPublished(Plan plan) {
+        Plan published = loadPlan();
+        return published != null && published.id.equals(plan.id) && published.started == plan.started && isLive(published);
+    }
+
+    /**
+     * plans the shards of a synchronization and publishes the plan to the other nodes,
+     * removing the rows of the previous synchronizations
+     *
+     * @param keycloak the keycloak admin client
+     * @param realms realms to synchronize
+     * @param groupTrees group hierarchy of each realm
+     * @param requestCount incremented at each keycloak request
+     * @return the plan
+     */
+    Plan plan(Keycloak keycloak, String[] realms, Map<String, KeycloakGroupTree> groupTrees, AtomicLong requestCount) {
+        int usersPerShard = Math.max(1, config.getSynchronizationShardUsers());
+        int groupsPerShard = Math.max(1, config.getSynchronizationShardGroups());
+        String signature = String.format("%s/%d/%d", String.join(",", realms), usersPerShard, groupsPerShard);
+        if(config.isSynchronizationCheckpoints()) {
+            Plan plan = loadPlan();
+            if(plan != null && signature.equals(plan.signature)
+                    && System.currentTimeMillis() - plan.created < config.getSynchronizationCheckpointsMaxAge() * 1000) {
+                int read = 0;
+                for (int index = 0; index < plan.shards.size(); index++) {
+                    if(isRead(plan, index))
+                        read++;
+                }
+                Plan resumed = plan.resume(System.currentTimeMillis());
+                inTransaction(attributeService -> attributeService.setAttribute(resumed.toValue(), KEY_SHARDS, getZone(), KEY_PLAN));
+                logger.info(String.format("Resuming keycloak synchronization %s: %d of its %d shards already read",
+                        plan.id, read, plan.shards.size()));
+                return resumed;
+            }
+        }
+        ArrayList<String> shards = new ArrayList<>();
+        int userCount = 0;
+        for (String realm : realms) {
+            requestCount.incrementAndGet();
+            int count = keycloak.realm(realm).users().count();
+            userCount += count;
+            for (int first = 0; first == 0 || first < count; first += usersPerShard) {
+                // the last range is read to its end, with the users created meanwhile
+                int max = first + usersPerShard >= count ? Integer.MAX_VALUE - first : usersPerShard;
+                shards.add(join(TYPE_USERS, realm, String.valueOf(first), String.valueOf(max)));
+            }
+            List<String> groupIds = new ArrayList<>();
+            for (KeycloakGroupTree.Node node : groupTrees.get(realm).getNodes()) {
+                groupIds.add(node.getId());
+            }
+            Collections.sort(groupIds);
+            for (int i = 0; i == 0 || i < groupIds.size(); i += groupsPerShard) {
+                String fromId = i == 0 ? "" : groupIds.get(i);
+                String toId = i + groupsPerShard < groupIds.size() ? groupIds.get(i + groupsPerShard) : "";
+                shards.add(join(TYPE_MEMBERS, realm, fromId, toId));
+            }
+        }
+        long created = System.currentTimeMillis();
+        Plan plan = new Plan(UUID.randomUUID().toString(), shards, userCount, signature, created, created);
+        inTransaction(attributeService -> {
+            attributeService.removeAttributes(KEY_SHARDS, getZone());
+            attributeService.setAttribute(plan.toValue(), KEY_SHARDS, getZone(), KEY_PLAN);
+        });
+        logger.info(String.format("Keycloak synchronization %s planned in %d shards", plan.id, shards.size()));
+        return plan;
+    }
+
+    /**
+     * @return the published plan, null if none
+     */
+    @SuppressWarnings("unchecked")
+    private Plan loadPlan() {
+        Map<String, Serializable> value = (Map<String, Serializable>) getAttribute(KEY_SHARDS, getZone(), KEY_PLAN);
+        if(value == null)
+            return null;
+        Long created = (Long) value.get("created");
+        Long started = (Long) value.get("started");
+        return new Plan((String) value.get("id"), (List<String>) value.get("shards"), (Integer) value.get("users"),
+                (String) value.get("signature"), created == null ? 0 : created, started == null ? 0 : started);
+    }
+
+    /**
+     * removes the plan and the rows of a synchronization
+     */
+    void cleanup(Plan plan) {
+        inTransaction(attributeService -> attributeService.removeAttributes(KEY_SHARDS, getZone()));
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("Removed the shards of keycloak synchronization %s", plan.id));
+    }
+
+    /**
+     * claims and reads the shards of a plan not yet read
+     *
+     * @param plan the synchronization plan
+     * @param untilRead if true, waits for the shards claimed by the other nodes, reading those whose lock expires.
+     * If false, as for the nodes that do not coordinate the synchronization, stops once the plan is no more published
+     * @param deadline time, in milliseconds, by which all the shards must be read
+     * @throws IllegalStateException if untilRead and the shards are not read by the deadline
+     */
+    void read(Plan plan, boolean untilRead, long deadline) {
+        int parallelism = Math.max(1, config.getSynchronizationParallelism());
+        Set<Integer> read = ConcurrentHashMap.newKeySet();
+        AtomicInteger readHere = new AtomicInteger();
+        KeycloakPageSizer pageSizer = new KeycloakPageSizer(config);
+        if(parallelism == 1) {
+            claim(plan, read, readHere, pageSizer, untilRead, deadline);
+        } else {
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "keycloak-synchronization-shard-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < parallelism; i++) {
+                    futures.add(executor.submit(() -> claim(plan, read, readHere, pageSizer, untilRead, deadline)));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("Interrupted while reading the shards of keycloak synchronization %s", plan.id), e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(String.format("Cannot read the shards of keycloak synchronization %s", plan.id), e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        logger.info(String.format("Read %d of the %d shards of keycloak synchronization %s", readHere.get(), plan.shards.size(), plan.id));
+    }
+
+    /**
+     * claims the shards not yet read, starting from a random one so that the threads and nodes spread over them
+     */
+    private void claim(Plan plan, Set<Integer> read, AtomicInteger readHere, KeycloakPageSizer pageSizer,
+                       boolean untilRead, long deadline) {
+        int count = plan.shards.size();
+        int offset = ThreadLocalRandom.current().nextInt(count);
+        while(true) {
+            boolean pending = false;
+            for (int i = 0; i < count; i++) {
+                int index = (offset + i) % count;
+                if(read.contains(index))
+                    continue;
+                if(isRead(plan, index)) {
+                    read.add(index);
+                    continue;
+                }
+                pending = true;
+                QName lockQName = getLockQName("shard-" + index);
+                String token;
+                try {
+                    token = getJobLockService().getLock(lockQName, LOCK_TTL);
+                } catch (LockAcquisitionException e) {
+                    continue;
+                }
+                try {
+                    if(!untilRead && !isPublished(plan)) {
+                        logger.info(String.format("Keycloak synchronization %s is no more coordinated", plan.id));
+                        return;
+                    }
+                    if(!isRead(plan, index)) {
+                        readShard(plan, index, pageSizer, () -> getJobLockService().refreshLock(token, lockQName, LOCK_TTL));
+                        readHere.incrementAndGet();
+                    }
+                    read.add(index);
+                } finally {
+                    getJobLockService().releaseLock(token, lockQName);
+                }
+            }
+            if(!pending || !untilRead)
+                return;
+            if(System.currentTimeMillis() > deadline)
+                throw new IllegalStateException(String.format("Shards of keycloak synchronization %s not read in %d seconds",
+                        plan.id, config.getSynchronizationShardTimeout()));
+            if(!sleep())
+                throw new IllegalStateException(String.format("Interrupted while waiting for the shards of keycloak synchronization %s", plan.id));
+        }
+    }
+
+    private boolean isRead(Plan plan, int index) {
+        return getAttribute(KEY_SHARDS, getZone(), getKey(plan, index, null, 0)) != null;
+    }
+
+    /**
+     * reads a shard from keycloak and stores its rows
+     *
+     * @param pageSizer chooses the size of the pages
+     * @param refresh refreshes the lock of the shard
+     */
+    private void readShard(Plan plan, int index, KeycloakPageSizer pageSizer, Runnable refresh) {
+        String[] shard = plan.shards.get(index);
+        Keycloak keycloak = adminClientProvider.getKeycloak();
+        ShardWriter writer = new ShardWriter(plan, index);
+        boolean shifted = false;
+        if(TYPE_USERS.equals(shard[0]))
+            shifted = readUsers(keycloak, shard[1], Integer.parseInt(shard[2]), Integer.parseInt(shard[3]), pageSizer, writer, refresh);
+        else
+            readMembers(keycloak, shard[1], shard[2], shard[3], pageSizer, writer, refresh);
+        writer.finish(shifted);
+        config.getMetrics().counter(KeycloakMetrics.SYNC_SHARDS, KeycloakMetrics.tags("type", shard[0]), 1);
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("Read shard %d of keycloak synchronization %s: %s", index, plan.id, String.join(" ", shard).replace(FIELD_SEPARATOR, ' ')));
+    }
+
+    /**
+     * reads a range of users, each page with the last users of the previous one
+     *
+     * @return true if the pages did not join, as users were created or deleted meanwhile
+     */
+    private boolean readUsers(Keycloak keycloak, String realm, int first, int max, KeycloakPageSizer pageSizer,
+                              ShardWriter writer, Runnable refresh) {
+        int overlap = Math.max(0, config.getUserListingOverlap());
+        UsersResource usersResource = keycloak.realm(realm).users();
+        Set<String> written = new HashSet<>();
+        List<String> previousIds = Collections.emptyList();
+        boolean shifted = false;
+        long end = (long) first + max;
+        for (int offset = first, pageSize; offset < end; offset += pageSize) {
+            pageSize = (int) Math.min(pageSizer.getPageSize(realm), end - offset);
+            int from = Math.max(0, offset - overlap);
+            int size = pageSize + offset - from;
+            List<UserRepresentation> users = pageSizer.fetch(realm, pageSize, offset - from, () -> usersResource.list(from, size));
+            List<String> ids = new ArrayList<>(users.size());
+            for (UserRepresentation userRepresentation : users) {
+                ids.add(userRepresentation.getId());
+            }
+            if(offset > first) {
+                int expected = Math.min(Math.min(overlap, offset), previousIds.size());
+                if(ids.size() < expected || !ids.subList(0, expected).equals(previousIds.subList(previousIds.size() - expected, previousIds.size())))
+                    shifted = true;
+            }
+            previousIds = ids;
+            for (UserRepresentation userRepresentation : users) {
+                if(!written.add(userRepresentation.getId()))
+                    continue;
+                writer.add(SERIES_USERS, toRow(userRepresentation));
+                if(Utils.getBooleanAttribute(userRepresentation.getAttributes(), config.getEmailContributorAttribute()))
+                    writer.add(SERIES_CONTRIBUTORS, userRepresentation.getUsername());
+            }
+            refresh.run();
+            if(users.size() < size)
+                break;
+        }
+        return shifted;
+    }
+
+    /**
+     * reads the members of the groups whose id is in a range. Each group is written alone, then with each member
+     *
+     * @param fromId lowest id of the range
+     * @param toId id above the range, empty for no limit
+     */
+    private void readMembers(Keycloak keycloak, String realm, String fromId, String toId, KeycloakPageSizer pageSizer,
+                             ShardWriter writer, Runnable refresh) {
+        for (KeycloakGroupTree.Node node : groupTreeCache.get(realm).getNodes()) {
+            String id = node.getId();
+            if(id.compareTo(fromId) < 0 || (!toId.isEmpty() && id.compareTo(toId) >= 0))
+                continue;
+            writer.add(SERIES_MEMBERS, id);
+            GroupResource groupResource = keycloak.realm(realm).groups().group(id);
+            try {
+                for (int first = 0, pageSize; ; first += pageSize) {
+                    pageSize = pageSizer.getPageSize(realm);
+                    int from = first;
+                    int max = pageSize;
+                    List<UserRepresentation> members = pageSizer.fetch(realm, pageSize, () -> groupResource.members(from, max));
+                    for (UserRepresentation member : members) {
+                        writer.add(SERIES_MEMBERS, id + FIELD_SEPARATOR + member.getUsername());
+                    }
+                    refresh.run();
+                    if(members.size() < pageSize)
+                        break;
+                }
+            } catch (NotFoundException e) {
+                if(logger.isDebugEnabled())
+                    logger.debug(String.format("Keycloak group %s of realm \"%s\" deleted while its members were read", id, realm));
+            }
+        }
+    }
+
+    /**
+     * @param handler called for each group read, with a null username, then for each of its members
+     */
+    void forEachMember(Plan plan, MemberHandler handler) {
+        for (int index = 0; index < plan.shards.size(); index++) {
+            String realm = plan.shards.get(index)[1];
+            if(TYPE_MEMBERS.equals(plan.shards.get(index)[0])) {
+                forEachRow(plan, index, SERIES_MEMBERS, row -> {
+                    int separator = row.indexOf(FIELD_SEPARATOR);
+                    if(separator < 0)
+                        handler.member(realm, row, null);
+                    else
+                        handler.member(realm, row.substring(0, separator), row.substring(separator + 1));
+                });
+            }
+        }
+    }
+
+    /**
+     * @param handler called with the realm and username of each email contributor user
+     */
+    void forEachContributor(Plan plan, BiConsumer<String, String> handler) {
+        for (int index = 0; index < plan.shards.size(); index++) {
+            String realm = plan.shards.get(index)[1];
+            if(TYPE_USERS.equals(plan.shards.get(index)[0]))
+                forEachRow(plan, index, SERIES_CONTRIBUTORS, username -> handler.accept(realm, username));
+        }
+    }
+
+    private void forEachRow(Plan plan, int index, String series, Consumer<String> action) {
+        int chunks = getChunkCount(plan, index, series);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            getRows(plan, index, series, chunk).forEach(action);
+        }
+    }
+
+    /**
+     * @param converter converts a user of a realm to an element of the collection
+     * @param realmUsers reads again all the users of a realm
+     * @param realmCount counts the users of a realm
+     * @return lazy collection of the users read by the shards, realm by realm, reading again from keycloak
+     * the realms whose users changed while the shards were read
+     */
+    <T> Collection<T> users(Plan plan, BiFunction<String, UserRepresentation, T> converter,
+                            Function<String, Iterable<UserRepresentation>> realmUsers, ToIntFunction<String> realmCount) {
+        Map<String, List<Integer>> shardsByRealm = new LinkedHashMap<>();
+        for (int index = 0; index < plan.shards.size(); index++) {
+            if(TYPE_USERS.equals(plan.shards.get(index)[0]))
+                shardsByRealm.computeIfAbsent(plan.shards.get(index)[1], realm -> new ArrayList<>()).add(index);
+        }
+        return new AbstractCollection<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new UserIterator<>(plan, shardsByRealm, converter, realmUsers, realmCount);
+            }
+
+            @Override
+            public int size() {
+                return plan.userCount;
+            }
+        };
+    }
+
+    private String toRow(UserRepresentation userRepresentation) {
+        List<String> aliases = userRepresentation.getAttributes() == null ? null
+                : userRepresentation.getAttributes().get(config.getEmailAliasAttribute());
+        return join(userRepresentation.getId(), userRepresentation.getUsername(), userRepresentation.getEmail(),
+                userRepresentation.getFirstName(), userRepresentation.getLastName(),
+                aliases == null || aliases.isEmpty() ? null : String.join(String.valueOf(VALUE_SEPARATOR), aliases));
+    }
+
+    private UserRepresentation toUser(String row) {
+        String[] fields = split(row);
+        UserRepresentation userRepresentation = new UserRepresentation();
+        userRepresentation.setId(fields[0]);
+        userRepresentation.setUsername(fields[1]);
+        userRepresentation.setEmail(fields[2]);
+        userRepresentation.setFirstName(fields[3]);
+        userRepresentation.setLastName(fields[4]);
+        if(fields[5] != null) {
+            Map<String, List<String>> attributes = new HashMap<>();
+            attributes.put(config.getEmailAliasAttribute(), Arrays.asList(fields[5].split(String.valueOf(VALUE_SEPARATOR))));
+            userRepresentation.setAttributes(attributes);
+        }
+        return userRepresentation;
+    }
+
+    private static String join(String... fields) {
+        StringBuilder row = new StringBuilder();
+        for (String field : fields) {
+            if(row.length() > 0)
+                row.append(FIELD_SEPARATOR);
+            row.append(field == null ? NULL_FIELD : field);
+        }
+        return row.toString();
+    }
+
+    private static String[] split(String row) {
+        String[] fields = row.split(String.valueOf(FIELD_SEPARATOR), -1);
+        for (int i = 0; i < fields.length; i++) {
+            if(NULL_FIELD.equals(fields[i]))
+                fields[i] = null;
+        }
+        return fields;
+    }
+
+    /**
+     * @param series {@link #SERIES_USERS}, {@link #SERIES_CONTRIBUTORS}, {@link #SERIES_MEMBERS}, null for the shard's summary
+     * @return key of a chunk of the rows of a shard
+     */
+    private static String getKey(Plan plan, int index, String series, int chunk) {
+        return series == null ? String.format("%s/%d", plan.id, index) : String.format("%s/%d/%s/%d", plan.id, index, series, chunk);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Serializable> getSummary(Plan plan, int index) {
+        Map<String, Serializable> summary = (Map<String, Serializable>) getAttribute(KEY_SHARDS, getZone(), getKey(plan, index, null, 0));
+        if(summary == null)
+            throw new IllegalStateException(String.format("Shard %d of keycloak synchronization %s not read", index, plan.id));
+        return summary;
+    }
+
+    private int getChunkCount(Plan plan, int index, String series) {
+        Integer chunks = (Integer) getSummary(plan, index).get(series);
+        return chunks == null ? 0 : chunks;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> getRows(Plan plan, int index, String series, int chunk) {
+        List<String> rows = (List<String>) getAttribute(KEY_SHARDS, getZone(), getKey(plan, index, series, chunk));
+        if(rows == null)
+            throw new IllegalStateException(String.format("Shard %d of keycloak synchronization %s removed", index, plan.id));
+        return rows;
+    }
+
+    private Serializable getAttribute(Serializable... keys) {
+        AttributeService attributeService = config.getServiceRegistry().getAttributeService();
+        return AuthenticationUtil.runAsSystem(() -> attributeService.getAttribute(keys));
+    }
+
+    private void inTransaction(Consumer<AttributeService> action) {
+        ServiceRegistry serviceRegistry = config.getServiceRegistry();
+        RetryingTransactionHelper txnHelper = serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+        AuthenticationUtil.runAsSystem(() -> txnHelper.doInTransaction(() -> {
+            action.accept(serviceRegistry.getAttributeService());
+            return null;
+        }, false, true));
+    }
+
+    private JobLockService getJobLockService() {
+        return config.getServiceRegistry().getJobLockService();
+    }
+
+    /**
+     * distinguishes the shards and locks of different keycloak subsystems
+     */
+    private String getZone() {
+        return String.join(",", new TreeSet<>(config.getAuthZones()));
+    }
+
+    private QName getLockQName(String name) {
+        return QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, String.format("keycloakSynchronization.%s.%s", getZone(), name));
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private static boolean sleep() {
+        try {
+            Thread.sleep(POLL_INTERVAL);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void setConfig(KeycloakConfig config) {
+        this.config = config;
+    }
+
+    public void setAdminClientProvider(KeycloakAdminClientProvider adminClientProvider) {
+        this.adminClientProvider = adminClientProvider;
+    }
+
+    public void setGroupTreeCache(KeycloakGroupTreeCache groupTreeCache) {
+        this.groupTreeCache = groupTreeCache;
+    }
+
+    /**
+     * receives the members read by the shards
+     */
+    interface MemberHandler {
+        /**
+         * @param realm realm of the group
+         * @param groupId keycloak id of the group
+         * @param username username of the member, null when the group is first read
+         */
+        void member(String realm, String groupId, String username);
+    }
+
+    /**
+     * the shards of a synchronization
+     */
+    static final class Plan {
+        private final String id;
+        /**
+         * type, realm and range of each shard
+         */
+        private final List<String[]> shards = new ArrayList<>();
+        /**
+         * number of users of the realms when the synchronization was planned
+         */
+        private final int userCount;
+        /**
+         * realms and shard sizes of the plan, that a resumed synchronization must have too
+         */
+        private final String signature;
+        /**
+         * time the synchronization was planned
+         */
+        private final long created;
+        /**
+         * time the coordinator published or resumed the plan
+         */
+        private final long started;
+
+        private Plan(String id, List<String> shards, int userCount, String signature, long created, long started) {
+            this.id = id;
+            for (String shard : shards) {
+                this.shards.add(split(shard));
+            }
+            this.userCount = userCount;
+            this.signature = signature;
+            this.created = created;
+            this.started = started;
+        }
+
+        /**
+         * @return the plan resumed by a synchronization started at a time
+         */
+        private Plan resume(long started) {
+            return new Plan(id, toShards(), userCount, signature, created, started);
+        }
+
+        /**
+         * @return the plan, as stored in the attribute service
+         */
+        private HashMap<String, Serializable> toValue() {
+            HashMap<String, Serializable> value = new HashMap<>();
+            value.put("id", id);
+            value.put("shards", toShards());
+            value.put("users", userCount);
+            value.put("signature", signature);
+            value.put("created", created);
+            value.put("started", started);
+            return value;
+        }
+
+        private ArrayList<String> toShards() {
+            ArrayList<String> joined = new ArrayList<>(shards.size());
+            for (String[] shard : shards) {
+                joined.add(join(shard));
+            }
+            return joined;
+        }
+
+        String getId() {
+            return id;
+        }
+    }
+
+    /**
+     * stores the rows of a shard in chunks, then its summary: the number of chunks of each series
+     * and whether the users shifted while they were read
+     */
+    private class ShardWriter {
+        private final Plan plan;
+        private final int index;
+        private final Map<String, ArrayList<String>> chunks = new HashMap<>();
+        private final HashMap<String, Serializable> summary = new HashMap<>();
+
+        ShardWriter(Plan plan, int index) {
+            this.plan = plan;
+            this.index = index;
+        }
+
+        void add(String series, String row) {
+            ArrayList<String> chunk = chunks.computeIfAbsent(series, key -> new ArrayList<>());
+            chunk.add(row);
+            if(chunk.size() >= CHUNK_ROWS)
+                flush(series);
+        }
+
+        private void flush(String series) {
+            ArrayList<String> chunk = chunks.remove(series);
+            if(chunk == null || chunk.isEmpty())
+                return;
+            int count = (Integer) summary.getOrDefault(series, 0);
+            inTransaction(attributeService -> attributeService.setAttribute(chunk, KEY_SHARDS, getZone(), getKey(plan, index, series, count)));
+            summary.put(series, count + 1);
+        }
+
+        void finish(boolean shifted) {
+            for (String series : new ArrayList<>(chunks.keySet())) {
+                flush(series);
+            }
+            summary.put(SHIFTED, shifted);
+            inTransaction(attributeService -> attributeService.setAttribute(summary, KEY_SHARDS, getZone(), getKey(plan, index, null, 0)));
+        }
+    }
+
+    /**
+     * iterates the users read by the shards, realm by realm, checking that the ranges of each realm join
+     */
+    private class UserIterator<T> implements Iterator<T> {
+        private final Plan plan;
+        private final Iterator<Map.Entry<String, List<Integer>>> realms;
+        private final BiFunction<String, UserRepresentation, T> converter;
+        private final Function<String, Iterable<UserRepresentation>> realmUsers;
+        private final ToIntFunction<String> realmCount;
+        private final int overlap = Math.max(0, config.getUserListingOverlap());
+        /**
+         * ids of the users of the realm returned
+         */
+        private KeycloakIdSet returned = new KeycloakIdSet();
+        private String realm;
+        private Iterator<Integer> shards = Collections.emptyIterator();
+        private Iterator<UserRepresentation> users = Collections.emptyIterator();
+        /**
+         * last ids of the previous shard, and of the current one
+         */
+        private List<String> previousTail = Collections.emptyList();
+        private List<String> tail = new ArrayList<>();
+        /**
+         * rows of the current shard expected to repeat the tail of the previous one
+         */
+        private int expected;
+        private int position;
+        private boolean shifted;
+        private boolean reconciling;
+        private T next;
+
+        UserIterator(Plan plan, Map<String, List<Integer>> shardsByRealm, BiFunction<String, UserRepresentation, T> converter,
+                     Function<String, Iterable<UserRepresentation>> realmUsers, ToIntFunction<String> realmCount) {
+            this.plan = plan;
+            this.realms = shardsByRealm.entrySet().iterator();
+            this.converter = converter;
+            this.realmUsers = realmUsers;
+            this.realmCount = realmCount;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(next == null) {
+                if(users.hasNext()) {
+                    UserRepresentation userRepresentation = users.next();
+                    if(!reconciling)
+                        track(userRepresentation.getId());
+                    if(returned.add(userRepresentation.getId()))
+                        next = converter.apply(realm, userRepresentation);
+                } else if(shards.hasNext()) {
+                    startShard(shards.next());
+                } else if(realm != null && !reconciling && isChanged()) {
+                    reconciling = true;
+                    users = realmUsers.apply(realm).iterator();
+                } else if(realms.hasNext()) {
+                    Map.Entry<String, List<Integer>> entry = realms.next();
+                    realm = entry.getKey();
+                    shards = entry.getValue().iterator();
+                    returned = new KeycloakIdSet();
+                    tail = new ArrayList<>();
+                    shifted = false;
+                    reconciling = false;
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            T element = next;
+            next = null;
+            return element;
+        }
+
+        private void startShard(int index) {
+            shifted |= Boolean.TRUE.equals(getSummary(plan, index).get(SHIFTED));
+            previousTail = tail;
+            tail = new ArrayList<>();
+            expected = Math.min(overlap, previousTail.size());
+            position = 0;
+            int chunks = getChunkCount(plan, index, SERIES_USERS);
+            users = new Iterator<UserRepresentation>() {
+                private int chunk = 0;
+                private Iterator<String> rows = Collections.emptyIterator();
+
+                @Override
+                public boolean hasNext() {
+                    while(!rows.hasNext() && chunk < chunks) {
+                        rows = getRows(plan, index, SERIES_USERS, chunk++).iterator();
+                    }
+                    return rows.hasNext();
+                }
+
+                @Override
+                public UserRepresentation next() {
+                    if(!hasNext())
+                        throw new NoSuchElementException();
+                    return toUser(rows.next());
+                }
+            };
+        }
+
+        /**
+         * checks that the shard starts with the end of the previous one
+         */
+        private void track(String id) {
+            if(position < expected && !id.equals(previousTail.get(previousTail.size() - expected + position)))
+                shifted = true;
+            position++;
+            tail.add(id);
+            if(tail.size() > overlap)
+                tail.remove(0);
+        }
+
+        private boolean isChanged() {
+            int count = realmCount.applyAsInt(realm);
+            if(!shifted && count == returned.size())
+                return false;
+            logger.info(String.format("Users of keycloak realm \"%s\" changed while the shards were read (%d users read, now %d): reconciling",
+                    realm, returned.size(), count));
+            return true;
+        }
+    }
+}
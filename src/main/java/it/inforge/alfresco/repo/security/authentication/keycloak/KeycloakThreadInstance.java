@@ -3,23 +3,25 @@ package it.inforge.alfresco.repo.security.authentication.keycloak;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.sync.NodeDescription;
-import org.alfresco.service.ServiceRegistry;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
-import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.service.cmr.repository.NodeService;
-import org.alfresco.service.cmr.security.AuthorityService;
 import org.alfresco.service.cmr.security.AuthorityType;
 import org.alfresco.service.namespace.QName;
-import org.alfresco.service.namespace.RegexQNamePattern;
 import org.apache.commons.logging.Log;
-import org.keycloak.OAuth2Constants;
+import org.apache.commons.logging.LogFactory;
 import org.keycloak.admin.client.Keycloak;
-import org.keycloak.admin.client.KeycloakBuilder;
+import org.keycloak.admin.client.resource.GroupResource;
 import org.keycloak.admin.client.resource.UserResource;
+import org.keycloak.admin.client.resource.UsersResource;
 import org.keycloak.representations.idm.GroupRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
 
+import javax.ws.rs.NotFoundException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
 /**
@@ -38,106 +40,405 @@ public class KeycloakThreadInstance {
 
     private static final String PROP_IMPORT_REALM_NAME = "keycloak-realm";
 
+    private final Log logger = LogFactory.getLog(getClass());
+
     /**
      * connector's configuration
      */
     private KeycloakConfig config;
     /**
-     * keycloak service
+     * provider of the shared keycloak admin client
+     */
+    private KeycloakAdminClientProvider adminClientProvider;
+    /**
+     * cache of the realms' group hierarchies
      */
-    private Keycloak keycloak;
+    private KeycloakGroupTreeCache groupTreeCache;
+    /**
+     * authorities imported from keycloak
+     */
+    private KeycloakZoneAuthorities zoneAuthorities;
     /**
      * available realms
      */
     private String[] realms;
 
     /**
-     * users to import
+     * the authenticating user, or the users of a targeted synchronization, to import. The users of a synchronization are read from keycloak
+     * a page at a time while alfresco imports them
      */
     private List<NodeDescription> users = new ArrayList<>();
     /**
-     * map of all the groups to import
+     * all the groups to import and their members. Their {@link NodeDescription}s are created
+     * only while alfresco iterates {@link #getGroups()}
+     */
+    private KeycloakMembershipModel memberships = new KeycloakMembershipModel();
+    /**
+     * index of the email contributors group in the membership model
+     */
+    private int emailContributors;
+    /**
+     * authenticating user whose data are loaded from keycloak on first use, null once loaded or for a synchronization
+     */
+    private String pendingUsername;
+    /**
+     * true for the instance of an authenticating user, false for a synchronization
+     */
+    private boolean login;
+    /**
+     * keycloak ids of the users and groups of a targeted synchronization, null once loaded or for the other instances
+     */
+    private List<String> pendingUserIds;
+    private List<String> pendingGroupIds;
+    /**
+     * true for the instance of a targeted synchronization
+     */
+    private boolean targeted;
+    /**
+     * number of keycloak requests made by the instance
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+    /**
+     * runs the requests of a synchronization, null for a login or a sequential synchronization
+     */
+    private ExecutorService fetchExecutor;
+    /**
+     * reads the pages of users and group members of a synchronization
+     */
+    private KeycloakPageFetcher fetcher;
+    /**
+     * shards of a sharded synchronization, null for the other instances
      */
-    private Map<String, Group> groupsMap = new HashMap<>();
+    private KeycloakSyncShards shards;
+    private KeycloakSyncShards.Plan shardPlan;
     /**
-     * nodeof the email contributors group
+     * true once alfresco committed the synchronization
      */
-    private NodeDescription emailContributors;
+    private boolean committed;
+    /**
+     * true once alfresco asked for the users, and for the groups, to import
+     */
+    private boolean usersRead;
+    private boolean groupsRead;
+
+    public KeycloakThreadInstance(KeycloakConfig config, KeycloakAdminClientProvider adminClientProvider,
+                                  KeycloakGroupTreeCache groupTreeCache, KeycloakZoneAuthorities zoneAuthorities) {
+        this(config, adminClientProvider, groupTreeCache, zoneAuthorities, (KeycloakSyncShards) null);
+    }
 
-    public KeycloakThreadInstance(KeycloakConfig config) {
-        this(config, config.getRealms().toArray(new String[config.getRealms().size()]));
-        init();
+    /**
+     * creates the instance of a synchronization
+     *
+     * @param shards if not null, the users and members are read by the shards spread over the cluster's nodes
+     */
+    public KeycloakThreadInstance(KeycloakConfig config, KeycloakAdminClientProvider adminClientProvider,
+                                  KeycloakGroupTreeCache groupTreeCache, KeycloakZoneAuthorities zoneAuthorities,
+                                  KeycloakSyncShards shards) {
+        this(config, adminClientProvider, groupTreeCache, zoneAuthorities, config.getRealms().toArray(new String[config.getRealms().size()]));
+        this.shards = shards;
+        int parallelism = config.getSynchronizationParallelism();
+        Executor executor = Runnable::run;
+        if(parallelism > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            fetchExecutor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "keycloak-synchronization-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor = fetchExecutor;
+        }
+        fetcher = new KeycloakPageFetcher(executor, parallelism, config.getSynchronizationRealmParallelism(),
+                new KeycloakPageSizer(config));
+        try {
+            if(shards == null)
+                init();
+            else
+                initSharded();
+        } catch (RuntimeException e) {
+            shutdownFetchExecutor();
+            if(shardPlan != null && !config.isSynchronizationCheckpoints())
+                shards.cleanup(shardPlan);
+            throw e;
+        }
     }
 
-    public KeycloakThreadInstance(KeycloakConfig config, String realm, String username) {
-        this(config, new String[] {realm});
-        init(username);
+    /**
+     * creates the instance of an authenticating user. Nothing is read from keycloak until
+     * the user registry asks for the user's data, that is when the person must be created or synchronized.
+     * The user's groups are returned with their parents, each with all its members and subgroups;
+     * the email contributors group is left to the full synchronization
+     */
+    public KeycloakThreadInstance(KeycloakConfig config, KeycloakAdminClientProvider adminClientProvider,
+                                  KeycloakGroupTreeCache groupTreeCache, KeycloakZoneAuthorities zoneAuthorities,
+                                  String realm, String username) {
+        this(config, adminClientProvider, groupTreeCache, zoneAuthorities, new String[] {realm});
+        this.pendingUsername = username;
+        this.login = true;
+        this.emailContributors = -1;
+        this.fetcher = new KeycloakPageFetcher(Runnable::run, 1, 1, new KeycloakPageSizer(config));
     }
 
-    private KeycloakThreadInstance(KeycloakConfig config, String[] realms) {
+    /**
+     * creates the instance of a targeted synchronization of some users and groups of a realm, whose change
+     * keycloak notified. Each group is returned with all its members and subgroups, as is its parent group
+     * that lists it; the users are returned without their groups, whose membership changes are notified as
+     * changes of the groups. The users and groups deleted from keycloak, and the email contributors group,
+     * are left to the full synchronization. Nothing is read from keycloak until the user registry asks for the data
+     *
+     * @param realm realm of the users and groups
+     * @param userIds keycloak ids of the users to synchronize
+     * @param groupIds keycloak ids of the groups to synchronize
+     */
+    public KeycloakThreadInstance(KeycloakConfig config, KeycloakAdminClientProvider adminClientProvider,
+                                  KeycloakGroupTreeCache groupTreeCache, KeycloakZoneAuthorities zoneAuthorities,
+                                  String realm, Collection<String> userIds, Collection<String> groupIds) {
+        this(config, adminClientProvider, groupTreeCache, zoneAuthorities, new String[] {realm});
+        this.pendingUserIds = new ArrayList<>(userIds);
+        this.pendingGroupIds = new ArrayList<>(groupIds);
+        this.targeted = true;
+        this.emailContributors = -1;
+        this.fetcher = new KeycloakPageFetcher(Runnable::run, 1, 1, new KeycloakPageSizer(config));
+    }
+
+    private KeycloakThreadInstance(KeycloakConfig config, KeycloakAdminClientProvider adminClientProvider,
+                                   KeycloakGroupTreeCache groupTreeCache, KeycloakZoneAuthorities zoneAuthorities, String[] realms) {
         this.config = config;
+        this.adminClientProvider = adminClientProvider;
+        this.groupTreeCache = groupTreeCache;
+        this.zoneAuthorities = zoneAuthorities;
         this.realms = realms;
     }
 
     /**
-     * get user's data in batches of {@link KeycloakConfig#getUserListingBatchSize()} for all configured realms
+     * get the groups of all configured realms and their members, read in pages sized by the {@link KeycloakPageSizer}
+     * from the members of each group. The users are read, a page at a time, by {@link #getUsers()}:
+     * here they are only listed to find the email contributors
      */
     private void init() {
-        initGroups();
+        KeycloakMetrics metrics = config.getMetrics();
+        zoneAuthorities.invalidate();
+        long start = System.nanoTime();
+        initEmailContributors();
+        metrics.timer(KeycloakMetrics.SYNC_PHASE, KeycloakMetrics.tags("phase", "contributorFiltering"), System.nanoTime() - start);
+        for (String realm : realms) {
+            loadGroups(realm);
+        }
+        start = System.nanoTime();
         Keycloak keycloak = getKeycloak();
+        List<MemberSource> memberSources = new ArrayList<>();
+        for (int group = 0; group < memberships.getGroupCount(); group++) {
+            if(group != emailContributors)
+                addMemberSources(memberSources, keycloak, group);
+        }
+        addMembers(memberSources);
+        metrics.timer(KeycloakMetrics.SYNC_PHASE, KeycloakMetrics.tags("phase", "memberships"), System.nanoTime() - start);
+        for (UserRepresentation userRepresentation : new KeycloakUserPages<>(fetcher, keycloak, realms, config.getUserListingOverlap(),
+                (realm, listedUserRepresentation) -> listedUserRepresentation, requestCount, config.getMetrics(), "emailContributors")) {
+            if(Utils.getBooleanAttribute(userRepresentation.getAttributes(), config.getEmailContributorAttribute()))
+                memberships.addMember(emailContributors, userRepresentation.getUsername());
+        }
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("Keycloak memberships of %d groups loaded, %d distinct authority names",
+                    memberships.getGroupCount(), memberships.getNameCount()));
+    }
+
+    /**
+     * get the groups of all configured realms, then their members and the email contributor users from
+     * the shards read by the cluster's nodes. The users are read from the shards by {@link #getUsers()}
+     */
+    private void initSharded() {
+        KeycloakMetrics metrics = config.getMetrics();
+        zoneAuthorities.invalidate();
+        long start = System.nanoTime();
+        initEmailContributors();
+        metrics.timer(KeycloakMetrics.SYNC_PHASE, KeycloakMetrics.tags("phase", "contributorFiltering"), System.nanoTime() - start);
+        Map<String, KeycloakGroupTree> groupTrees = new HashMap<>();
         for (String realm : realms) {
-            Integer userCount = keycloak.realm(realm).users().count();
-            int batchSize = config.getUserListingBatchSize();
-            int firstResult = 0;
-            while(firstResult < userCount) {
-                List<UserRepresentation> userRepresentations = keycloak.realm(realm).users().list(firstResult, batchSize);
-                for (UserRepresentation userRepresentation : userRepresentations) {
-                    NodeDescription user = toUser(realm, userRepresentation.getId());
-                    users.add(user);
-                }
-                firstResult = firstResult + batchSize;
+            groupTrees.put(realm, loadGroups(realm));
+        }
+        start = System.nanoTime();
+        Keycloak keycloak = getKeycloak();
+        shardPlan = shards.plan(keycloak, realms, groupTrees, requestCount);
+        shards.read(shardPlan, true, System.currentTimeMillis() + config.getSynchronizationShardTimeout() * 1000);
+        metrics.timer(KeycloakMetrics.SYNC_PHASE, KeycloakMetrics.tags("phase", "shards"), System.nanoTime() - start);
+        start = System.nanoTime();
+        // keycloak ids of the groups read by the shards, by realm
+        Map<String, Set<String>> readGroupIds = new HashMap<>();
+        shards.forEachMember(shardPlan, (realm, groupId, username) -> {
+            KeycloakGroupTree.Node node = groupTrees.get(realm).get(groupId);
+            int group = node == null ? -1 : memberships.getGroup(getGroupName(realm, node.getName()));
+            if(group < 0)
+                return;
+            if(username == null)
+                readGroupIds.computeIfAbsent(realm, key -> new HashSet<>()).add(groupId);
+            else
+                memberships.addMember(group, username);
+        });
+        // groups created after a node loaded its group hierarchy, each keycloak group of a name on its own
+        List<MemberSource> memberSources = new ArrayList<>();
+        for (int group = 0; group < memberships.getGroupCount(); group++) {
+            if(group == emailContributors)
+                continue;
+            Set<String> realmGroupIds = readGroupIds.getOrDefault(memberships.getRealm(group), Collections.emptySet());
+            for (String sourceId : memberships.getSourceIds(group)) {
+                if(!realmGroupIds.contains(sourceId))
+                    memberSources.add(new MemberSource(keycloak, group, sourceId));
             }
         }
+        if(!memberSources.isEmpty())
+            logger.info(String.format("Reading the members of %d keycloak groups missing from the shards", memberSources.size()));
+        addMembers(memberSources);
+        shards.forEachContributor(shardPlan, (realm, username) -> memberships.addMember(emailContributors, username));
+        metrics.timer(KeycloakMetrics.SYNC_PHASE, KeycloakMetrics.tags("phase", "memberships"), System.nanoTime() - start);
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("Keycloak memberships of %d groups loaded from synchronization %s, %d distinct authority names",
+                    memberships.getGroupCount(), shardPlan.getId(), memberships.getNameCount()));
     }
 
     /**
-     * get the data and the groups of an authenticating  user
+     * reloads the group hierarchy of a realm and adds its groups to the membership model
      *
-     * @param username
+     * @return the group hierarchy
      */
-    private void init(String username) {
-        initGroups();
+    private KeycloakGroupTree loadGroups(String realm) {
+        KeycloakMetrics metrics = config.getMetrics();
+        long start = System.nanoTime();
+        KeycloakGroupTree groupTree = groupTreeCache.reload(realm);
+        metrics.timer(KeycloakMetrics.SYNC_PHASE, KeycloakMetrics.tags("phase", "groupTree", "realm", realm), System.nanoTime() - start);
+        metrics.gauge(KeycloakMetrics.SYNC_ENTITIES, KeycloakMetrics.tags("type", "group", "realm", realm), groupTree.getNodes().size());
+        requestCount.addAndGet(groupTree.getRequestCount());
+        logger.info(String.format("Keycloak realm \"%s\": %d groups loaded with %d requests",
+                realm, groupTree.getNodes().size(), groupTree.getRequestCount()));
+        addGroups(groupTree);
+        return groupTree;
+    }
+
+    /**
+     * adds the members of each keycloak group of a group in the membership model
+     *
+     * @param memberSources the sources to add to
+     * @param group index of the group in the membership model
+     */
+    private void addMemberSources(List<MemberSource> memberSources, Keycloak keycloak, int group) {
+        for (String sourceId : memberships.getSourceIds(group)) {
+            memberSources.add(new MemberSource(keycloak, group, sourceId));
+        }
+    }
+
+    /**
+     * reads the members of groups in the membership model
+     *
+     * @param memberSources the members of the groups
+     */
+    private void addMembers(List<MemberSource> memberSources) {
+        Iterator<KeycloakPageFetcher.Page<MemberSource, UserRepresentation>> memberPages = fetcher.pages(memberSources);
+        while(memberPages.hasNext()) {
+            KeycloakPageFetcher.Page<MemberSource, UserRepresentation> memberPage = memberPages.next();
+            int group = memberPage.getSource().group;
+            for (UserRepresentation member : memberPage.getElements()) {
+                memberships.addMember(group, member.getUsername());
+            }
+        }
+    }
+
+    /**
+     * get the users and groups of a targeted synchronization
+     *
+     * @param userIds keycloak ids of the users
+     * @param groupIds keycloak ids of the groups
+     */
+    private void init(List<String> userIds, List<String> groupIds) {
+        String realm = realms[0];
         Keycloak keycloak = getKeycloak();
-        List<UserRepresentation> userRepresentations = keycloak.realm(realms[0]).users().search(username);
-        if(userRepresentations.isEmpty())
+        UsersResource usersResource = keycloak.realm(realm).users();
+        for (String userId : userIds) {
+            requestCount.incrementAndGet();
+            try {
+                users.add(toUserNodeDescription(usersResource.get(userId).toRepresentation(), realm));
+            } catch (NotFoundException e) {
+                if(logger.isDebugEnabled())
+                    logger.debug(String.format("Keycloak user %s of realm \"%s\" not found", userId, realm));
+            }
+        }
+        if(groupIds.isEmpty())
             return;
-        NodeDescription user = toUser(realms[0], userRepresentations.get(0).getId());
-        users.add(user);
+        KeycloakGroupTree groupTree = groupTreeCache.reload(realm);
+        requestCount.addAndGet(groupTree.getRequestCount());
+        addGroupsWithParents(keycloak, groupTree, groupIds);
     }
 
     /**
-     * get the {@link NodeDescription} of a user and populate the group map and emailContributors node
+     * adds some groups and their parent groups, each with all its members and subgroups, as a full synchronization
+     * returns them: alfresco removes from a group the members it does not list
      *
-     * @param  realm
-     * @param id keycloak user id
-     * @return user {@link NodeDescription}
+     * @param groupTree group hierarchy of the realm
+     * @param groupIds keycloak ids of the groups
      */
-    private NodeDescription toUser(String realm, String id) {
+    private void addGroupsWithParents(Keycloak keycloak, KeycloakGroupTree groupTree, Collection<String> groupIds) {
+        String realm = groupTree.getRealm();
+        Set<String> targetNames = new HashSet<>();
+        for (String groupId : groupIds) {
+            KeycloakGroupTree.Node node = groupTree.get(groupId);
+            if(node == null) {
+                if(logger.isDebugEnabled())
+                    logger.debug(String.format("Keycloak group %s of realm \"%s\" not found", groupId, realm));
+                continue;
+            }
+            targetNames.add(node.getName());
+            if(node.getParentId() != null)
+                targetNames.add(groupTree.get(node.getParentId()).getName());
+        }
+        // groups with the same name under different parents are the same alfresco group, as in a full synchronization:
+        // it is returned with the members and subgroups of all of them
+        List<MemberSource> memberSources = new ArrayList<>();
+        for (KeycloakGroupTree.Node node : groupTree.getNodes()) {
+            if(!targetNames.contains(node.getName()))
+                continue;
+            String groupName = getGroupName(realm, node.getName());
+            int group = memberships.getGroup(groupName);
+            if(group < 0)
+                group = memberships.addGroup(groupName, realm, node.getId(), node.getName());
+            else
+                memberships.addSourceId(group, node.getId());
+            memberSources.add(new MemberSource(keycloak, group, node.getId()));
+            for (String childId : node.getChildIds()) {
+                memberships.addMember(group, getGroupName(realm, groupTree.get(childId).getName()));
+            }
+        }
+        addMembers(memberSources);
+    }
+
+    /**
+     * get the data and the groups of an authenticating  user.
+     * The groups of the user, and their parents, are resolved through the cached group hierarchy of the realm,
+     * reloaded if it misses one of them, and returned with all their members and subgroups
+     *
+     * @param username
+     */
+    private void init(String username) {
+        String realm = realms[0];
         Keycloak keycloak = getKeycloak();
-        UserRepresentation userRepresentation = keycloak.realm(realm).users().get(id).toRepresentation();
-        String username = userRepresentation.getUsername();
-        NodeDescription userNodeDescription = toUserNodeDescription(userRepresentation, realm);
-        UserResource userResource = keycloak.realm(realm).users().get(userRepresentation.getId());
-        List<GroupRepresentation> groups = userResource.groups();
-        for (GroupRepresentation group : groups) {
-            String groupName = getGroupName(realm, group.getName());
-            groupsMap.get(groupName).groupNodedescription.getChildAssociations().add(username);
+        List<UserRepresentation> userRepresentations = keycloak.realm(realm).users().search(username);
+        if(userRepresentations.isEmpty())
+            return;
+        UserResource userResource = keycloak.realm(realm).users().get(userRepresentations.get(0).getId());
+        users.add(toUserNodeDescription(userResource.toRepresentation(), realm));
+        List<String> groupIds = new ArrayList<>();
+        for (GroupRepresentation group : userResource.groups()) {
+            groupIds.add(group.getId());
         }
-        boolean emailContributor = getBooleanAttribute(userRepresentation, config.getEmailContributorAttribute());
-        if(emailContributor) {
-            emailContributors.getChildAssociations().add(username);
+        if(groupIds.isEmpty())
+            return;
+        KeycloakGroupTree groupTree = groupTreeCache.get(realm);
+        for (String groupId : groupIds) {
+            if(groupTree.get(groupId) == null) {
+                // a group created after the hierarchy was cached
+                groupTree = groupTreeCache.reload(realm);
+                requestCount.addAndGet(groupTree.getRequestCount());
+                break;
+            }
         }
-        return userNodeDescription;
+        addGroupsWithParents(keycloak, groupTree, groupIds);
     }
 
     private NodeDescription toUserNodeDescription(UserRepresentation userRepresentation, String realm) {
@@ -165,142 +466,290 @@ public class KeycloakThreadInstance {
     }
 
     private Keycloak getKeycloak() {
-        if(keycloak == null) {
-            keycloak = KeycloakBuilder.builder()
-                    .serverUrl(config.getUrl())
-                    .realm("master")
-                    .clientId(config.getAdminClient())
-                    .clientSecret(config.getAdminSecret())
-                    .grantType(OAuth2Constants.CLIENT_CREDENTIALS)
-                    .build();
-        }
-        return keycloak;
+        return adminClientProvider.getKeycloak();
     }
 
+    /**
+     * releases the data collected by this instance.
+     * The shared admin client is left open: it is closed by the {@link KeycloakAdminClientProvider}
+     * when the subsystem is stopped
+     *
+     * @param logger
+     */
     public void dispose(Log logger) {
-        if(keycloak != null) {
-            try {
-                keycloak.close();
-            } catch (Exception e) {
-                logger.error("Error closing keycloak admin client", e);
-            }
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Disposing keycloak instance with %d groups", memberships.getGroupCount()));
+        }
+        if(targeted || (login && usersRead)) {
+            // a login reads the user only when alfresco creates the missing person
+            zoneAuthorities.invalidate();
+        } else if(!login) {
+            logger.info(String.format("Keycloak synchronization made %d requests", requestCount.get()));
+            config.getMetrics().gauge(KeycloakMetrics.SYNC_ENTITIES, KeycloakMetrics.tags("type", "request"), requestCount.get());
+            zoneAuthorities.invalidate();
+        }
+        shutdownFetchExecutor();
+        if(shardPlan != null) {
+            // the shards of a failed synchronization are resumed by the next one
+            if(committed || !config.isSynchronizationCheckpoints())
+                shards.cleanup(shardPlan);
+            else
+                logger.info(String.format("Keeping the shards of keycloak synchronization %s to resume it", shardPlan.getId()));
+            shardPlan = null;
+        }
+        users = new ArrayList<>();
+        memberships = new KeycloakMembershipModel();
+    }
+
+    private void shutdownFetchExecutor() {
+        if(fetchExecutor != null)
+            fetchExecutor.shutdownNow();
+    }
+
+    /**
+     * marks the synchronization as committed by alfresco: its checkpoints are removed when the instance is disposed
+     */
+    public void commit() {
+        committed = true;
+    }
+
+    /**
+     * @return number of keycloak requests made by the instance
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return true if the instance holds only the data of an authenticating user
+     */
+    public boolean isLoginInstance() {
+        return login;
+    }
+
+    /**
+     * @return true once alfresco asked for the users and the groups to import: false if it did not synchronize,
+     * for instance because another synchronization held its lock
+     */
+    public boolean isRead() {
+        return usersRead && groupsRead;
+    }
+
+    /**
+     * @return true if the instance holds only the users and groups of a targeted synchronization
+     */
+    public boolean isTargeted() {
+        return targeted;
+    }
+
+    /**
+     * loads the data of the authenticating user, or of the targeted synchronization, if not yet loaded.
+     * If loading fails the data read so far are discarded, and the next call loads them again
+     */
+    private void initIfPending() {
+        if(pendingUsername == null && pendingUserIds == null)
+            return;
+        try {
+            if(pendingUsername != null)
+                init(pendingUsername);
+            else
+                init(pendingUserIds, pendingGroupIds);
+        } catch (RuntimeException e) {
+            users = new ArrayList<>();
+            memberships = new KeycloakMembershipModel();
+            throw e;
         }
+        pendingUsername = null;
+        pendingUserIds = null;
+        pendingGroupIds = null;
     }
 
-    public List<NodeDescription> getUsers() {
-        return users;
+    /**
+     * @return the users to import. Those of a synchronization are read from keycloak while the collection is iterated
+     */
+    public Collection<NodeDescription> getUsers() {
+        initIfPending();
+        usersRead = true;
+        if(login || targeted)
+            return users;
+        if(shardPlan != null)
+            return getShardUsers((realm, userRepresentation) -> toUserNodeDescription(userRepresentation, realm), "persons");
+        return new KeycloakUserPages<>(fetcher, getKeycloak(), realms, config.getUserListingOverlap(),
+                (realm, userRepresentation) -> toUserNodeDescription(userRepresentation, realm), requestCount,
+                config.getMetrics(), "persons");
     }
 
-    public List<String> getPersonNames() {
+    public Collection<String> getPersonNames() {
+        initIfPending();
+        if(shardPlan != null)
+            return getShardUsers((realm, userRepresentation) -> userRepresentation.getUsername(), "personNames");
+        if(!login && !targeted)
+            return new KeycloakUserPages<>(fetcher, getKeycloak(), realms, config.getUserListingOverlap(),
+                    (realm, userRepresentation) -> userRepresentation.getUsername(), requestCount,
+                    config.getMetrics(), "personNames");
         List<String> names = users.stream()
                 .map(nodeDescription -> (String) nodeDescription.getProperties()
                         .get(ContentModel.PROP_USERNAME)).collect(Collectors.toList());
         return names;
     }
 
-    public List<NodeDescription> getGroups() {
-        List<NodeDescription> groups = groupsMap.values()
-                .stream().map(group -> group.groupNodedescription).collect(Collectors.toList());
-        if(!emailContributors.getChildAssociations().isEmpty())
-            groups.add(emailContributors);
-        return groups;
+    /**
+     * @param converter converts a user of a realm to an element of the collection
+     * @param phase synchronization phase the realms read again are timed as
+     * @return the users read by the shards, the realms changed meanwhile read again from keycloak
+     */
+    private <T> Collection<T> getShardUsers(BiFunction<String, UserRepresentation, T> converter, String phase) {
+        Keycloak keycloak = getKeycloak();
+        return shards.users(shardPlan, converter,
+                realm -> new KeycloakUserPages<>(fetcher, keycloak, new String[] {realm}, config.getUserListingOverlap(),
+                        (userRealm, userRepresentation) -> userRepresentation, requestCount, config.getMetrics(), phase),
+                realm -> {
+                    requestCount.incrementAndGet();
+                    return keycloak.realm(realm).users().count();
+                });
+    }
+
+    /**
+     * @return the groups to import, the email contributors group only if it has members.
+     * The {@link NodeDescription} of each group is created while the collection is iterated
+     */
+    public Collection<NodeDescription> getGroups() {
+        initIfPending();
+        groupsRead = true;
+        KeycloakMembershipModel memberships = this.memberships;
+        int count = memberships.getGroupCount() - (emailContributors < 0 || memberships.hasMembers(emailContributors) ? 0 : 1);
+        return new AbstractCollection<NodeDescription>() {
+            @Override
+            public Iterator<NodeDescription> iterator() {
+                return new Iterator<NodeDescription>() {
+                    private int next = skipEmptyEmailContributors(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < memberships.getGroupCount();
+                    }
+
+                    @Override
+                    public NodeDescription next() {
+                        if(!hasNext())
+                            throw new NoSuchElementException();
+                        NodeDescription group = toGroupNodeDescription(memberships, next);
+                        next = skipEmptyEmailContributors(next + 1);
+                        return group;
+                    }
+
+                    private int skipEmptyEmailContributors(int group) {
+                        return group == emailContributors && !memberships.hasMembers(group) ? group + 1 : group;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
     }
 
     public List<String> getGroupNames() {
-        List<String> names = groupsMap.values().stream()
-                .map(group -> (String) group.groupNodedescription.getProperties()
-                        .get(ContentModel.PROP_AUTHORITY_NAME)).collect(Collectors.toList());
-        if(!emailContributors.getChildAssociations().isEmpty())
-            names.add((String) emailContributors.getProperties().get(ContentModel.PROP_AUTHORITY_NAME));
+        initIfPending();
+        List<String> names = new ArrayList<>(memberships.getGroupCount());
+        for (int group = 0; group < memberships.getGroupCount(); group++) {
+            if(group != emailContributors || memberships.hasMembers(group))
+                names.add(memberships.getAuthorityName(group));
+        }
         return names;
     }
 
     /**
-     * initialize the map of keycloak group to synchronize with the alfresco groups
+     * initialize the alfresco email contributors group with its members not imported from keycloak
      */
-    private void initGroups() {
-        emailContributors = getGroup(config.getEmailContributorsGroupName(), "", config.getEmailContributorsGroupName());
+    private void initEmailContributors() {
         String emailContribGroupName = String.format("GROUP_%s", config.getEmailContributorsGroupName());
-        emailContributors.getProperties().put(ContentModel.PROP_AUTHORITY_NAME, emailContribGroupName);
+        emailContributors = memberships.addGroup(emailContribGroupName, "", config.getEmailContributorsGroupName(),
+                config.getEmailContributorsGroupName());
 
         boolean doit = true;
         if(doit) {
             AuthenticationUtil.runAsSystem((AuthenticationUtil.RunAsWork<Set<Void>>) () -> {
                 Set<String> nonImportedEmailContribGroups = config.getServiceRegistry().getAuthorityService().getContainedAuthorities(AuthorityType.GROUP, emailContribGroupName, true);
                 nonImportedEmailContribGroups = filterNonKeycloakAuthorities(nonImportedEmailContribGroups);
-                emailContributors.getChildAssociations().addAll(nonImportedEmailContribGroups);
+                nonImportedEmailContribGroups.forEach(authority -> memberships.addMember(emailContributors, authority));
                 Set<String> nonImportedEmailContribUsers = config.getServiceRegistry().getAuthorityService().getContainedAuthorities(AuthorityType.USER, emailContribGroupName, true);
                 nonImportedEmailContribUsers = filterNonKeycloakAuthorities(nonImportedEmailContribUsers);
-                emailContributors.getChildAssociations().addAll(nonImportedEmailContribUsers);
+                nonImportedEmailContribUsers.forEach(authority -> memberships.addMember(emailContributors, authority));
                 return null;
             });
         }
-
-        for (String realm : realms) {
-            Group group = new Group(realm);
-            collectGroups(group);
-        }
     }
 
+    /**
+     * @param authorities alfresco authority names
+     * @return the authorities not in the subsystem's authentication zones
+     */
     private Set<String> filterNonKeycloakAuthorities(Set<String> authorities) {
-        ServiceRegistry serviceRegistry = config.getServiceRegistry();
-        AuthorityService authorityService = serviceRegistry.getAuthorityService();
-        NodeService nodeService = serviceRegistry.getNodeService();
-        Set<String> filtered = new HashSet<>(authorities);
+        Set<String> filtered = new HashSet<>();
         for (String authority : authorities) {
-            NodeRef nodeRef = authorityService.getAuthorityNodeRef(authority);
-            List<ChildAssociationRef> assocs = nodeService.getParentAssocs(nodeRef, ContentModel.ASSOC_IN_ZONE, RegexQNamePattern.MATCH_ALL);
-            for (ChildAssociationRef assoc : assocs) {
-                NodeRef parentNodeRef = assoc.getParentRef();
-                String name = (String) nodeService.getProperty(parentNodeRef, ContentModel.PROP_NAME);
-                if(config.getAuthZones().contains((name)))
-                    filtered.remove(authority);
-            }
+            if(!zoneAuthorities.contains(authority))
+                filtered.add(authority);
         }
         return filtered;
     }
 
-    private void collectGroups(Group parentGroup) {
-        Keycloak keycloak = getKeycloak();
-        List<GroupRepresentation> groupRepresentations =
-                parentGroup.groupRepresentation == null ?
-                        keycloak.realm(parentGroup.realm).groups().groups():
-                        parentGroup.groupRepresentation.getSubGroups();
-        addAsEmailContributor(parentGroup);
-        for (GroupRepresentation groupRepresentation : groupRepresentations) {
-            GroupRepresentation fullGroupRepresentation = keycloak.realm(parentGroup.realm)
-                    .groups().group(groupRepresentation.getId()).toRepresentation();
-            String id = groupRepresentation.getId();
-            String name = groupRepresentation.getName();
-            NodeDescription nodeDescription = getGroup(id, parentGroup.realm, name);
-            if(parentGroup.groupRepresentation != null) {
-                String groupName = (String) nodeDescription.getProperties().get(ContentModel.PROP_AUTHORITY_NAME);
-                parentGroup.groupNodedescription.getChildAssociations().add(groupName);
-            }
-
-            Group group = new Group(parentGroup.realm, fullGroupRepresentation, nodeDescription);
-            groupsMap.put(group.getAlfrescoName(), group);
-            collectGroups(group);
+    /**
+     * add all the groups of a realm to the map of keycloak groups to synchronize with the alfresco groups
+     *
+     * @param groupTree group hierarchy of the realm
+     */
+    private void addGroups(KeycloakGroupTree groupTree) {
+        for (KeycloakGroupTree.Node node : groupTree.getNodes()) {
+            addGroup(groupTree, node.getId());
         }
     }
 
-    private void addAsEmailContributor(Group group) {
-        if(group.groupRepresentation == null)
-            return;
-        boolean emailContributor = getBooleanAttribute(group.groupRepresentation.getAttributes(), config.getEmailContributorAttribute());
-        if(emailContributor) {
-            emailContributors.getChildAssociations().add(group.getAlfrescoName());
+    /**
+     * add a group and its ancestors to the map of keycloak groups to synchronize with the alfresco groups.
+     * A group with the same name as an added one is added as another keycloak id of the same alfresco group
+     *
+     * @param groupTree group hierarchy of the group's realm
+     * @param id keycloak group id
+     * @return index of the added group in the membership model, -1 if the group is not in the hierarchy
+     */
+    private int addGroup(KeycloakGroupTree groupTree, String id) {
+        KeycloakGroupTree.Node node = groupTree.get(id);
+        if(node == null)
+            return -1;
+        String realm = groupTree.getRealm();
+        String groupName = getGroupName(realm, node.getName());
+        int group = memberships.getGroup(groupName);
+        if(group < 0)
+            group = memberships.addGroup(groupName, realm, node.getId(), node.getName());
+        else if(!memberships.addSourceId(group, node.getId()))
+            return group;
+        if(node.isEmailContributor())
+            memberships.addMember(emailContributors, groupName);
+        if(node.getParentId() != null) {
+            int parentGroup = addGroup(groupTree, node.getParentId());
+            if(parentGroup >= 0)
+                memberships.addMember(parentGroup, groupName);
         }
+        return group;
     }
 
-    private NodeDescription getGroup(String id, String realm, String name) {
-        NodeDescription nodeDescription = new NodeDescription(id);
+    /**
+     * @param memberships the membership model holding the group
+     * @param group index of the group in the membership model
+     * @return a new node description of the group with its members
+     */
+    private NodeDescription toGroupNodeDescription(KeycloakMembershipModel memberships, int group) {
+        NodeDescription nodeDescription = new NodeDescription(memberships.getSourceId(group));
         nodeDescription.setLastModified(new Date());
-        nodeDescription.getProperties().put(ContentModel.PROP_AUTHORITY_NAME, getGroupName(realm, name));
-        nodeDescription.getProperties().put(ContentModel.PROP_AUTHORITY_DISPLAY_NAME, name);
+        nodeDescription.getProperties().put(ContentModel.PROP_AUTHORITY_NAME, memberships.getAuthorityName(group));
+        nodeDescription.getProperties().put(ContentModel.PROP_AUTHORITY_DISPLAY_NAME, memberships.getDisplayName(group));
 
         QName propRealm = QName.createQName(config.getUserAspect().getNamespaceURI(), PROP_IMPORT_REALM_NAME);
-        nodeDescription.getProperties().put(propRealm, realm);
+        nodeDescription.getProperties().put(propRealm, memberships.getRealm(group));
+        memberships.forEachMember(group, nodeDescription.getChildAssociations()::add);
         return nodeDescription;
     }
 
@@ -309,63 +758,30 @@ public class KeycloakThreadInstance {
         return groupName;
     }
 
-    private boolean getBooleanAttribute(UserRepresentation userRepresentation, String attribute) {
-        Map<String, List<String>> attributes = userRepresentation.getAttributes();
-        return getBooleanAttribute(attributes, attribute);
-    }
-
-    private boolean getBooleanAttribute(Map<String, List<String>> attributes, String attribute) {
-        if(attributes != null) {
-            List<String> values = attributes.get(attribute);
-            if(values != null && !values.isEmpty()) {
-                return "true".equals(values.get(0));
-            }
-        }
-        return false;
-    }
-
-
-    private class Group {
-        String realm;
-        NodeDescription groupNodedescription;
-        GroupRepresentation groupRepresentation;
-
-        public Group(String realm) {
-            this.realm = realm;
-        }
-
-        public Group(String realm, GroupRepresentation groupRepresentation, NodeDescription groupNodedescription) {
-            this.realm = realm;
-            this.groupNodedescription = groupNodedescription;
-            this.groupRepresentation = groupRepresentation;
-        }
-
-        String getAlfrescoName() {
-            return getGroupName(realm, groupRepresentation.getName());
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            Group group = (Group) o;
-
-            if (!realm.equals(group.realm)) return false;
-            return groupRepresentation.getName().equals(group.groupRepresentation.getName());
+    /**
+     * the members of a keycloak group
+     */
+    private class MemberSource extends KeycloakPageFetcher.Source<UserRepresentation> {
+        /**
+         * index of the group in the membership model
+         */
+        final int group;
+        final GroupResource groupResource;
+
+        /**
+         * @param sourceId one of the keycloak ids of the group
+         */
+        MemberSource(Keycloak keycloak, int group, String sourceId) {
+            super(memberships.getRealm(group));
+            this.group = group;
+            this.groupResource = keycloak.realm(memberships.getRealm(group)).groups().group(sourceId);
         }
 
         @Override
-        public int hashCode() {
-            int result = realm.hashCode();
-            result = 31 * result + groupRepresentation.getName().hashCode();
-            return result;
+        List<UserRepresentation> fetch(int first, int max) {
+            requestCount.incrementAndGet();
+            return groupResource.members(first, max);
         }
     }
 
 }
-
-
-
-
-
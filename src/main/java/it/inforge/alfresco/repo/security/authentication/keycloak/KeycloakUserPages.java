@@ -0,0 +1,266 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * lazy collection of the users of some keycloak realms.
+ * <p>
+ * Each iteration reads the users from keycloak in pages sized by the {@link KeycloakPageSizer}
+ * through a {@link KeycloakPageFetcher}, fetching ahead only the pages its parallelism allows,
+ * so that only a few pages at a time are kept in memory. The users are returned realm by realm, in the keycloak order.
+ * </p>
+ * <p>
+ * Keycloak only pages users by offset, so users created or deleted during the iteration shift the following pages.
+ * Each page is requested with the last users of the previous one, and a page that does not start with
+ * the end of the previous one, or a realm whose count changed, makes the iteration end with a reconciliation
+ * pass reading the users of the realm again. Without it a skipped user would be taken as deleted by alfresco.
+ * The ids of the users returned are kept in a {@link KeycloakIdSet}, so that each user is returned once
+ * however the pages shift.
+ * </p>
+ *
+ * @param <T> type of the elements the users are converted to
+ * @since   1.0
+ */
+final class KeycloakUserPages<T> extends AbstractCollection<T> {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final KeycloakPageFetcher fetcher;
+    private final Keycloak keycloak;
+    private final String[] realms;
+    /**
+     * users of the previous page requested again with each page
+     */
+    private final int overlap;
+    /**
+     * converts a user of a realm to an element of the collection
+     */
+    private final BiFunction<String, UserRepresentation, T> converter;
+    /**
+     * incremented at each keycloak request
+     */
+    private final AtomicLong requestCount;
+    private final KeycloakMetrics metrics;
+    /**
+     * synchronization phase the iterations are timed as
+     */
+    private final String phase;
+    /**
+     * number of users of the realms, -1 if not yet counted
+     */
+    private int size = -1;
+
+    /**
+     * @param fetcher reads the pages of users
+     * @param keycloak the keycloak admin client
+     * @param realms realms whose users are read
+     * @param overlap users of the previous page requested again with each page
+     * @param converter converts a user of a realm to an element of the collection
+     * @param requestCount incremented at each keycloak request
+     * @param metrics records the duration of the iterations and the number of users
+     * @param phase synchronization phase the iterations are timed as
+     */
+    KeycloakUserPages(KeycloakPageFetcher fetcher, Keycloak keycloak, String[] realms, int overlap,
+                      BiFunction<String, UserRepresentation, T> converter, AtomicLong requestCount,
+                      KeycloakMetrics metrics, String phase) {
+        this.fetcher = fetcher;
+        this.keycloak = keycloak;
+        this.realms = realms;
+        this.overlap = Math.max(0, overlap);
+        this.converter = converter;
+        this.requestCount = requestCount;
+        this.metrics = metrics;
+        this.phase = phase;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new UserIterator();
+    }
+
+    /**
+     * @return the number of users in the realms, as counted by keycloak
+     */
+    @Override
+    public int size() {
+        if(size < 0) {
+            int count = 0;
+            for (String realm : realms) {
+                count += count(realm);
+            }
+            size = count;
+        }
+        return size;
+    }
+
+    private int count(String realm) {
+        requestCount.incrementAndGet();
+        return keycloak.realm(realm).users().count();
+    }
+
+    private class UserIterator implements Iterator<T> {
+        private final PageLatencies latencies = new PageLatencies();
+        private final long start = System.nanoTime();
+        private final List<UserSource> sources = new ArrayList<>();
+        /**
+         * ids of the last users of the previous page, requested again with the following one, by realm
+         */
+        private final Map<String, List<String>> previousPages = new HashMap<>();
+        /**
+         * realms whose pages shifted while they were read
+         */
+        private final Set<String> shifted = new LinkedHashSet<>();
+        private Iterator<KeycloakPageFetcher.Page<UserSource, UserRepresentation>> pages;
+        private boolean reconciling = false;
+        private String realm;
+        private Iterator<UserRepresentation> page = Collections.emptyIterator();
+        /**
+         * ids of the users returned, by realm
+         */
+        private final Map<String, KeycloakIdSet> returnedIds = new HashMap<>();
+        private KeycloakIdSet realmReturnedIds;
+        private UserRepresentation next;
+        /**
+         * number of users returned
+         */
+        private int returned = 0;
+
+        UserIterator() {
+            for (String realm : realms) {
+                sources.add(new UserSource(realm, latencies));
+            }
+            pages = fetcher.pages(sources);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(next == null) {
+                while(!page.hasNext()) {
+                    if(pages == null) {
+                        return false;
+                    } else if(pages.hasNext()) {
+                        readPage(pages.next());
+                    } else if(!reconciling && reconcile()) {
+                        reconciling = true;
+                    } else {
+                        finished();
+                        return false;
+                    }
+                }
+                UserRepresentation userRepresentation = page.next();
+                if(realmReturnedIds.add(userRepresentation.getId())) {
+                    next = userRepresentation;
+                    returned++;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            UserRepresentation userRepresentation = next;
+            next = null;
+            return converter.apply(realm, userRepresentation);
+        }
+
+        /**
+         * checks that the page starts with the end of the previous page of the realm
+         */
+        private void readPage(KeycloakPageFetcher.Page<UserSource, UserRepresentation> userPage) {
+            realm = userPage.getSource().getRealm();
+            List<UserRepresentation> users = userPage.getElements();
+            List<String> ids = new ArrayList<>(users.size());
+            for (UserRepresentation userRepresentation : users) {
+                ids.add(userRepresentation.getId());
+            }
+            List<String> previous = userPage.getFirst() > 0 ? previousPages.getOrDefault(realm, Collections.emptyList()) : Collections.emptyList();
+            if(!reconciling && userPage.getFirst() > 0) {
+                int expected = Math.min(userPage.getSource().overlap(userPage.getFirst()), previous.size());
+                if(ids.size() < expected || !ids.subList(0, expected).equals(previous.subList(previous.size() - expected, previous.size())))
+                    shifted.add(realm);
+            }
+            realmReturnedIds = returnedIds.computeIfAbsent(realm, key -> new KeycloakIdSet());
+            previousPages.put(realm, new ArrayList<>(ids.subList(Math.max(0, ids.size() - overlap), ids.size())));
+            page = users.iterator();
+        }
+
+        /**
+         * starts a pass over the realms whose users shifted or whose count changed
+         *
+         * @return true if a reconciliation pass is needed
+         */
+        private boolean reconcile() {
+            List<UserSource> reconciled = new ArrayList<>();
+            for (UserSource source : sources) {
+                int count = count(source.getRealm());
+                if(shifted.contains(source.getRealm()) || count != source.counted) {
+                    logger.info(String.format("Users of keycloak realm \"%s\" changed while they were read (%d users, now %d): reconciling",
+                            source.getRealm(), source.counted, count));
+                    reconciled.add(new UserSource(source.getRealm(), latencies));
+                }
+            }
+            if(reconciled.isEmpty())
+                return false;
+            pages = fetcher.pages(reconciled);
+            return true;
+        }
+
+        private void finished() {
+            if(pages != null) {
+                pages = null;
+                metrics.timer(KeycloakMetrics.SYNC_PHASE, KeycloakMetrics.tags("phase", phase), System.nanoTime() - start);
+                metrics.gauge(KeycloakMetrics.SYNC_ENTITIES, KeycloakMetrics.tags("type", "user"), returned);
+                logger.info(String.format("Read %d keycloak users, page latencies:%n%s", returned, latencies.summary()));
+            }
+        }
+    }
+
+    /**
+     * the users of a realm
+     */
+    private class UserSource extends KeycloakPageFetcher.Source<UserRepresentation> {
+        private final PageLatencies latencies;
+        /**
+         * number of users of the realm when the iteration started
+         */
+        private int counted;
+
+        UserSource(String realm, PageLatencies latencies) {
+            super(realm);
+            this.latencies = latencies;
+        }
+
+        @Override
+        int count() {
+            counted = KeycloakUserPages.this.count(getRealm());
+            return counted;
+        }
+
+        @Override
+        int overlap(int first) {
+            return Math.min(overlap, first);
+        }
+
+        /**
+         * @return the users from first - overlap, so that the page starts with the end of the previous one
+         */
+        @Override
+        List<UserRepresentation> fetch(int first, int max) {
+            int from = first - overlap(first);
+            requestCount.incrementAndGet();
+            long start = System.nanoTime();
+            List<UserRepresentation> users = keycloak.realm(getRealm()).users().list(from, max + first - from);
+            latencies.record(getRealm(), first, System.nanoTime() - start);
+            return users;
+        }
+    }
+}
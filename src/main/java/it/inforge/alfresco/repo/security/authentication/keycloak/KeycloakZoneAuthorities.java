@@ -0,0 +1,80 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * cache of the names of the alfresco authorities in the subsystem's authentication zones,
+ * that is the users and groups imported from keycloak.
+ * <p>
+ * It is loaded on first use with one query per zone and invalidated by the synchronizations,
+ * that create and delete the authorities of the zones, and by the logins that create a missing person.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakZoneAuthorities {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    /**
+     * connector's configuration
+     */
+    private KeycloakConfig config;
+
+    private volatile Set<String> authorities;
+
+    /**
+     * @param authority alfresco authority name
+     * @return true if the authority is in one of the subsystem's authentication zones
+     */
+    public boolean contains(String authority) {
+        return getAuthorities().contains(authority);
+    }
+
+    private Set<String> getAuthorities() {
+        Set<String> loaded = authorities;
+        if(loaded == null) {
+            synchronized (this) {
+                loaded = authorities;
+                if(loaded == null) {
+                    loaded = load();
+                    authorities = loaded;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private Set<String> load() {
+        AuthorityService authorityService = config.getServiceRegistry().getAuthorityService();
+        Set<String> loaded = new HashSet<>();
+        AuthenticationUtil.runAsSystem((AuthenticationUtil.RunAsWork<Void>) () -> {
+            for (String zone : config.getAuthZones()) {
+                loaded.addAll(authorityService.getAllAuthoritiesInZone(zone, null));
+            }
+            return null;
+        });
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Loaded %d authorities of zones %s", loaded.size(), config.getAuthZones()));
+        }
+        return Collections.unmodifiableSet(loaded);
+    }
+
+    /**
+     * forgets the authorities, that are loaded again on next use
+     */
+    public void invalidate() {
+        authorities = null;
+    }
+
+    public void setConfig(KeycloakConfig config) {
+        this.config = config;
+    }
+}
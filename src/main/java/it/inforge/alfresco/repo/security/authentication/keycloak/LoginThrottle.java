@@ -0,0 +1,97 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * per user and realm exponential backoff of the authentications rejected by keycloak.
+ * <p>
+ * After threshold consecutive rejections the realm is not called for the user for delay seconds,
+ * doubled at each further rejection up to maxDelay seconds. An accepted authentication resets the backoff,
+ * which is also forgotten maxDelay seconds after the last rejection.
+ * </p>
+ *
+ * @since   1.0
+ */
+final class LoginThrottle {
+
+    private final ExpiringLruCache<String, State> states;
+    private final int threshold;
+    private final long delayNanos;
+    private final long maxDelayNanos;
+
+    /**
+     * @param maxSize maximum number of users and realms tracked
+     * @param threshold consecutive rejections before the realm is no more called for the user
+     * @param delay seconds the realm is not called after threshold rejections
+     * @param maxDelay maximum seconds the realm is not called
+     */
+    LoginThrottle(int maxSize, int threshold, long delay, long maxDelay) {
+        this.states = new ExpiringLruCache<>(maxSize, maxDelay);
+        this.threshold = threshold;
+        this.delayNanos = TimeUnit.SECONDS.toNanos(delay);
+        this.maxDelayNanos = TimeUnit.SECONDS.toNanos(maxDelay);
+    }
+
+    /**
+     * @param realm keycloak realm
+     * @param userName the username of the authenticating user.
+     * @return true if the realm must not be called for the user
+     */
+    synchronized boolean isBlocked(String realm, String userName) {
+        State state = states.get(getKey(realm, userName));
+        return state != null && state.blockedUntil - System.nanoTime() > 0;
+    }
+
+    /**
+     * records a rejection of the user's credentials by the realm
+     *
+     * @param realm keycloak realm
+     * @param userName the username of the authenticating user.
+     */
+    synchronized void rejected(String realm, String userName) {
+        String key = getKey(realm, userName);
+        State state = states.get(key);
+        int rejections = state == null ? 1 : state.rejections + 1;
+        long blockedUntil = System.nanoTime();
+        if(rejections >= threshold) {
+            long backoff = delayNanos;
+            for (int i = threshold; i < rejections && backoff < maxDelayNanos; i++) {
+                backoff <<= 1;
+            }
+            blockedUntil += Math.min(backoff, maxDelayNanos);
+        }
+        states.put(key, new State(rejections, blockedUntil));
+    }
+
+    /**
+     * records that the realm accepted the user's credentials
+     *
+     * @param realm keycloak realm
+     * @param userName the username of the authenticating user.
+     */
+    synchronized void accepted(String realm, String userName) {
+        states.remove(getKey(realm, userName));
+    }
+
+    /**
+     * forgets the rejections of all the users
+     */
+    synchronized void clear() {
+        states.clear();
+    }
+
+    private String getKey(String realm, String userName) {
+        return realm + '\u0000' + userName.toLowerCase(Locale.ROOT);
+    }
+
+    private static class State {
+        final int rejections;
+        final long blockedUntil;
+
+        State(int rejections, long blockedUntil) {
+            this.rejections = rejections;
+            this.blockedUntil = blockedUntil;
+        }
+    }
+}
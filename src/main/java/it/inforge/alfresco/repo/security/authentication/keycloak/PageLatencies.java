@@ -0,0 +1,63 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * thread safe record of the time taken by each page read from keycloak, by realm.
+ * <p>
+ * Keycloak pages users by offset, so deep pages may cost more than the first ones:
+ * the summary compares the mean latency of the deepest tenth of the pages with the overall mean.
+ * </p>
+ *
+ * @since   1.0
+ */
+final class PageLatencies {
+
+    private final Map<String, List<long[]>> latencies = new TreeMap<>();
+
+    /**
+     * @param realm keycloak realm
+     * @param first offset of the page
+     * @param nanos time taken to read the page
+     */
+    synchronized void record(String realm, int first, long nanos) {
+        latencies.computeIfAbsent(realm, key -> new ArrayList<>()).add(new long[] {first, nanos});
+    }
+
+    /**
+     * @return one line per realm with the number of pages and their mean, deepest tenth mean and maximum latency
+     */
+    synchronized String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, List<long[]>> realmLatencies : latencies.entrySet()) {
+            List<long[]> pages = new ArrayList<>(realmLatencies.getValue());
+            pages.sort((a, b) -> Long.compare(a[0], b[0]));
+            long total = 0;
+            long[] slowest = pages.get(0);
+            for (long[] page : pages) {
+                total += page[1];
+                if(page[1] > slowest[1])
+                    slowest = page;
+            }
+            int deepCount = Math.max(1, pages.size() / 10);
+            long deepTotal = 0;
+            for (long[] page : pages.subList(pages.size() - deepCount, pages.size())) {
+                deepTotal += page[1];
+            }
+            if(summary.length() > 0)
+                summary.append('\n');
+            summary.append(String.format("realm \"%s\": %d pages, mean %d ms, deepest %d pages mean %d ms, max %d ms at offset %d",
+                    realmLatencies.getKey(), pages.size(), millis(total / pages.size()),
+                    deepCount, millis(deepTotal / deepCount), millis(slowest[1]), slowest[0]));
+        }
+        return summary.toString();
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -1,6 +1,8 @@
 package it.inforge.alfresco.repo.security.authentication.keycloak;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 final class Utils {
 
@@ -8,8 +10,18 @@ final class Utils {
         return string == null || string.trim().length() < 1;
     }
 
-    public static final boolean isEmpty(Collection collection) {
+    public static final boolean isEmpty(Collection<?> collection) {
         return collection == null || collection.isEmpty();
     }
 
+    public static final boolean getBooleanAttribute(Map<String, List<String>> attributes, String attribute) {
+        if(attributes != null) {
+            List<String> values = attributes.get(attribute);
+            if(values != null && !values.isEmpty()) {
+                return "true".equals(values.get(0));
+            }
+        }
+        return false;
+    }
+
 }
@@ -0,0 +1,346 @@
+package it.inforge.alfresco.repo.security.sync.keycloak;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.sync.NodeDescription;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * persists, in the alfresco attribute service, a fingerprint of each person and group synchronized
+ * from keycloak with the time it last changed.
+ * <p>
+ * Keycloak does not track when users and groups are modified: comparing the fingerprint of an entity with the
+ * stored one tells whether it changed since the last successful synchronization, and gives it an accurate
+ * last modified date to be compared with the synchronization's modifiedSince.
+ * The fingerprint of a change is stored only once alfresco applied it: alfresco logs the entities it fails to
+ * synchronize and goes on, and their changes must be found again by the next synchronization.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakFingerprintStore {
+
+    private static final String KEY_FINGERPRINTS = "keycloak.fingerprints";
+    static final String TYPE_PERSON = "person";
+    static final String TYPE_GROUP = "group";
+    /**
+     * time of the last full synchronization that returned all the persons and groups
+     */
+    private static final String KEY_REPAIRED = "repaired";
+
+    /**
+     * fingerprints written in a single transaction
+     */
+    private static final int COMMIT_BATCH_SIZE = 500;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final ServiceRegistry serviceRegistry;
+    /**
+     * distinguishes the fingerprints of different keycloak subsystems
+     */
+    private final String zone;
+
+    /**
+     * @param serviceRegistry access to the attribute service
+     * @param authZones the Alfresco's authentication zones of the subsystem
+     */
+    public KeycloakFingerprintStore(ServiceRegistry serviceRegistry, Set<String> authZones) {
+        this.serviceRegistry = serviceRegistry;
+        this.zone = String.join(",", new TreeSet<>(authZones));
+    }
+
+    /**
+     * @return a new session tracking the changes found by a synchronization
+     */
+    public Session openSession() {
+        return new Session(0);
+    }
+
+    /**
+     * @param repairInterval seconds after which a full synchronization returns again all the persons and groups,
+     * 0 to never return them all
+     * @return a new session tracking the changes found by a synchronization
+     */
+    public Session openSession(long repairInterval) {
+        return new Session(repairInterval);
+    }
+
+    private String getKey(String type) {
+        return String.format("%s/%s", zone, type);
+    }
+
+    /**
+     * @param type {@link #TYPE_PERSON} or {@link #TYPE_GROUP}
+     * @return the stored fingerprints of the given type, by entity source id
+     */
+    private Map<String, Fingerprint> load(String type) {
+        Map<String, Fingerprint> fingerprints = new HashMap<>();
+        AttributeService attributeService = serviceRegistry.getAttributeService();
+        AuthenticationUtil.runAsSystem(() -> {
+            attributeService.getAttributes((id, value, keys) -> {
+                Fingerprint fingerprint = Fingerprint.parse((String) value);
+                if(fingerprint != null)
+                    fingerprints.put((String) keys[2], fingerprint);
+                return true;
+            }, KEY_FINGERPRINTS, getKey(type));
+            return null;
+        });
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Loaded %d %s fingerprints", fingerprints.size(), type));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @param nodeDescription a person or group
+     * @return hash of the properties and child associations of the node
+     */
+    static String fingerprint(NodeDescription nodeDescription) {
+        StringBuilder content = new StringBuilder();
+        SortedMap<String, String> properties = new TreeMap<>();
+        for (Map.Entry<QName, Serializable> property : nodeDescription.getProperties().entrySet()) {
+            properties.put(String.valueOf(property.getKey()), String.valueOf(property.getValue()));
+        }
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            content.append(property.getKey()).append('=').append(property.getValue()).append('\n');
+        }
+        for (String child : new TreeSet<>(nodeDescription.getChildAssociations())) {
+            content.append('>').append(child).append('\n');
+        }
+        return hash(content);
+    }
+
+    /**
+     * @param children child authority names of a group
+     * @return hash of the names, whatever their order
+     */
+    static String childrenFingerprint(Collection<String> children) {
+        StringBuilder content = new StringBuilder();
+        for (String child : new TreeSet<>(children)) {
+            content.append(child).append('\n');
+        }
+        return hash(content);
+    }
+
+    private static String hash(CharSequence content) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.toString().getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * tells whether alfresco applied the changes of a synchronization
+     */
+    public interface Verifier {
+        /**
+         * @param type {@link #TYPE_PERSON} or {@link #TYPE_GROUP}
+         * @param name username of the person or authority name of the group
+         * @return true if the person or group is in alfresco
+         */
+        boolean exists(String type, String name);
+
+        /**
+         * @param groupName authority name of a group
+         * @return the authority names of the group's members in alfresco
+         */
+        Collection<String> getChildren(String groupName);
+    }
+
+    /**
+     * changes found by a synchronization: they are persisted by {@link #commit(Verifier)}, once the synchronization ended
+     */
+    public class Session {
+
+        private final Map<String, Map<String, Fingerprint>> stored = new HashMap<>();
+        private final Map<String, Map<String, Change>> changed = new HashMap<>();
+        private final Map<String, Set<String>> tracked = new HashMap<>();
+        /**
+         * time the entities found changed by this session were modified
+         */
+        private final long now = System.currentTimeMillis();
+        /**
+         * true if a full synchronization must return all the persons and groups, whatever their fingerprint
+         */
+        private final boolean repairing;
+        /**
+         * true once a full synchronization returned all the persons or groups
+         */
+        private boolean repaired;
+
+        private Session(long repairInterval) {
+            if(repairInterval > 0) {
+                Long lastRepaired = AuthenticationUtil.runAsSystem(() ->
+                        (Long) serviceRegistry.getAttributeService().getAttribute(KEY_FINGERPRINTS, getKey(KEY_REPAIRED)));
+                repairing = lastRepaired == null || now - lastRepaired >= repairInterval * 1000;
+            } else {
+                repairing = false;
+            }
+        }
+
+        /**
+         * @return true if a full synchronization must return all the persons and groups, to repair those alfresco lost
+         */
+        public boolean isRepairing() {
+            return repairing;
+        }
+
+        /**
+         * records that a full synchronization returned all the persons or groups: the next repair is due
+         * after the interval, once the session is committed
+         */
+        public synchronized void repaired() {
+            repaired = repairing;
+        }
+
+        /**
+         * sets the last modified date of a person or group: the date of the synchronization that first found
+         * its current fingerprint or, if it changed, the current time
+         *
+         * @param type {@link #TYPE_PERSON} or {@link #TYPE_GROUP}
+         * @param nodeDescription the person or group
+         * @return true if the node changed since the last successful synchronization
+         */
+        public synchronized boolean track(String type, NodeDescription nodeDescription) {
+            String hash = fingerprint(nodeDescription);
+            Map<String, Fingerprint> storedFingerprints = stored.computeIfAbsent(type, KeycloakFingerprintStore.this::load);
+            Fingerprint fingerprint = storedFingerprints.get(nodeDescription.getSourceId());
+            tracked.computeIfAbsent(type, key -> new HashSet<>()).add(nodeDescription.getSourceId());
+            if(fingerprint != null && fingerprint.hash.equals(hash)) {
+                nodeDescription.setLastModified(new Date(fingerprint.lastModified));
+                return false;
+            }
+            boolean person = TYPE_PERSON.equals(type);
+            String name = (String) nodeDescription.getProperties().get(person ? ContentModel.PROP_USERNAME : ContentModel.PROP_AUTHORITY_NAME);
+            changed.computeIfAbsent(type, key -> new HashMap<>()).put(nodeDescription.getSourceId(), new Change(
+                    new Fingerprint(hash, now), name, person ? null : childrenFingerprint(nodeDescription.getChildAssociations())));
+            nodeDescription.setLastModified(new Date(now));
+            return true;
+        }
+
+        /**
+         * persists the fingerprints of the entities found changed that alfresco applied, and removes those of the entities
+         * no more in keycloak. It must be called only once alfresco synchronized all the tracked entities.
+         * A person is applied if it exists, a group if it exists with the members it was returned with:
+         * the entities alfresco failed to synchronize keep their previous fingerprint, and are found changed again
+         *
+         * @param verifier checks the persons and groups in alfresco
+         */
+        public synchronized void commit(Verifier verifier) {
+            for (Map.Entry<String, Map<String, Change>> typeChanges : changed.entrySet()) {
+                String type = typeChanges.getKey();
+                String key = getKey(type);
+                List<Map.Entry<String, Fingerprint>> fingerprints = new ArrayList<>();
+                int failed = 0;
+                for (Map.Entry<String, Change> change : typeChanges.getValue().entrySet()) {
+                    if(change.getValue().isApplied(type, verifier))
+                        fingerprints.add(new AbstractMap.SimpleEntry<>(change.getKey(), change.getValue().fingerprint));
+                    else
+                        failed++;
+                }
+                inBatches(fingerprints, (attributeService, fingerprint) ->
+                        attributeService.setAttribute(fingerprint.getValue().toString(), KEY_FINGERPRINTS, key, fingerprint.getKey()));
+                if(failed > 0)
+                    logger.warn(String.format("%d changed keycloak %ss were not synchronized by alfresco: they will be synchronized again", failed, type));
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Stored %d changed %s fingerprints", fingerprints.size(), type));
+                }
+            }
+            for (Map.Entry<String, Map<String, Fingerprint>> typeFingerprints : stored.entrySet()) {
+                String key = getKey(typeFingerprints.getKey());
+                List<String> removed = new ArrayList<>(typeFingerprints.getValue().keySet());
+                removed.removeAll(tracked.getOrDefault(typeFingerprints.getKey(), Collections.emptySet()));
+                inBatches(removed, (attributeService, sourceId) ->
+                        attributeService.removeAttribute(KEY_FINGERPRINTS, key, sourceId));
+                if (logger.isDebugEnabled() && !removed.isEmpty()) {
+                    logger.debug(String.format("Removed %d %s fingerprints", removed.size(), typeFingerprints.getKey()));
+                }
+            }
+            changed.clear();
+            if(repaired) {
+                inBatches(Collections.singletonList(now), (attributeService, time) ->
+                        attributeService.setAttribute(time, KEY_FINGERPRINTS, getKey(KEY_REPAIRED)));
+                repaired = false;
+            }
+        }
+
+        private <T> void inBatches(List<T> items, BiConsumer<AttributeService, T> action) {
+            RetryingTransactionHelper txnHelper = serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+            AttributeService attributeService = serviceRegistry.getAttributeService();
+            for (int from = 0; from < items.size(); from += COMMIT_BATCH_SIZE) {
+                List<T> batch = items.subList(from, Math.min(from + COMMIT_BATCH_SIZE, items.size()));
+                AuthenticationUtil.runAsSystem(() -> txnHelper.doInTransaction(() -> {
+                    for (T item : batch) {
+                        action.accept(attributeService, item);
+                    }
+                    return null;
+                }, false, true));
+            }
+        }
+    }
+
+    /**
+     * a person or group found changed
+     */
+    private static class Change {
+        final Fingerprint fingerprint;
+        final String name;
+        /**
+         * fingerprint of the members of a group, null for a person
+         */
+        final String children;
+
+        Change(Fingerprint fingerprint, String name, String children) {
+            this.fingerprint = fingerprint;
+            this.name = name;
+            this.children = children;
+        }
+
+        boolean isApplied(String type, Verifier verifier) {
+            if(name == null || !verifier.exists(type, name))
+                return false;
+            return children == null || children.equals(childrenFingerprint(verifier.getChildren(name)));
+        }
+    }
+
+    private static class Fingerprint {
+        final String hash;
+        final long lastModified;
+
+        Fingerprint(String hash, long lastModified) {
+            this.hash = hash;
+            this.lastModified = lastModified;
+        }
+
+        static Fingerprint parse(String value) {
+            int separator = value == null ? -1 : value.indexOf(':');
+            if(separator < 0)
+                return null;
+            try {
+                return new Fingerprint(value.substring(separator + 1), Long.parseLong(value.substring(0, separator)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return lastModified + ":" + hash;
+        }
+    }
+}
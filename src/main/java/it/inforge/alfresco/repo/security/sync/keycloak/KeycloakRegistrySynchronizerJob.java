@@ -12,6 +12,7 @@ import org.quartz.JobExecutionException;
 import org.springframework.context.ApplicationContext;
 
 import java.util.Collection;
+import java.util.Date;
 
 /**
  * quartz job that synchronizes keycloak users and group to alfresco.
@@ -35,15 +36,42 @@ public class KeycloakRegistrySynchronizerJob implements Job
         final UserRegistrySynchronizer userRegistrySynchronizer = (UserRegistrySynchronizer) executionContext
                 .getJobDetail().getJobDataMap().get("userRegistrySynchronizer");
         final String synchronizeChangesOnly = (String) executionContext.getJobDetail().getJobDataMap().get("synchronizeChangesOnly");
+        final boolean coordinated = userRegistry.isSynchronizationCoordinated();
+        if(coordinated && !userRegistry.acquireSynchronizationCoordination()) {
+            if(!userRegistry.isSynchronizationSharded()) {
+                // the checkpoints of a synchronization are written by a single node
+                logger.info("Keycloak synchronization already running on another node");
+                return;
+            }
+            // another node coordinates the synchronization: this one reads its shards
+            logger.info("Reading the shards of the keycloak synchronization coordinated by another node");
+            AuthenticationUtil.runAs(() -> {
+                userRegistry.workSynchronizationShards();
+                return null;
+            }, AuthenticationUtil.getSystemUserName());
+            return;
+        }
         AuthenticationUtil.runAs(() -> {
+            Date start = new Date();
+            long startNanos = System.nanoTime();
+            Throwable error = null;
             try {
                 if(userRegistry != null)
                     userRegistry.pushThreadLocalInstance();
                 userRegistrySynchronizer.synchronize(synchronizeChangesOnly == null || !Boolean.parseBoolean(synchronizeChangesOnly), true);
+                if(userRegistry != null)
+                    userRegistry.commitThreadLocalInstance();
                 return null;
+            } catch (RuntimeException | Error e) {
+                error = e;
+                throw e;
             } finally {
-                if(userRegistry != null)
+                if(userRegistry != null) {
                     userRegistry.clearThreadLocalInstance();
+                    userRegistry.synchronizationFinished(start, System.nanoTime() - startNanos, error);
+                    if(coordinated)
+                        userRegistry.releaseSynchronizationCoordination();
+                }
             }
         }, AuthenticationUtil.getSystemUserName());
     }
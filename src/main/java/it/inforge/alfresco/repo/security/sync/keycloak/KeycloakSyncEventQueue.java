@@ -0,0 +1,390 @@
+package it.inforge.alfresco.repo.security.sync.keycloak;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakConfig;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakMetrics;
+import org.alfresco.repo.management.subsystems.ActivateableBean;
+import org.alfresco.repo.management.subsystems.ChildApplicationContextManager;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.sync.UserRegistrySynchronizer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationContext;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * collects the users and groups whose change keycloak notifies, and synchronizes them in small batches.
+ * Each batch is a differential synchronization of alfresco whose {@link KeycloakUserRegistry} returns only
+ * the users and groups of the batch, read again from keycloak.
+ * <p>
+ * A batch starts with the first change and is synchronized {@link KeycloakConfig#getSynchronizationEventsDelay()}
+ * milliseconds later, or as soon as it holds {@link KeycloakConfig#getSynchronizationEventsBatchSize()} users and groups,
+ * so that a user or group changed many times meanwhile is synchronized once. Batches are synchronized one at a time.
+ * A batch alfresco did not synchronize, because another synchronization held its lock, is queued again with the
+ * following batches and retried after a delay doubling from {@link KeycloakConfig#getSynchronizationEventsDelay()}
+ * up to {@link #MAX_RETRY_DELAY} milliseconds.
+ * A batch whose synchronization fails is dropped, as are the deletions: the full synchronization repairs them.
+ * </p>
+ * <p>
+ * Alfresco cannot synchronize a single user registry: each batch is a differential synchronization of the whole
+ * authentication chain. Unless {@link KeycloakConfig#isSynchronizationEventsWithOtherRegistries()}, the batches are
+ * dropped while the chain has other active user registries, whose synchronization they would trigger.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakSyncEventQueue implements InitializingBean, DisposableBean {
+
+    /**
+     * user events changing the user's data
+     */
+    private static final Set<String> USER_EVENT_TYPES = new HashSet<>(Arrays.asList(
+            "REGISTER", "UPDATE_PROFILE", "UPDATE_EMAIL", "VERIFY_EMAIL", "IDENTITY_PROVIDER_FIRST_LOGIN"));
+    /**
+     * maximum milliseconds before the batches not synchronized are retried
+     */
+    private static final long MAX_RETRY_DELAY = 300000;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private KeycloakConfig config;
+    private KeycloakUserRegistry userRegistry;
+    private UserRegistrySynchronizer userRegistrySynchronizer;
+    /**
+     * the subsystems of the authentication chain
+     */
+    private ChildApplicationContextManager applicationContextManager;
+
+    private final Object lock = new Object();
+    /**
+     * changed users and groups not yet synchronized, by realm
+     */
+    private Map<String, Batch> pending = new LinkedHashMap<>();
+    private int pendingCount;
+    /**
+     * next synchronization of the pending users and groups, null if none is pending
+     */
+    private ScheduledFuture<?> scheduledFlush;
+    /**
+     * flushes in a row alfresco did not synchronize
+     */
+    private int deferrals;
+    /**
+     * System.nanoTime() before which the batches not synchronized are not retried, if {@link #deferrals} is positive
+     */
+    private long deferredUntil;
+    private ScheduledExecutorService executor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "keycloak-sync-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if(executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * @param secret the secret sent by keycloak
+     * @return true if the events are accepted and the secret is {@link KeycloakConfig#getSynchronizationEventsSecret()}
+     */
+    public boolean isAuthorized(String secret) {
+        String expected = config.getSynchronizationEventsSecret();
+        if(expected == null || expected.isEmpty() || secret == null)
+            return false;
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * adds the user or group changed by a keycloak event, as sent by an event listener provider.
+     * The realm is the <code>realm</code> field, or the <code>realmId</code> field if the realm id is its name.
+     * Admin events are identified by their <code>resourceType</code> and <code>resourcePath</code>:
+     * <ul>
+     *     <li>USER <code>users/{id}</code></li>
+     *     <li>GROUP <code>groups/{id}</code>, or <code>groups/{parent id}/children</code> with the created group
+     *     in the <code>representation</code></li>
+     *     <li>GROUP_MEMBERSHIP <code>users/{id}/groups/{group id}</code>, that changes the group</li>
+     * </ul>
+     * User events by their <code>type</code> and <code>userId</code>
+     *
+     * @param event the keycloak event
+     * @return true if the event changed a user or group of the subsystem's realms
+     */
+    public boolean addEvent(JsonNode event) {
+        String realm = getRealm(text(event, "realm") != null ? text(event, "realm") : text(event, "realmId"));
+        if(realm == null)
+            return false;
+        String resourceType = text(event, "resourceType");
+        if(resourceType == null) {
+            String userId = text(event, "userId");
+            return userId != null && USER_EVENT_TYPES.contains(text(event, "type")) && add(realm, userId, true);
+        }
+        String operationType = text(event, "operationType");
+        String resourcePath = text(event, "resourcePath");
+        String[] path = resourcePath == null ? new String[0] : resourcePath.split("/");
+        switch (resourceType) {
+            case "USER":
+                return path.length == 2 && "users".equals(path[0]) && !"DELETE".equals(operationType) && add(realm, path[1], true);
+            case "GROUP":
+                if(path.length < 2 || !"groups".equals(path[0]) || "DELETE".equals(operationType))
+                    return false;
+                String groupId = path.length == 3 && "children".equals(path[2]) ? getRepresentationId(event) : path[1];
+                // the group's parent, that lists it, is synchronized with it
+                return add(realm, groupId != null ? groupId : path[1], false);
+            case "GROUP_MEMBERSHIP":
+                return path.length == 4 && "users".equals(path[0]) && "groups".equals(path[2]) && add(realm, path[3], false);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * adds a user or group to the batch of its realm, scheduling its synchronization
+     *
+     * @param user true for a user, false for a group
+     * @return true
+     */
+    private boolean add(String realm, String id, boolean user) {
+        synchronized (lock) {
+            Batch batch = pending.computeIfAbsent(realm, key -> new Batch());
+            addPending(user ? batch.userIds : batch.groupIds, id);
+            if(pendingCount >= getBatchSize())
+                schedule(0);
+            else if(scheduledFlush == null)
+                schedule(config.getSynchronizationEventsDelay());
+        }
+        config.getMetrics().counter(KeycloakMetrics.SYNC_EVENTS, KeycloakMetrics.tags("realm", realm, "type", user ? "user" : "group"), 1);
+        return true;
+    }
+
+    private void addPending(Set<String> ids, String id) {
+        if(ids.add(id))
+            pendingCount++;
+    }
+
+    private void schedule(long delay) {
+        if(deferrals > 0)
+            delay = Math.max(delay, TimeUnit.NANOSECONDS.toMillis(deferredUntil - System.nanoTime()));
+        if(scheduledFlush == null || (delay == 0 && scheduledFlush.cancel(false)))
+            scheduledFlush = executor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private int getBatchSize() {
+        return Math.max(1, config.getSynchronizationEventsBatchSize());
+    }
+
+    /**
+     * synchronizes the pending users and groups, in batches. If alfresco does not synchronize a batch,
+     * it and the following ones are queued again
+     */
+    private void flush() {
+        Map<String, Batch> batches;
+        synchronized (lock) {
+            batches = pending;
+            pending = new LinkedHashMap<>();
+            pendingCount = 0;
+            scheduledFlush = null;
+        }
+        if(!config.isSynchronizationEventsWithOtherRegistries()) {
+            List<String> otherRegistries = getOtherActiveRegistries();
+            if(!otherRegistries.isEmpty()) {
+                int count = 0;
+                for (Batch batch : batches.values()) {
+                    count += batch.userIds.size() + batch.groupIds.size();
+                }
+                logger.warn(String.format("Keycloak change events of %d users and groups left to the scheduled synchronization: "
+                        + "alfresco would synchronize the user registries of %s too", count, otherRegistries));
+                config.getMetrics().counter(KeycloakMetrics.SYNC_EVENTS_DROPPED, KeycloakMetrics.tags(), count);
+                return;
+            }
+        }
+        int batchSize = getBatchSize();
+        for (Map.Entry<String, Batch> batch : batches.entrySet()) {
+            List<String> userIds = new ArrayList<>(batch.getValue().userIds);
+            List<String> groupIds = new ArrayList<>(batch.getValue().groupIds);
+            int users = 0;
+            int groups = 0;
+            while(users < userIds.size() || groups < groupIds.size()) {
+                int batchUsers = Math.min(batchSize, userIds.size() - users);
+                int batchGroups = Math.min(batchSize - batchUsers, groupIds.size() - groups);
+                if(!synchronize(batch.getKey(), userIds.subList(users, users + batchUsers), groupIds.subList(groups, groups + batchGroups))) {
+                    defer(batches, batch.getKey(), userIds.subList(users, userIds.size()), groupIds.subList(groups, groupIds.size()));
+                    return;
+                }
+                users += batchUsers;
+                groups += batchGroups;
+            }
+        }
+        synchronized (lock) {
+            deferrals = 0;
+        }
+    }
+
+    /**
+     * queues again the users and groups not synchronized, before those changed meanwhile, and schedules their retry
+     *
+     * @param batches the batches of the flush
+     * @param realm realm of the batch not synchronized
+     * @param userIds the users of the realm not synchronized
+     * @param groupIds the groups of the realm not synchronized
+     */
+    private void defer(Map<String, Batch> batches, String realm, List<String> userIds, List<String> groupIds) {
+        synchronized (lock) {
+            Map<String, Batch> changed = pending;
+            pending = new LinkedHashMap<>();
+            pendingCount = 0;
+            boolean remaining = false;
+            for (Map.Entry<String, Batch> batch : batches.entrySet()) {
+                remaining |= batch.getKey().equals(realm);
+                if(remaining) {
+                    Batch deferred = pending.computeIfAbsent(batch.getKey(), key -> new Batch());
+                    for (String userId : batch.getKey().equals(realm) ? userIds : batch.getValue().userIds)
+                        addPending(deferred.userIds, userId);
+                    for (String groupId : batch.getKey().equals(realm) ? groupIds : batch.getValue().groupIds)
+                        addPending(deferred.groupIds, groupId);
+                }
+            }
+            for (Map.Entry<String, Batch> batch : changed.entrySet()) {
+                Batch deferred = pending.computeIfAbsent(batch.getKey(), key -> new Batch());
+                for (String userId : batch.getValue().userIds)
+                    addPending(deferred.userIds, userId);
+                for (String groupId : batch.getValue().groupIds)
+                    addPending(deferred.groupIds, groupId);
+            }
+            long delay = Math.min(MAX_RETRY_DELAY, Math.max(1, config.getSynchronizationEventsDelay()) << Math.min(deferrals, 20));
+            deferrals++;
+            deferredUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            if(scheduledFlush != null && scheduledFlush.cancel(false))
+                scheduledFlush = null;
+            schedule(delay);
+            logger.info(String.format("Keycloak change events of %d users and groups not synchronized, another synchronization "
+                    + "is running: retrying in %d ms", pendingCount, delay));
+        }
+    }
+
+    /**
+     * @return false if alfresco did not synchronize the users and groups, because another synchronization held its lock
+     */
+    private boolean synchronize(String realm, List<String> userIds, List<String> groupIds) {
+        long start = System.nanoTime();
+        String result = "success";
+        try {
+            boolean read = AuthenticationUtil.runAsSystem(() -> {
+                try {
+                    userRegistry.pushThreadLocalInstance(realm, userIds, groupIds);
+                    userRegistrySynchronizer.synchronize(false, false);
+                    return userRegistry.isThreadLocalInstanceRead();
+                } finally {
+                    userRegistry.clearThreadLocalInstance();
+                }
+            });
+            if(!read) {
+                result = "deferred";
+                return false;
+            }
+            if(logger.isDebugEnabled())
+                logger.debug(String.format("Synchronized %d users and %d groups of keycloak realm \"%s\"",
+                        userIds.size(), groupIds.size(), realm));
+        } catch (RuntimeException e) {
+            result = "error";
+            logger.error(String.format("Cannot synchronize %d users and %d groups of keycloak realm \"%s\"",
+                    userIds.size(), groupIds.size(), realm), e);
+        } finally {
+            config.getMetrics().timer(KeycloakMetrics.SYNC_EVENTS_BATCH, KeycloakMetrics.tags("realm", realm, "result", result),
+                    System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    /**
+     * @return ids of the other subsystems of the authentication chain whose user registry alfresco synchronizes,
+     * as it finds them
+     */
+    private List<String> getOtherActiveRegistries() {
+        List<String> otherRegistries = new ArrayList<>();
+        if(applicationContextManager == null)
+            return otherRegistries;
+        for (String id : applicationContextManager.getInstanceIds()) {
+            ApplicationContext context = applicationContextManager.getApplicationContext(id);
+            if(context == null || !context.containsBean("userRegistry"))
+                continue;
+            Object registry = context.getBean("userRegistry");
+            if(registry != userRegistry && (!(registry instanceof ActivateableBean) || ((ActivateableBean) registry).isActive()))
+                otherRegistries.add(id);
+        }
+        return otherRegistries;
+    }
+
+    /**
+     * @param realm realm name sent by keycloak
+     * @return the subsystem's realm with that name, null if none
+     */
+    private String getRealm(String realm) {
+        if(realm == null || config.getRealms() == null)
+            return null;
+        for (String configuredRealm : config.getRealms()) {
+            if(configuredRealm.trim().equals(realm))
+                return configuredRealm;
+        }
+        return null;
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    /**
+     * @return id of the resource in the json representation of an admin event, null if missing
+     */
+    private String getRepresentationId(JsonNode event) {
+        String representation = text(event, "representation");
+        if(representation == null)
+            return null;
+        try {
+            return text(KeycloakSyncEventWebScript.OBJECT_MAPPER.readTree(representation), "id");
+        } catch (Exception e) {
+            logger.debug("Invalid representation of keycloak event", e);
+            return null;
+        }
+    }
+
+    public void setConfig(KeycloakConfig config) {
+        this.config = config;
+    }
+
+    public void setUserRegistry(KeycloakUserRegistry userRegistry) {
+        this.userRegistry = userRegistry;
+    }
+
+    public void setUserRegistrySynchronizer(UserRegistrySynchronizer userRegistrySynchronizer) {
+        this.userRegistrySynchronizer = userRegistrySynchronizer;
+    }
+
+    public void setApplicationContextManager(ChildApplicationContextManager applicationContextManager) {
+        this.applicationContextManager = applicationContextManager;
+    }
+
+    /**
+     * keycloak ids of the changed users and groups of a realm
+     */
+    private static class Batch {
+        final Set<String> userIds = new LinkedHashSet<>();
+        final Set<String> groupIds = new LinkedHashSet<>();
+    }
+}
@@ -0,0 +1,95 @@
+package it.inforge.alfresco.repo.security.sync.keycloak;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.alfresco.repo.management.subsystems.ChildApplicationContextManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * web script receiving keycloak's user, group and membership change events, a json event or an array of them,
+ * that the {@link KeycloakSyncEventQueue} of the keycloak subsystem synchronizes.
+ * The events must carry the subsystem's {@link it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakConfig#getSynchronizationEventsSecret()}
+ * in the {@link #SECRET_HEADER} header.
+ *
+ * @since   1.0
+ */
+public class KeycloakSyncEventWebScript extends AbstractWebScript {
+
+    public static final String SECRET_HEADER = "X-Keycloak-Secret";
+
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    /**
+     * the authentication subsystems
+     */
+    private ChildApplicationContextManager applicationContextManager;
+    /**
+     * name of the keycloak subsystem in the authentication chain
+     */
+    private String keycloakSystem;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        KeycloakSyncEventQueue queue = getQueue();
+        if(queue == null)
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, String.format("Keycloak system [%s] not found", keycloakSystem));
+        if(!queue.isAuthorized(req.getHeader(SECRET_HEADER)))
+            throw new WebScriptException(Status.STATUS_FORBIDDEN, "Keycloak events refused");
+        JsonNode events;
+        try {
+            events = OBJECT_MAPPER.readTree(req.getContent().getInputStream());
+        } catch (JsonProcessingException e) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid keycloak events", e);
+        }
+        if(events == null || !events.isContainerNode())
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid keycloak events");
+        int accepted = 0;
+        int ignored = 0;
+        for (JsonNode event : events.isArray() ? events : Collections.singletonList(events)) {
+            if(queue.addEvent(event))
+                accepted++;
+            else
+                ignored++;
+        }
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("Keycloak events: %d accepted, %d ignored", accepted, ignored));
+        Map<String, Integer> result = new LinkedHashMap<>();
+        result.put("accepted", accepted);
+        result.put("ignored", ignored);
+        res.setStatus(Status.STATUS_ACCEPTED);
+        res.setContentType("application/json");
+        res.setContentEncoding("UTF-8");
+        OBJECT_MAPPER.writeValue(res.getWriter(), result);
+    }
+
+    /**
+     * @return the event queue of the keycloak subsystem, null if the subsystem is not in the authentication chain
+     */
+    private KeycloakSyncEventQueue getQueue() {
+        if(!applicationContextManager.getInstanceIds().contains(keycloakSystem))
+            return null;
+        return (KeycloakSyncEventQueue) applicationContextManager.getApplicationContext(keycloakSystem).getBean("keycloakSyncEventQueue");
+    }
+
+    public void setApplicationContextManager(ChildApplicationContextManager applicationContextManager) {
+        this.applicationContextManager = applicationContextManager;
+    }
+
+    public void setKeycloakSystem(String keycloakSystem) {
+        this.keycloakSystem = keycloakSystem;
+    }
+}
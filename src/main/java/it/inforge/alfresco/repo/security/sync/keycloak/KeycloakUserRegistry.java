@@ -1,7 +1,13 @@
 package it.inforge.alfresco.repo.security.sync.keycloak;
 
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakAdminClientProvider;
 import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakConfig;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakGroupTreeCache;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakMetrics;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakSyncShards;
 import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakThreadInstance;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakZoneAuthorities;
+import org.alfresco.model.ContentModel;
 import org.alfresco.repo.management.subsystems.ActivateableBean;
 import org.alfresco.repo.security.authentication.AuthenticationDiagnostic;
 import org.alfresco.repo.security.authentication.AuthenticationException;
@@ -9,6 +15,7 @@ import org.alfresco.repo.security.sync.NodeDescription;
 import org.alfresco.repo.security.sync.UserRegistry;
 import org.alfresco.repo.security.sync.ldap.LDAPNameResolver;
 import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.security.AuthorityService;
 import org.alfresco.service.namespace.QName;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +38,10 @@ public class KeycloakUserRegistry implements UserRegistry, LDAPNameResolver, Ini
      * get the data of user and groups to synchronize
      */
     private ThreadLocal<KeycloakThreadInstance> keycloakInstanceThreadLocal = new ThreadLocal<>();
+    /**
+     * changes found by the synchronization running in the thread, null if fingerprints are disabled
+     */
+    private ThreadLocal<KeycloakFingerprintStore.Session> fingerprintSessionThreadLocal = new ThreadLocal<>();
 
     /**
      * access to alfresco repository services
@@ -40,6 +51,26 @@ public class KeycloakUserRegistry implements UserRegistry, LDAPNameResolver, Ini
      * connector configuration
      */
     private KeycloakConfig config;
+    /**
+     * provider of the keycloak admin client shared by the synchronizations
+     */
+    private KeycloakAdminClientProvider adminClientProvider;
+    /**
+     * cache of the realms' group hierarchies, refreshed by the synchronizations
+     */
+    private KeycloakGroupTreeCache groupTreeCache;
+    /**
+     * cache of the authorities imported from keycloak, invalidated by the synchronizations
+     */
+    private KeycloakZoneAuthorities zoneAuthorities;
+    /**
+     * fingerprints of the synchronized persons and groups
+     */
+    private KeycloakFingerprintStore fingerprintStore;
+    /**
+     * shards of the full synchronizations spread over the cluster
+     */
+    private KeycloakSyncShards syncShards;
 
     private boolean active;
 
@@ -63,6 +94,7 @@ public class KeycloakUserRegistry implements UserRegistry, LDAPNameResolver, Ini
             QName qName = QName.createQName(entry.getKey(), serviceRegistry.getNamespaceService());
             personMappedPropertyMap.put(qName, entry.getValue());
         }
+        fingerprintStore = new KeycloakFingerprintStore(serviceRegistry, config.getAuthZones());
     }
 
     /**
@@ -70,8 +102,118 @@ public class KeycloakUserRegistry implements UserRegistry, LDAPNameResolver, Ini
      */
     public void pushThreadLocalInstance() {
         logger.debug("Pushing ThreadLocal scheduled context");
-        KeycloakThreadInstance keycloakThreadInstance = new KeycloakThreadInstance(config);
+        KeycloakThreadInstance keycloakThreadInstance = new KeycloakThreadInstance(config, adminClientProvider, groupTreeCache, zoneAuthorities,
+                isSynchronizationCoordinated() ? syncShards : null);
         keycloakInstanceThreadLocal.set(keycloakThreadInstance);
+        if(config.isSynchronizationFingerprints()) {
+            KeycloakFingerprintStore.Session fingerprintSession = fingerprintStore.openSession(
+                    config.isSynchronizationSuppressUnchanged() ? config.getSynchronizationSuppressUnchangedRepairInterval() : 0);
+            if(fingerprintSession.isRepairing())
+                logger.info("A full keycloak synchronization will return all the persons and groups, to repair those alfresco lost");
+            fingerprintSessionThreadLocal.set(fingerprintSession);
+        }
+    }
+
+    /**
+     * used by the {@link KeycloakRegistrySynchronizerJob}, once alfresco synchronized the persons and groups
+     * returned by the registry, to persist the fingerprints of those alfresco applied
+     */
+    public void commitThreadLocalInstance() {
+        KeycloakThreadInstance keycloakThreadInstance = keycloakInstanceThreadLocal.get();
+        if(keycloakThreadInstance != null)
+            keycloakThreadInstance.commit();
+        KeycloakFingerprintStore.Session fingerprintSession = fingerprintSessionThreadLocal.get();
+        if(fingerprintSession != null) {
+            logger.debug("Committing ThreadLocal fingerprints");
+            zoneAuthorities.invalidate();
+            AuthorityService authorityService = serviceRegistry.getAuthorityService();
+            fingerprintSession.commit(new KeycloakFingerprintStore.Verifier() {
+                @Override
+                public boolean exists(String type, String name) {
+                    return KeycloakFingerprintStore.TYPE_PERSON.equals(type) ? zoneAuthorities.contains(name)
+                            : authorityService.authorityExists(name);
+                }
+
+                @Override
+                public Collection<String> getChildren(String groupName) {
+                    return authorityService.getContainedAuthorities(null, groupName, true);
+                }
+            });
+        }
+    }
+
+    /**
+     * used by the {@link KeycloakRegistrySynchronizerJob} to record the outcome of a synchronization
+     *
+     * @param start when the synchronization started
+     * @param nanos duration of the synchronization
+     * @param error the error that stopped the synchronization, null if it succeeded
+     */
+    public void synchronizationFinished(Date start, long nanos, Throwable error) {
+        config.getMetrics().synchronizationFinished(start, nanos, error);
+    }
+
+    /**
+     * @return true if the keycloak reads of the full synchronizations are spread over the cluster
+     */
+    public boolean isSynchronizationSharded() {
+        return config.isSynchronizationSharded() && syncShards != null;
+    }
+
+    /**
+     * @return true if the full synchronizations read keycloak in shards, spread over the cluster or checkpointed,
+     * and must be coordinated by a single node
+     */
+    public boolean isSynchronizationCoordinated() {
+        return (config.isSynchronizationSharded() || config.isSynchronizationCheckpoints()) && syncShards != null;
+    }
+
+    /**
+     * used by the {@link KeycloakRegistrySynchronizerJob} of a coordinated synchronization
+     *
+     * @return true if this node coordinates the synchronization, false if another node does
+     */
+    public boolean acquireSynchronizationCoordination() {
+        return syncShards.acquireCoordination();
+    }
+
+    /**
+     * used by the {@link KeycloakRegistrySynchronizerJob} once the coordinated synchronization finished
+     */
+    public void releaseSynchronizationCoordination() {
+        syncShards.releaseCoordination();
+    }
+
+    /**
+     * used by the {@link KeycloakRegistrySynchronizerJob} of the nodes that do not coordinate a sharded
+     * synchronization to read its shards
+     */
+    public void workSynchronizationShards() {
+        syncShards.work();
+    }
+
+    /**
+     * used by the {@link KeycloakSyncEventQueue} to set {@link this#keycloakInstanceThreadLocal} for a targeted synchronization
+     *
+     * @param realm realm of the users and groups
+     * @param userIds keycloak ids of the users to synchronize
+     * @param groupIds keycloak ids of the groups to synchronize
+     */
+    public void pushThreadLocalInstance(String realm, Collection<String> userIds, Collection<String> groupIds) {
+        logger.debug("Pushing ThreadLocal targeted context");
+        keycloakInstanceThreadLocal.set(new KeycloakThreadInstance(config, adminClientProvider, groupTreeCache, zoneAuthorities,
+                realm, userIds, groupIds));
+    }
+
+    /**
+     * used by the {@link KeycloakSyncEventQueue} after a targeted synchronization
+     *
+     * @return true if alfresco read the users and groups of {@link this#keycloakInstanceThreadLocal},
+     * false if it did not synchronize them
+     */
+    public boolean isThreadLocalInstanceRead() {
+        KeycloakThreadInstance keycloakThreadInstance = keycloakInstanceThreadLocal.get();
+        return keycloakThreadInstance != null && keycloakThreadInstance.isRead();
     }
 
     /**
@@ -94,6 +236,7 @@ public class KeycloakUserRegistry implements UserRegistry, LDAPNameResolver, Ini
             this.keycloakInstanceThreadLocal.get().dispose(logger);
             this.keycloakInstanceThreadLocal.remove();
         }
+        this.fingerprintSessionThreadLocal.remove();
     }
 
     private KeycloakThreadInstance getKeycloakThreadInstance() {
@@ -104,21 +247,56 @@ public class KeycloakUserRegistry implements UserRegistry, LDAPNameResolver, Ini
     @Override
     public Collection<NodeDescription> getPersons(Date modifiedSince) {
         if(getKeycloakThreadInstance() == null) return Collections.emptyList();
-        List persons = getKeycloakThreadInstance().getUsers();
-        return persons;
+        Collection<NodeDescription> persons = getKeycloakThreadInstance().getUsers();
+        return filterModifiedSince(KeycloakFingerprintStore.TYPE_PERSON, persons, modifiedSince);
     }
 
     @Override
     public Collection<NodeDescription> getGroups(Date modifiedSince) {
         if(getKeycloakThreadInstance() == null) return Collections.emptyList();
-        List groups = getKeycloakThreadInstance().getGroups();
-        return groups;
+        Collection<NodeDescription> groups = getKeycloakThreadInstance().getGroups();
+        return filterModifiedSince(KeycloakFingerprintStore.TYPE_GROUP, groups, modifiedSince);
+    }
+
+    /**
+     * sets the last modified date of the nodes from their fingerprints, while they are iterated
+     *
+     * @param type {@link KeycloakFingerprintStore#TYPE_PERSON} or {@link KeycloakFingerprintStore#TYPE_GROUP}
+     * @param nodeDescriptions the persons or groups read from keycloak
+     * @param modifiedSince if not null, only the nodes modified after this date are returned
+     * @return the nodes to synchronize
+     */
+    private Collection<NodeDescription> filterModifiedSince(String type, Collection<NodeDescription> nodeDescriptions, Date modifiedSince) {
+        KeycloakFingerprintStore.Session fingerprintSession = fingerprintSessionThreadLocal.get();
+        if(fingerprintSession == null || getKeycloakThreadInstance().isLoginInstance() || getKeycloakThreadInstance().isTargeted())
+            return nodeDescriptions;
+        return new ModifiedNodeCollection(type, nodeDescriptions, modifiedSince, fingerprintSession);
+    }
+
+    /**
+     * @param type {@link KeycloakFingerprintStore#TYPE_PERSON} or {@link KeycloakFingerprintStore#TYPE_GROUP}
+     * @param nodeDescription a person or group
+     * @return true if the node is already an authority in the authentication zones and, for a group, all its members are too:
+     * the memberships of a person alfresco lost are restored with the person
+     */
+    private boolean isImported(String type, NodeDescription nodeDescription) {
+        boolean person = KeycloakFingerprintStore.TYPE_PERSON.equals(type);
+        String name = (String) nodeDescription.getProperties().get(person ? ContentModel.PROP_USERNAME : ContentModel.PROP_AUTHORITY_NAME);
+        if(name == null || !zoneAuthorities.contains(name))
+            return false;
+        if(!person) {
+            for (String child : nodeDescription.getChildAssociations()) {
+                if(!zoneAuthorities.contains(child))
+                    return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public Collection<String> getPersonNames() {
         if(getKeycloakThreadInstance() == null) return Collections.emptyList();
-        List persons = getKeycloakThreadInstance().getPersonNames();
+        Collection<String> persons = getKeycloakThreadInstance().getPersonNames();
         return persons;
     }
 
@@ -165,4 +343,94 @@ public class KeycloakUserRegistry implements UserRegistry, LDAPNameResolver, Ini
     public void setConfig(KeycloakConfig config) {
         this.config = config;
     }
+
+    public void setAdminClientProvider(KeycloakAdminClientProvider adminClientProvider) {
+        this.adminClientProvider = adminClientProvider;
+    }
+
+    public void setGroupTreeCache(KeycloakGroupTreeCache groupTreeCache) {
+        this.groupTreeCache = groupTreeCache;
+    }
+
+    public void setZoneAuthorities(KeycloakZoneAuthorities zoneAuthorities) {
+        this.zoneAuthorities = zoneAuthorities;
+    }
+
+    public void setSyncShards(KeycloakSyncShards syncShards) {
+        this.syncShards = syncShards;
+    }
+
+    /**
+     * lazy view of the nodes modified since a date: the nodes are read, and their fingerprints checked,
+     * only as the view is iterated.
+     * Without a date, that is in a full synchronization, the nodes whose fingerprint did not change are still left out
+     * if {@link KeycloakConfig#isSynchronizationSuppressUnchanged()} and they are already in the authentication zones,
+     * with all their members for a group, unless the session repairs the nodes alfresco lost.
+     * Alfresco deletes the nodes missing from {@link #getPersonNames()} and {@link #getGroupNames()}, that list all of them.
+     * Its size is the number of nodes read from keycloak, an upper bound alfresco only uses to estimate its work
+     */
+    private class ModifiedNodeCollection extends AbstractCollection<NodeDescription> {
+        private final String type;
+        private final Collection<NodeDescription> nodeDescriptions;
+        private final Date modifiedSince;
+        private final KeycloakFingerprintStore.Session fingerprintSession;
+
+        ModifiedNodeCollection(String type, Collection<NodeDescription> nodeDescriptions, Date modifiedSince,
+                               KeycloakFingerprintStore.Session fingerprintSession) {
+            this.type = type;
+            this.nodeDescriptions = nodeDescriptions;
+            this.modifiedSince = modifiedSince;
+            this.fingerprintSession = fingerprintSession;
+        }
+
+        @Override
+        public Iterator<NodeDescription> iterator() {
+            Iterator<NodeDescription> iterator = nodeDescriptions.iterator();
+            boolean suppressUnchanged = config.isSynchronizationSuppressUnchanged() && !fingerprintSession.isRepairing();
+            return new Iterator<NodeDescription>() {
+                private NodeDescription next;
+                private int read;
+                private int returned;
+                private boolean logged;
+
+                @Override
+                public boolean hasNext() {
+                    while(next == null && iterator.hasNext()) {
+                        NodeDescription nodeDescription = iterator.next();
+                        read++;
+                        boolean changed = fingerprintSession.track(type, nodeDescription);
+                        if(modifiedSince != null ? nodeDescription.getLastModified().after(modifiedSince)
+                                : changed || !suppressUnchanged || !isImported(type, nodeDescription))
+                            next = nodeDescription;
+                    }
+                    if(next == null && !logged) {
+                        logged = true;
+                        if(modifiedSince == null)
+                            fingerprintSession.repaired();
+                        KeycloakMetrics metrics = config.getMetrics();
+                        metrics.gauge(KeycloakMetrics.SYNC_ENTITIES, KeycloakMetrics.tags("type", type), read);
+                        metrics.gauge(KeycloakMetrics.SYNC_RETURNED, KeycloakMetrics.tags("type", type), returned);
+                        if(logger.isDebugEnabled())
+                            logger.debug(String.format("Returned %d of %d keycloak %ss modified since %s", returned, read, type, modifiedSince));
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public NodeDescription next() {
+                    if(!hasNext())
+                        throw new NoSuchElementException();
+                    NodeDescription nodeDescription = next;
+                    next = null;
+                    returned++;
+                    return nodeDescription;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return nodeDescriptions.size();
+        }
+    }
 }
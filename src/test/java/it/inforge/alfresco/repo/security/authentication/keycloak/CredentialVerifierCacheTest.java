@@ -0,0 +1,39 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CredentialVerifierCacheTest {
+
+    private final CredentialVerifierCache cache = new CredentialVerifierCache(10, 60, 1000);
+
+    @Test
+    public void onlyTheCachedPasswordIsRecognized() {
+        cache.put("test", "alice", "secret".toCharArray());
+        assertTrue(cache.contains("test", "alice", "secret".toCharArray()));
+        assertTrue(cache.contains("test", "Alice", "secret".toCharArray()));
+        assertFalse(cache.contains("test", "alice", "other".toCharArray()));
+        assertFalse(cache.contains("other", "alice", "secret".toCharArray()));
+        assertFalse(cache.contains("test", "bob", "secret".toCharArray()));
+    }
+
+    @Test
+    public void newPasswordReplacesTheCachedOne() {
+        cache.put("test", "alice", "secret".toCharArray());
+        cache.put("test", "alice", "changed".toCharArray());
+        assertFalse(cache.contains("test", "alice", "secret".toCharArray()));
+        assertTrue(cache.contains("test", "alice", "changed".toCharArray()));
+    }
+
+    @Test
+    public void invalidatedCredentialsAreNoMoreRecognized() {
+        cache.put("test", "alice", "secret".toCharArray());
+        cache.put("test", "bob", "secret".toCharArray());
+        cache.invalidate("test", "alice");
+        assertFalse(cache.contains("test", "alice", "secret".toCharArray()));
+        assertTrue(cache.contains("test", "bob", "secret".toCharArray()));
+        cache.invalidateAll();
+        assertFalse(cache.contains("test", "bob", "secret".toCharArray()));
+    }
+}
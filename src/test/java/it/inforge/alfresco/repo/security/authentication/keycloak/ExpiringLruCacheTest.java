@@ -0,0 +1,42 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExpiringLruCacheTest {
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(2, 60);
+        cache.put("alice", "test");
+        cache.put("bob", "test");
+        assertEquals("test", cache.get("alice"));
+        cache.put("carol", "other");
+        assertEquals(2, cache.size());
+        assertNull(cache.get("bob"));
+        assertEquals("test", cache.get("alice"));
+        assertEquals("other", cache.get("carol"));
+    }
+
+    @Test
+    public void expiredEntryIsRemoved() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(2, 0);
+        cache.put("alice", "test");
+        Thread.sleep(10);
+        assertNull(cache.get("alice"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void removedEntriesAreMissing() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10, 60);
+        cache.put("alice", "test");
+        cache.put("bob", "test");
+        cache.remove("alice");
+        assertNull(cache.get("alice"));
+        assertEquals("test", cache.get("bob"));
+        cache.clear();
+        assertNull(cache.get("bob"));
+    }
+}
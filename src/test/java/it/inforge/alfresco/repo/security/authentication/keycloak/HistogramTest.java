@@ -0,0 +1,41 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void percentilesAreTheUpperBoundsOfTheirBuckets() {
+        Histogram histogram = new Histogram(Histogram.MILLIS_BOUNDS);
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(400);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(5, histogram.getPercentile(90));
+        // not above the greatest sample
+        assertEquals(400, histogram.getPercentile(95));
+        assertEquals("count=100 mean=42 p50=5 p95=400 p99=400 max=400", histogram.toString());
+    }
+
+    @Test
+    public void samplesAboveTheGreatestBoundReportTheMaximum() {
+        Histogram histogram = new Histogram(Histogram.COUNT_BOUNDS);
+        histogram.record(0);
+        histogram.record(5000);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(5000, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void emptyHistogramHasNoPercentiles() {
+        Histogram histogram = new Histogram(Histogram.COUNT_BOUNDS);
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals("count=0", histogram.toString());
+    }
+}
@@ -0,0 +1,64 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.admin.client.Keycloak;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class KeycloakAdminClientProviderTest {
+
+    private static final String REALM = "test";
+    private static final String TOKEN_REQUESTS
+            = "keycloak.rest.requests{endpoint=POST /realms/{realm}/protocol/openid-connect/token,status=2xx}";
+
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        KeycloakStubRealm realm = new KeycloakStubRealm(REALM);
+        realm.addGroup("staff", null, Collections.emptyMap());
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.start();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void clientAndTokenAreSharedByTheThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Keycloak>> clients = executor.invokeAll(Collections.nCopies(32, () -> {
+                Keycloak keycloak = fixture.getAdminClientProvider().getKeycloak();
+                keycloak.realm(REALM).groups().groups();
+                return keycloak;
+            }));
+            for (Future<Keycloak> client : clients) {
+                assertSame(fixture.getAdminClientProvider().getKeycloak(), client.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(Long.valueOf(1), fixture.getConfig().getMetrics().getCounters().get(TOKEN_REQUESTS));
+    }
+
+    @Test
+    public void clientIsBuiltAgainOnceClosed() {
+        Keycloak keycloak = fixture.getAdminClientProvider().getKeycloak();
+        fixture.getAdminClientProvider().destroy();
+        Keycloak rebuilt = fixture.getAdminClientProvider().getKeycloak();
+        assertNotSame(keycloak, rebuilt);
+        assertEquals(1, rebuilt.realm(REALM).groups().groups().size());
+    }
+}
@@ -0,0 +1,90 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.admin.client.resource.RealmResource;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeycloakAdminEngineTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        KeycloakStubRealm realm = new KeycloakStubRealm(REALM);
+        realm.addGroup("staff", null, Collections.emptyMap());
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.getConfig().setAdminRetries(0);
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void requestRejectedForASlotGivesBackItsToken() throws Exception {
+        // no token refilled during the test: the requests sent are those of the burst
+        fixture.getConfig().setAdminRateLimit(0.001);
+        fixture.getConfig().setAdminRateBurst(4);
+        fixture.getConfig().setAdminMaxConcurrentRequests(1);
+        fixture.getConfig().setAdminQueueTimeout(100);
+        fixture.start();
+        // the access token and the first request
+        realm().groups().groups();
+        stub.setLatency(1000);
+        CompletableFuture<?> slow = CompletableFuture.runAsync(() -> realm().groups().groups());
+        Thread.sleep(300);
+        try {
+            realm().groups().groups();
+            fail("request sent without a slot");
+        } catch (ProcessingException e) {
+            // expected
+        }
+        slow.get(5, TimeUnit.SECONDS);
+        stub.setLatency(0);
+        assertEquals(1, realm().groups().groups().size());
+    }
+
+    @Test
+    public void circuitOpensAfterFailuresInARow() throws Exception {
+        fixture.getConfig().setAdminCircuitFailures(2);
+        fixture.getConfig().setAdminCircuitResetTimeout(60000);
+        fixture.start();
+        realm().groups().groups();
+        stub.failAdminRequests("groups", 2);
+        for (int i = 0; i < 2; i++) {
+            try {
+                realm().groups().groups();
+                fail("failure not reported");
+            } catch (WebApplicationException e) {
+                assertEquals(503, e.getResponse().getStatus());
+            }
+        }
+        stub.resetRequestCount();
+        try {
+            realm().groups().groups();
+            fail("request sent with the circuit open");
+        } catch (ProcessingException e) {
+            // expected
+        }
+        assertEquals(0, stub.getRequestCount());
+    }
+
+    private RealmResource realm() {
+        return fixture.getAdminClientProvider().getKeycloak().realm(REALM);
+    }
+}
@@ -0,0 +1,126 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class KeycloakAuthenticationComponentImplTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+    private KeycloakAuthenticationComponentImpl authenticationComponent;
+
+    @Before
+    public void setUp() throws Exception {
+        KeycloakStubRealm realm = new KeycloakStubRealm(REALM);
+        realm.addUser("alice", "alice@example.com", "alice", "alice", Collections.emptyMap());
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.getConfig().setLoginThrottleThreshold(1);
+        fixture.getConfig().setCredentialCacheSize(10);
+        fixture.getConfig().setCredentialCacheIterations(1000);
+        fixture.start();
+        authenticationComponent = fixture.getAuthenticationComponent();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void invalidatingAllCredentialsResetsTheBackoffs() {
+        assertNull(authenticate("wrong"));
+        // the realm is not called again for the user
+        assertNull(authenticate(KeycloakStub.PASSWORD));
+        authenticationComponent.invalidateCachedCredentials();
+        assertEquals(REALM, authenticate(KeycloakStub.PASSWORD));
+    }
+
+    @Test
+    public void invalidatingTheUserCredentialsResetsItsBackoff() {
+        assertNull(authenticate("wrong"));
+        authenticationComponent.invalidateCachedCredentials("alice");
+        assertEquals(REALM, authenticate(KeycloakStub.PASSWORD));
+    }
+
+    @Test
+    public void credentialsAreInvalidatedThroughJmx() throws Exception {
+        assertEquals(REALM, authenticate(KeycloakStub.PASSWORD));
+        stub.resetRequestCount();
+        assertEquals(REALM, authenticate(KeycloakStub.PASSWORD));
+        assertEquals(0, stub.getRequestCount());
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("it.inforge.alfresco:type=KeycloakAuthentication,id=\"keycloak1\"");
+        assertEquals(1L, mBeanServer.getAttribute(objectName, "CredentialCacheHits"));
+        mBeanServer.invoke(objectName, "invalidateCachedCredentials", new Object[] {"alice"}, new String[] {String.class.getName()});
+        assertEquals(REALM, authenticate(KeycloakStub.PASSWORD));
+        assertTrue(stub.getRequestCount() > 0);
+        stub.resetRequestCount();
+        mBeanServer.invoke(objectName, "invalidateCachedCredentials", new Object[0], new String[0]);
+        assertEquals(REALM, authenticate(KeycloakStub.PASSWORD));
+        assertTrue(stub.getRequestCount() > 0);
+    }
+
+    @Test
+    public void mBeanIsUnregisteredWhenStopped() throws Exception {
+        fixture.close();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName("it.inforge.alfresco:type=KeycloakAuthentication,id=\"keycloak1\"")));
+    }
+
+    @Test
+    public void unreachableRealmIsLoggedOnOneLine() {
+        List<LogRecord> records = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(KeycloakAuthenticationComponentImpl.class.getName());
+        logger.addHandler(handler);
+        try {
+            stub.close();
+            assertNull(authenticate(KeycloakStub.PASSWORD));
+        } finally {
+            logger.removeHandler(handler);
+        }
+        List<LogRecord> warnings = new ArrayList<>();
+        for (LogRecord record : records) {
+            if(record.getLevel() == Level.WARNING)
+                warnings.add(record);
+        }
+        assertEquals(1, warnings.size());
+        assertNull(warnings.get(0).getThrown());
+        assertTrue(warnings.get(0).getMessage().contains("\"test\""));
+    }
+
+    private String authenticate(String password) {
+        return authenticationComponent.realmsAuthenticate("alice", password.toCharArray());
+    }
+}
@@ -0,0 +1,61 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class KeycloakDirectGrantAuthenticatorTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+    private KeycloakDirectGrantAuthenticator authenticator;
+
+    @Before
+    public void setUp() throws Exception {
+        KeycloakStubRealm realm = new KeycloakStubRealm(REALM);
+        realm.addUser("alice", "alice@example.com", "alice", "alice", Collections.emptyMap());
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        authenticator = new KeycloakDirectGrantAuthenticator();
+        authenticator.setConfig(fixture.getConfig());
+    }
+
+    @After
+    public void tearDown() {
+        authenticator.destroy();
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void grantedTokenAuthenticatesTheUser() throws Exception {
+        assertTrue(authenticator.authenticate(REALM, "alice", KeycloakStub.PASSWORD.toCharArray()));
+        assertTrue(authenticator.authenticate(REALM, "alice", KeycloakStub.PASSWORD.toCharArray()));
+        assertEquals(Long.valueOf(2), fixture.getConfig().getMetrics().getCounters()
+                .get("keycloak.rest.requests{endpoint=POST /realms/{realm}/protocol/openid-connect/token,status=2xx}"));
+    }
+
+    @Test
+    public void invalidGrantRejectsTheCredentials() throws Exception {
+        assertFalse(authenticator.authenticate(REALM, "alice", "wrong".toCharArray()));
+        assertFalse(authenticator.authenticate(REALM, "bob", KeycloakStub.PASSWORD.toCharArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherErrorsAreReported() throws Exception {
+        authenticator.authenticate("other", "alice", KeycloakStub.PASSWORD.toCharArray());
+    }
+
+    @Test
+    public void realmNameIsEncodedInTheTokenEndpoint() {
+        assertEquals(stub.getUrl().replaceAll("/$", "") + "/realms/my%20realm/protocol/openid-connect/token",
+                authenticator.newRequest("my realm", "alice", KeycloakStub.PASSWORD.toCharArray()).getURI().toString());
+    }
+}
@@ -0,0 +1,83 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.representations.idm.GroupRepresentation;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class KeycloakGroupTreeCacheTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStubRealm realm;
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+    private GroupRepresentation staff;
+    private GroupRepresentation sales;
+
+    @Before
+    public void setUp() throws Exception {
+        realm = new KeycloakStubRealm(REALM);
+        staff = realm.addGroup("staff", null, Collections.emptyMap());
+        sales = realm.addGroup("sales", staff, Collections.singletonMap(KeycloakStubRealm.EMAIL_CONTRIBUTOR_ATTRIBUTE,
+                Collections.singletonList("true")));
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void treeHoldsTheHierarchyOfTheRealm() throws Exception {
+        fixture.start();
+        KeycloakGroupTree tree = fixture.getGroupTreeCache().get(REALM);
+        assertEquals(2, tree.getNodes().size());
+        assertNull(tree.get(staff.getId()).getParentId());
+        assertEquals(Collections.singletonList(sales.getId()), tree.get(staff.getId()).getChildIds());
+        assertEquals(staff.getId(), tree.get(sales.getId()).getParentId());
+        assertEquals("sales", tree.get(sales.getId()).getName());
+        assertTrue(tree.get(sales.getId()).isEmailContributor());
+        assertFalse(tree.get(staff.getId()).isEmailContributor());
+    }
+
+    @Test
+    public void cachedTreeIsReturnedWithoutRequests() throws Exception {
+        fixture.start();
+        KeycloakGroupTree tree = fixture.getGroupTreeCache().get(REALM);
+        stub.resetRequestCount();
+        assertSame(tree, fixture.getGroupTreeCache().get(REALM));
+        assertEquals(0, stub.getRequestCount());
+    }
+
+    @Test
+    public void reloadReadsTheNewGroups() throws Exception {
+        fixture.start();
+        fixture.getGroupTreeCache().get(REALM);
+        GroupRepresentation support = realm.addGroup("support", staff, Collections.emptyMap());
+        assertNull(fixture.getGroupTreeCache().get(REALM).get(support.getId()));
+        assertNotNull(fixture.getGroupTreeCache().reload(REALM).get(support.getId()));
+        assertNotNull(fixture.getGroupTreeCache().get(REALM).get(support.getId()));
+    }
+
+    @Test
+    public void expiredTreeIsReturnedWhileRefreshedInBackground() throws Exception {
+        fixture.getConfig().setGroupTreeCacheTtl(0);
+        fixture.start();
+        KeycloakGroupTree tree = fixture.getGroupTreeCache().get(REALM);
+        Thread.sleep(10);
+        assertSame(tree, fixture.getGroupTreeCache().get(REALM));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(fixture.getGroupTreeCache().get(REALM) == tree && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotSame(tree, fixture.getGroupTreeCache().get(REALM));
+    }
+}
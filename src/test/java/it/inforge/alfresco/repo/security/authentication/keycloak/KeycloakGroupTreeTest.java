@@ -0,0 +1,70 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class KeycloakGroupTreeTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new KeycloakStub(Collections.singletonList(KeycloakStubRealm.generate(REALM, 50, 40, 2, 1)), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.start();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void exportReadsTheHierarchyWithOneRequest() {
+        KeycloakGroupTree exported = KeycloakGroupTree.export(fixture.getAdminClientProvider().getKeycloak(), REALM,
+                KeycloakStubRealm.EMAIL_CONTRIBUTOR_ATTRIBUTE);
+        KeycloakGroupTree loaded = KeycloakGroupTree.load(fixture.getAdminClientProvider().getKeycloak(), REALM,
+                KeycloakStubRealm.EMAIL_CONTRIBUTOR_ATTRIBUTE, null);
+        assertEquals(1, exported.getRequestCount());
+        assertEquals(1 + loaded.getNodes().size(), loaded.getRequestCount());
+        assertSameTree(loaded, exported);
+    }
+
+    @Test
+    public void parallelLoadReadsTheSameHierarchy() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            KeycloakGroupTree parallel = KeycloakGroupTree.load(fixture.getAdminClientProvider().getKeycloak(), REALM,
+                    KeycloakStubRealm.EMAIL_CONTRIBUTOR_ATTRIBUTE, executor);
+            KeycloakGroupTree serial = KeycloakGroupTree.load(fixture.getAdminClientProvider().getKeycloak(), REALM,
+                    KeycloakStubRealm.EMAIL_CONTRIBUTOR_ATTRIBUTE, null);
+            assertSameTree(serial, parallel);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertSameTree(KeycloakGroupTree expected, KeycloakGroupTree actual) {
+        assertEquals(40, expected.getNodes().size());
+        assertEquals(expected.getNodes().size(), actual.getNodes().size());
+        for (KeycloakGroupTree.Node node : expected.getNodes()) {
+            KeycloakGroupTree.Node other = actual.get(node.getId());
+            assertNotNull(node.getName(), other);
+            assertEquals(node.getName(), other.getName());
+            assertEquals(node.getParentId(), other.getParentId());
+            assertEquals(node.getChildIds(), other.getChildIds());
+            assertEquals(node.isEmailContributor(), other.isEmailContributor());
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class KeycloakIdSetTest {
+
+    @Test
+    public void uuidsAreAddedOnce() {
+        KeycloakIdSet ids = new KeycloakIdSet();
+        String id = UUID.randomUUID().toString();
+        assertTrue(ids.add(id));
+        assertFalse(ids.add(id));
+        assertFalse(ids.add(new String(id)));
+        assertEquals(1, ids.size());
+    }
+
+    @Test
+    public void setGrowsWithoutLosingIds() {
+        KeycloakIdSet ids = new KeycloakIdSet();
+        UUID[] uuids = new UUID[20000];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.randomUUID();
+            assertTrue(ids.add(uuids[i].toString()));
+        }
+        for (UUID uuid : uuids) {
+            assertFalse(ids.add(uuid.toString()));
+        }
+        assertEquals(uuids.length, ids.size());
+    }
+
+    @Test
+    public void otherIdsAreKeptAsStrings() {
+        KeycloakIdSet ids = new KeycloakIdSet();
+        String upperCase = "0A1B2C3D-0000-0000-0000-000000000001";
+        assertTrue(ids.add("f:ldap:alice"));
+        assertTrue(ids.add(upperCase));
+        assertTrue(ids.add(upperCase.toLowerCase()));
+        assertFalse(ids.add("f:ldap:alice"));
+        assertFalse(ids.add(upperCase));
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    public void nilUuidIsNotAnEmptySlot() {
+        KeycloakIdSet ids = new KeycloakIdSet();
+        assertTrue(ids.add("00000000-0000-0000-0000-000000000000"));
+        assertFalse(ids.add("00000000-0000-0000-0000-000000000000"));
+        assertTrue(ids.add("00000000-0000-0000-0000-000000000001"));
+        assertEquals(2, ids.size());
+    }
+}
@@ -0,0 +1,112 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeycloakMembershipModelTest {
+
+    @Test
+    public void groupsAreFoundByName() {
+        KeycloakMembershipModel model = new KeycloakMembershipModel();
+        int first = model.addGroup("GROUP_realm-a", "realm", "id-a", "a");
+        int second = model.addGroup("GROUP_realm-b", "realm", "id-b", "b");
+        assertEquals(first, model.getGroup("GROUP_realm-a"));
+        assertEquals(second, model.getGroup("GROUP_realm-b"));
+        assertEquals(-1, model.getGroup("GROUP_realm-c"));
+        assertEquals(2, model.getGroupCount());
+        assertEquals("realm", model.getRealm(second));
+        assertEquals("b", model.getDisplayName(second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateGroupIsRejected() {
+        KeycloakMembershipModel model = new KeycloakMembershipModel();
+        model.addGroup("GROUP_realm-a", "realm", "id-a", "a");
+        model.addGroup("GROUP_realm-a", "realm", "id-other", "a");
+    }
+
+    @Test
+    public void groupKeepsAllItsSourceIds() {
+        KeycloakMembershipModel model = new KeycloakMembershipModel();
+        int group = model.addGroup("GROUP_realm-staff", "realm", "id-1", "staff");
+        assertEquals(Collections.singletonList("id-1"), model.getSourceIds(group));
+        assertFalse(model.addSourceId(group, "id-1"));
+        assertTrue(model.addSourceId(group, "id-2"));
+        assertTrue(model.addSourceId(group, "id-3"));
+        assertFalse(model.addSourceId(group, "id-2"));
+        assertEquals(Arrays.asList("id-1", "id-2", "id-3"), model.getSourceIds(group));
+        assertEquals("id-1", model.getSourceId(group));
+    }
+
+    @Test
+    public void membersAreKeptInAddOrder() {
+        KeycloakMembershipModel model = new KeycloakMembershipModel();
+        int group = model.addGroup("GROUP_realm-a", "realm", "id-a", "a");
+        assertFalse(model.hasMembers(group));
+        model.addMember(group, "user2");
+        model.addMember(group, "user1");
+        assertTrue(model.hasMembers(group));
+        assertEquals(Arrays.asList("user2", "user1"), members(model, group));
+    }
+
+    @Test
+    public void namesAreInternedOnce() {
+        KeycloakMembershipModel model = new KeycloakMembershipModel();
+        int first = model.addGroup("GROUP_realm-a", "realm", "id-a", "a");
+        int second = model.addGroup("GROUP_realm-b", "realm", "id-b", "b");
+        for (int i = 0; i < 5000; i++) {
+            model.addMember(first, "user" + i);
+            model.addMember(second, "user" + i);
+        }
+        assertEquals(5002, model.getNameCount());
+        assertEquals(5000, members(model, first).size());
+        assertEquals("user4999", members(model, second).get(4999));
+    }
+
+    @Test
+    public void largeGroupIsKeptInABitSet() {
+        KeycloakMembershipModel model = new KeycloakMembershipModel();
+        for (int i = 0; i < 100; i++) {
+            model.intern("user" + i);
+        }
+        int group = model.addGroup("GROUP_realm-a", "realm", "id-a", "a");
+        for (int i = 99; i >= 0; i--) {
+            model.addMember(group, "user" + i);
+        }
+        List<String> members = members(model, group);
+        // in ascending id order, that is the order the names were interned
+        assertEquals("user0", members.get(0));
+        assertEquals("user99", members.get(99));
+        assertEquals(100, members.size());
+    }
+
+    @Test
+    public void sparseGroupIsKeptInAnArray() {
+        KeycloakMembershipModel model = new KeycloakMembershipModel();
+        int everyone = model.addGroup("GROUP_realm-everyone", "realm", "id-everyone", "everyone");
+        for (int i = 0; i < 100000; i++) {
+            model.addMember(everyone, "user" + i);
+        }
+        int group = model.addGroup("GROUP_realm-a", "realm", "id-a", "a");
+        // a bit set up to the highest id would take more than the array
+        model.addMember(group, "user99999");
+        for (int i = 0; i < 100; i++) {
+            model.addMember(group, "user" + i);
+        }
+        List<String> members = members(model, group);
+        assertEquals("user99999", members.get(0));
+        assertEquals("user99", members.get(100));
+    }
+
+    private static List<String> members(KeycloakMembershipModel model, int group) {
+        List<String> members = new ArrayList<>();
+        model.forEachMember(group, members::add);
+        return members;
+    }
+}
@@ -0,0 +1,63 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class KeycloakMetricsFilterTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        KeycloakStubRealm realm = new KeycloakStubRealm(REALM);
+        realm.addGroup("staff", null, Collections.emptyMap());
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.getConfig().setAdminRetries(0);
+        fixture.start();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void requestsAreRecordedByEndpointAndStatus() {
+        fixture.getAdminClientProvider().getKeycloak().realm(REALM).groups().groups();
+        stub.failAdminRequests("groups", 1);
+        try {
+            fixture.getAdminClientProvider().getKeycloak().realm(REALM).groups().groups();
+            fail("failure not reported");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        KeycloakMetrics metrics = fixture.getConfig().getMetrics();
+        assertEquals(Long.valueOf(1), metrics.getCounters().get("keycloak.rest.requests{endpoint=GET /admin/realms/{realm}/groups,status=2xx}"));
+        assertEquals(Long.valueOf(1), metrics.getCounters().get("keycloak.rest.requests{endpoint=GET /admin/realms/{realm}/groups,status=5xx}"));
+        assertNotNull(metrics.getTimers().get("keycloak.rest.latency{endpoint=GET /admin/realms/{realm}/groups,status=2xx}"));
+    }
+
+    @Test
+    public void responseBytesAreCountedByThread() throws Exception {
+        fixture.getAdminClientProvider().getKeycloak().realm(REALM).groups().groups();
+        KeycloakMetricsFilter.takeResponseBytes();
+        fixture.getAdminClientProvider().getKeycloak().realm(REALM).groups().groups();
+        long bytes = KeycloakMetricsFilter.takeResponseBytes();
+        assertTrue(bytes > "[{\"name\":\"staff\"}]".length());
+        assertEquals(0, KeycloakMetricsFilter.takeResponseBytes());
+        Thread other = new Thread(() -> fixture.getAdminClientProvider().getKeycloak().realm(REALM).groups().groups());
+        other.start();
+        other.join();
+        assertEquals(0, KeycloakMetricsFilter.takeResponseBytes());
+    }
+}
@@ -0,0 +1,88 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class KeycloakMetricsTest {
+
+    @Test
+    public void endpointHidesTheRealmAndTheIds() {
+        assertEquals("GET /admin/realms/{realm}/users/{id}/groups",
+                KeycloakMetrics.endpoint("GET", "/admin/realms/test/users/0b1c2d3e-4f50-6172-8394-a5b6c7d8e9f0/groups"));
+        assertEquals("POST /realms/{realm}/protocol/openid-connect/token",
+                KeycloakMetrics.endpoint("POST", "/realms/master/protocol/openid-connect/token"));
+        assertEquals("GET /admin/realms/{realm}/groups/{id}", KeycloakMetrics.endpoint("GET", "/admin/realms/test/groups/42"));
+    }
+
+    @Test
+    public void measuresAreKeyedByNameAndSortedTags() {
+        KeycloakMetrics metrics = new KeycloakMetrics();
+        metrics.counter(KeycloakMetrics.LOGIN, KeycloakMetrics.tags("result", "success", "realm", "test"), 1);
+        metrics.counter(KeycloakMetrics.LOGIN, KeycloakMetrics.tags("realm", "test", "result", "success"), 2);
+        metrics.gauge(KeycloakMetrics.SYNC_SHARDS, Collections.emptyMap(), 4);
+        assertEquals(Long.valueOf(3), metrics.getCounters().get("keycloak.login{realm=test,result=success}"));
+        assertEquals(4.0, metrics.getGauges().get("keycloak.sync.shards"), 0);
+    }
+
+    @Test
+    public void requestIsCountedAndTimedByStatusClass() {
+        KeycloakMetrics metrics = new KeycloakMetrics();
+        metrics.request("GET /admin/realms/{realm}/users", 200, TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.request("GET /admin/realms/{realm}/users", 0, TimeUnit.MILLISECONDS.toNanos(30));
+        assertEquals(Long.valueOf(1), metrics.getCounters().get("keycloak.rest.requests{endpoint=GET /admin/realms/{realm}/users,status=2xx}"));
+        assertEquals(Long.valueOf(1), metrics.getCounters().get("keycloak.rest.requests{endpoint=GET /admin/realms/{realm}/users,status=error}"));
+        assertEquals("count=1 mean=20 p50=20 p95=20 p99=20 max=20",
+                metrics.getTimers().get("keycloak.rest.latency{endpoint=GET /admin/realms/{realm}/users,status=2xx}"));
+    }
+
+    @Test
+    public void synchronizationResultIsKept() {
+        KeycloakMetrics metrics = new KeycloakMetrics();
+        Date start = new Date();
+        metrics.synchronizationFinished(start, TimeUnit.SECONDS.toNanos(2), new IllegalStateException("down"));
+        assertEquals("FAILURE", metrics.getLastSynchronizationStatus());
+        assertEquals(start, metrics.getLastSynchronizationStart());
+        assertEquals(2000, metrics.getLastSynchronizationDuration());
+        assertEquals("java.lang.IllegalStateException: down", metrics.getLastSynchronizationError());
+        assertEquals(0.0, metrics.getGauges().get(KeycloakMetrics.SYNC_LAST_SUCCESS), 0);
+        metrics.synchronizationFinished(start, TimeUnit.SECONDS.toNanos(1), null);
+        assertEquals("SUCCESS", metrics.getLastSynchronizationStatus());
+        assertNull(metrics.getLastSynchronizationError());
+        assertEquals(1.0, metrics.getGauges().get(KeycloakMetrics.SYNC_LAST_SUCCESS), 0);
+    }
+
+    @Test
+    public void registryFailureDoesNotStopTheOthers() {
+        KeycloakMetrics metrics = new KeycloakMetrics();
+        List<String> forwarded = new ArrayList<>();
+        metrics.setRegistries(Arrays.asList(registry(name -> {
+            throw new IllegalStateException("unavailable");
+        }), registry(forwarded::add)));
+        metrics.summary(KeycloakMetrics.SYNC_EVENTS_BATCH, Collections.emptyMap(), 3);
+        assertEquals(Collections.singletonList(KeycloakMetrics.SYNC_EVENTS_BATCH), forwarded);
+        assertEquals("count=1 mean=3 p50=3 p95=3 p99=3 max=3", metrics.getSummaries().get(KeycloakMetrics.SYNC_EVENTS_BATCH));
+        metrics.reset();
+        assertTrue(metrics.getSummaries().isEmpty());
+    }
+
+    /**
+     * @return a registry passing the name of each measure to the consumer
+     */
+    private static KeycloakMetricsRegistry registry(Consumer<String> names) {
+        return (KeycloakMetricsRegistry) Proxy.newProxyInstance(KeycloakMetricsTest.class.getClassLoader(),
+                new Class<?>[] {KeycloakMetricsRegistry.class}, (proxy, method, args) -> {
+                    names.accept((String) args[0]);
+                    return null;
+                });
+    }
+}
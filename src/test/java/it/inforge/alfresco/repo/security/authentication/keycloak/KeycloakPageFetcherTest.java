@@ -0,0 +1,138 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class KeycloakPageFetcherTest {
+
+    private ExecutorService executor;
+    private KeycloakPageSizer pageSizer;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+        KeycloakConfig config = new KeycloakConfig();
+        config.setUserListingBatchSize(3);
+        config.setUserListingAdaptive(false);
+        pageSizer = new KeycloakPageSizer(config);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void pagesAreReturnedInTheOrderOfTheSourcesAndOffsets() {
+        KeycloakPageFetcher fetcher = new KeycloakPageFetcher(executor, 4, 2, pageSizer);
+        List<ListSource> sources = Arrays.asList(new ListSource("a", elements("a", 7), 7), new ListSource("b", elements("b", 2), 2),
+                new ListSource("a", Collections.emptyList(), 0), new ListSource("c", elements("c", 5), 5));
+        List<String> read = new ArrayList<>();
+        for (Iterator<KeycloakPageFetcher.Page<ListSource, String>> pages = fetcher.pages(sources); pages.hasNext(); ) {
+            KeycloakPageFetcher.Page<ListSource, String> page = pages.next();
+            assertEquals(page.getSource().elements.subList(page.getFirst(),
+                    Math.min(page.getFirst() + 3, page.getSource().elements.size())), page.getElements());
+            read.addAll(page.getElements());
+        }
+        List<String> expected = new ArrayList<>();
+        for (ListSource source : sources) {
+            expected.addAll(source.elements);
+        }
+        assertEquals(expected, read);
+    }
+
+    @Test
+    public void sourceGrowingBeyondItsCountIsReadToTheEnd() {
+        KeycloakPageFetcher fetcher = new KeycloakPageFetcher(executor, 4, 4, pageSizer);
+        // counted before the last elements were added, or not counted
+        List<ListSource> sources = Arrays.asList(new ListSource("a", elements("a", 10), 6), new ListSource("b", elements("b", 4), 0));
+        int count = 0;
+        for (Iterator<KeycloakPageFetcher.Page<ListSource, String>> pages = fetcher.pages(sources); pages.hasNext(); ) {
+            count += pages.next().getElements().size();
+        }
+        assertEquals(14, count);
+    }
+
+    @Test
+    public void requestsInFlightOfARealmAreLimited() {
+        KeycloakPageFetcher fetcher = new KeycloakPageFetcher(executor, 8, 2, pageSizer);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        ListSource source = new ListSource("a", elements("a", 60), 60) {
+            @Override
+            List<String> fetch(int first, int max) {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                    return super.fetch(first, max);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        };
+        for (Iterator<KeycloakPageFetcher.Page<ListSource, String>> pages = fetcher.pages(Collections.singletonList(source)); pages.hasNext(); ) {
+            pages.next();
+        }
+        assertTrue(maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void failedPageIsReportedWhenConsumed() {
+        KeycloakPageFetcher fetcher = new KeycloakPageFetcher(executor, 4, 4, pageSizer);
+        ListSource source = new ListSource("a", elements("a", 9), 9) {
+            @Override
+            List<String> fetch(int first, int max) {
+                if(first == 3)
+                    throw new IllegalStateException("page lost");
+                return super.fetch(first, max);
+            }
+        };
+        Iterator<KeycloakPageFetcher.Page<ListSource, String>> pages = fetcher.pages(Collections.singletonList(source));
+        assertEquals(0, pages.next().getFirst());
+        try {
+            pages.next();
+            fail("failure not reported");
+        } catch (IllegalStateException e) {
+            assertEquals("page lost", e.getMessage());
+        }
+    }
+
+    private static List<String> elements(String prefix, int count) {
+        List<String> elements = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            elements.add(prefix + i);
+        }
+        return elements;
+    }
+
+    private static class ListSource extends KeycloakPageFetcher.Source<String> {
+        final List<String> elements;
+        private final int count;
+
+        ListSource(String realm, List<String> elements, int count) {
+            super(realm);
+            this.elements = elements;
+            this.count = count;
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+
+        @Override
+        List<String> fetch(int first, int max) {
+            return new ArrayList<>(elements.subList(Math.min(first, elements.size()), Math.min(first + max, elements.size())));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeycloakPageSizerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    private KeycloakConfig config;
+
+    @Before
+    public void setUp() {
+        config = new KeycloakConfig();
+        config.setUserListingBatchSize(100);
+        config.setUserListingAdaptive(true);
+        config.setUserListingBatchSizeMin(10);
+        config.setUserListingBatchSizeMax(1000);
+        config.setUserListingTargetLatency(1000);
+        config.setUserListingMaxPayload(1000000);
+    }
+
+    @Test
+    public void sizeDoublesUntilAPageIsTooSlowThenGrowsByTheInitialSize() {
+        KeycloakPageSizer sizer = new KeycloakPageSizer(config);
+        sizer.completed("test", 100, 100, FAST, 0);
+        assertEquals(200, sizer.getPageSize("test"));
+        sizer.completed("test", 200, 200, FAST, 0);
+        assertEquals(400, sizer.getPageSize("test"));
+        sizer.completed("test", 400, 400, SLOW, 0);
+        assertEquals(200, sizer.getPageSize("test"));
+        sizer.completed("test", 200, 200, FAST, 0);
+        assertEquals(300, sizer.getPageSize("test"));
+        assertEquals(300.0, config.getMetrics().getGauges().get("keycloak.sync.page.size{realm=test}"), 0);
+    }
+
+    @Test
+    public void pageTooLargeHalvesTheSize() {
+        KeycloakPageSizer sizer = new KeycloakPageSizer(config);
+        sizer.completed("test", 100, 100, FAST, 2000000);
+        assertEquals(50, sizer.getPageSize("test"));
+    }
+
+    @Test
+    public void onlyFullPagesOfTheCurrentSizeMakeItGrow() {
+        KeycloakPageSizer sizer = new KeycloakPageSizer(config);
+        sizer.completed("test", 100, 100, FAST, 0);
+        // requested before the size changed
+        sizer.completed("test", 100, 100, FAST, 0);
+        assertEquals(200, sizer.getPageSize("test"));
+        // the last page of the resource
+        sizer.completed("test", 200, 50, FAST, 0);
+        assertEquals(200, sizer.getPageSize("test"));
+    }
+
+    @Test
+    public void sizeStaysWithinItsBounds() {
+        KeycloakPageSizer sizer = new KeycloakPageSizer(config);
+        for (int i = 0; i < 10; i++) {
+            int size = sizer.getPageSize("test");
+            sizer.completed("test", size, size, FAST, 0);
+        }
+        assertEquals(1000, sizer.getPageSize("test"));
+        for (int i = 0; i < 10; i++) {
+            sizer.failed("test", sizer.getPageSize("test"));
+        }
+        assertEquals(10, sizer.getPageSize("test"));
+    }
+
+    @Test
+    public void realmsHaveTheirOwnSize() {
+        KeycloakPageSizer sizer = new KeycloakPageSizer(config);
+        sizer.failed("test", 100);
+        assertEquals(50, sizer.getPageSize("test"));
+        assertEquals(100, sizer.getPageSize("other"));
+    }
+
+    @Test
+    public void onlyFailuresOtherThanTheRequestsShrinkTheSize() {
+        KeycloakPageSizer sizer = new KeycloakPageSizer(config);
+        try {
+            sizer.fetch("test", 100, () -> {
+                throw new NotFoundException();
+            });
+            fail("failure not propagated");
+        } catch (NotFoundException e) {
+            assertEquals(100, sizer.getPageSize("test"));
+        }
+        try {
+            sizer.fetch("test", 100, () -> {
+                throw new ProcessingException("timeout");
+            });
+            fail("failure not propagated");
+        } catch (ProcessingException e) {
+            assertEquals(50, sizer.getPageSize("test"));
+        }
+        assertEquals(Collections.singletonList("alice"), sizer.fetch("test", 50, () -> Collections.singletonList("alice")));
+    }
+
+    @Test
+    public void sizeIsFixedUnlessAdaptive() {
+        config.setUserListingAdaptive(false);
+        KeycloakPageSizer sizer = new KeycloakPageSizer(config);
+        sizer.completed("test", 100, 100, FAST, 0);
+        assertEquals(100, sizer.getPageSize("test"));
+        sizer.failed("test", 100);
+        assertEquals(100, sizer.getPageSize("test"));
+    }
+}
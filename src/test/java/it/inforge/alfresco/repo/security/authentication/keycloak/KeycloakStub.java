@@ -0,0 +1,306 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.OAuth2ErrorRepresentation;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * in-process http stand-in for the keycloak endpoints used by the connector: the token endpoint of the realms
+ * and the admin api reading users, groups, group members and the partial export of a realm.
+ * <p>
+ * Every request is answered after the configured latency, from the {@link KeycloakStubRealm}s given at construction.
+ * All the users accept the password {@link #PASSWORD}, the admin client is granted a token by any realm.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakStub implements Closeable {
+
+    public static final String PASSWORD = "password";
+    private static final int DEFAULT_MAX = 100;
+
+    static {
+        // headers and body are written separately: without it each response waits for the client's delayed ack
+        if(System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Map<String, KeycloakStubRealm> realms = new LinkedHashMap<>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    /**
+     * milliseconds each request waits before being answered
+     */
+    private volatile long latency;
+    private final AtomicLong requestCount = new AtomicLong();
+    /**
+     * resource type, as users or groups, of the admin requests answered with an error
+     */
+    private volatile String failingResource;
+    /**
+     * number of the next requests of {@link #failingResource} answered with an error
+     */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * starts the stub on a free port of the loopback interface
+     *
+     * @param realms realms served by the stub
+     * @param latency milliseconds each request waits before being answered
+     * @throws IOException if the server cannot be started
+     */
+    public KeycloakStub(Collection<KeycloakStubRealm> realms, long latency) throws IOException {
+        for (KeycloakStubRealm realm : realms) {
+            this.realms.put(realm.getName(), realm);
+        }
+        this.latency = latency;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "keycloak-stub-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return the url to set as keycloak url of the connector
+     */
+    public String getUrl() {
+        InetSocketAddress address = server.getAddress();
+        return String.format("http://%s:%d", address.getAddress().getHostAddress(), address.getPort());
+    }
+
+    public KeycloakStubRealm getRealm(String name) {
+        return realms.get(name);
+    }
+
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @return number of requests received since the stub started or the count was reset
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public void resetRequestCount() {
+        requestCount.set(0);
+    }
+
+    /**
+     * @param resource resource type of the admin requests to fail, as users or groups
+     * @param count number of the next requests of the resource type to answer with a 503 error
+     */
+    public void failAdminRequests(String resource, int count) {
+        failingResource = resource;
+        failures.set(count);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            String body = read(exchange.getRequestBody());
+            if(latency > 0)
+                TimeUnit.MILLISECONDS.sleep(latency);
+            String path = exchange.getRequestURI().getRawPath();
+            List<String> segments = new ArrayList<>();
+            for (String segment : path.split("/")) {
+                if(!segment.isEmpty())
+                    segments.add(URLDecoder.decode(segment, "UTF-8"));
+            }
+            Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+            if(segments.size() == 5 && "realms".equals(segments.get(0)) && "token".equals(segments.get(4))
+                    && "POST".equals(exchange.getRequestMethod()))
+                token(exchange, segments.get(1), parseForm(body));
+            else if(segments.size() >= 4 && "admin".equals(segments.get(0)) && "realms".equals(segments.get(1))
+                    && realms.containsKey(segments.get(2)))
+                admin(exchange, realms.get(segments.get(2)), segments.subList(3, segments.size()), query);
+            else
+                respond(exchange, 404, error("not_found"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error(String.valueOf(e)));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void token(HttpExchange exchange, String realmName, Map<String, String> form) throws IOException {
+        if("password".equals(form.get("grant_type"))) {
+            KeycloakStubRealm realm = realms.get(realmName);
+            if(realm == null) {
+                respond(exchange, 404, error("Realm does not exist"));
+                return;
+            }
+            if(realm.getUserByUsername(form.get("username")) == null || !PASSWORD.equals(form.get("password"))) {
+                respond(exchange, 401, error("invalid_grant"));
+                return;
+            }
+        }
+        AccessTokenResponse token = new AccessTokenResponse();
+        token.setToken(UUID.randomUUID().toString());
+        token.setTokenType("bearer");
+        token.setExpiresIn(3600);
+        respond(exchange, 200, token);
+    }
+
+    private void admin(HttpExchange exchange, KeycloakStubRealm realm, List<String> resource, Map<String, String> query)
+            throws IOException {
+        String method = exchange.getRequestMethod();
+        String type = resource.get(0);
+        if(type.equals(failingResource) && failures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+            respond(exchange, 503, error("unavailable"));
+            return;
+        }
+        if("partial-export".equals(type) && "POST".equals(method)) {
+            RealmRepresentation realmRepresentation = new RealmRepresentation();
+            realmRepresentation.setRealm(realm.getName());
+            realmRepresentation.setGroups(realm.getTopGroups());
+            respond(exchange, 200, realmRepresentation);
+        } else if("users".equals(type) && resource.size() == 1) {
+            respond(exchange, 200, listUsers(realm, query));
+        } else if("users".equals(type) && resource.size() == 2 && "count".equals(resource.get(1))) {
+            respond(exchange, 200, realm.getUsers().size());
+        } else if("users".equals(type) && realm.getUser(resource.get(1)) == null) {
+            respond(exchange, 404, error("User not found"));
+        } else if("users".equals(type) && resource.size() == 2) {
+            respond(exchange, 200, realm.getUser(resource.get(1)));
+        } else if("users".equals(type) && resource.size() == 3 && "groups".equals(resource.get(2))) {
+            List<GroupRepresentation> groups = new ArrayList<>();
+            for (GroupRepresentation group : realm.getUserGroups(resource.get(1))) {
+                groups.add(brief(group, false));
+            }
+            respond(exchange, 200, groups);
+        } else if("groups".equals(type) && resource.size() == 1) {
+            List<GroupRepresentation> groups = new ArrayList<>();
+            for (GroupRepresentation group : realm.getTopGroups()) {
+                groups.add(brief(group, true));
+            }
+            respond(exchange, 200, groups);
+        } else if("groups".equals(type) && realm.getGroup(resource.get(1)) == null) {
+            respond(exchange, 404, error("Could not find group by id"));
+        } else if("groups".equals(type) && resource.size() == 2) {
+            respond(exchange, 200, realm.getGroup(resource.get(1)));
+        } else if("groups".equals(type) && resource.size() == 3 && "members".equals(resource.get(2))) {
+            respond(exchange, 200, page(realm.getMembers(resource.get(1)), query));
+        } else {
+            respond(exchange, 404, error("not_found"));
+        }
+    }
+
+    /**
+     * @return the users with the username in the query, or the page of users between first and max
+     */
+    private List<UserRepresentation> listUsers(KeycloakStubRealm realm, Map<String, String> query) {
+        String username = query.get("username");
+        if(username == null)
+            return page(realm.getUsers(), query);
+        UserRepresentation user = realm.getUserByUsername(username);
+        if(user != null)
+            return Collections.singletonList(user);
+        List<UserRepresentation> users = new ArrayList<>();
+        for (UserRepresentation candidate : realm.getUsers()) {
+            if(candidate.getUsername().contains(username))
+                users.add(candidate);
+        }
+        return page(users, query);
+    }
+
+    private static <T> List<T> page(List<T> elements, Map<String, String> query) {
+        int first = query.containsKey("first") ? Integer.parseInt(query.get("first")) : 0;
+        int max = query.containsKey("max") ? Integer.parseInt(query.get("max")) : DEFAULT_MAX;
+        int from = Math.min(Math.max(first, 0), elements.size());
+        int to = max < 0 ? elements.size() : (int) Math.min((long) from + max, elements.size());
+        return new ArrayList<>(elements.subList(from, to));
+    }
+
+    /**
+     * @param group group of the realm
+     * @param subGroups true to copy the subgroups too
+     * @return the group without attributes, as keycloak lists it
+     */
+    private static GroupRepresentation brief(GroupRepresentation group, boolean subGroups) {
+        GroupRepresentation brief = new GroupRepresentation();
+        brief.setId(group.getId());
+        brief.setName(group.getName());
+        brief.setPath(group.getPath());
+        List<GroupRepresentation> briefSubGroups = new ArrayList<>();
+        if(subGroups) {
+            for (GroupRepresentation subGroup : group.getSubGroups()) {
+                briefSubGroups.add(brief(subGroup, true));
+            }
+        }
+        brief.setSubGroups(briefSubGroups);
+        return brief;
+    }
+
+    private static OAuth2ErrorRepresentation error(String error) {
+        return new OAuth2ErrorRepresentation(error, null);
+    }
+
+    private static void respond(HttpExchange exchange, int status, Object entity) throws IOException {
+        byte[] body = JsonSerialization.writeValueAsBytes(entity);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseForm(String form) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        if(form == null || form.isEmpty())
+            return values;
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            values.put(name, value);
+        }
+        return values;
+    }
+}
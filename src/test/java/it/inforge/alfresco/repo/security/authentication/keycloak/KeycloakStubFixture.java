@@ -0,0 +1,200 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import it.inforge.alfresco.repo.security.sync.keycloak.KeycloakUserRegistry;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.PropertyValue;
+import org.springframework.beans.factory.config.TypedStringValue;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.PropertyPlaceholderHelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * the connector's beans wired, outside alfresco, to a {@link KeycloakStub}.
+ * <p>
+ * The configuration starts from the defaults of keycloak-authentication.properties, read as the subsystem's
+ * context reads them, except for the caches that would let the logins skip keycloak, and can be changed
+ * before {@link #start()}.
+ * The alfresco services are replaced by a {@link KeycloakStubRepository}.
+ * </p>
+ *
+ * @since   1.0
+ */
+public class KeycloakStubFixture implements Closeable {
+
+    private static final String SUBSYSTEM = "alfresco/subsystems/Authentication/keycloak/";
+
+    private final KeycloakStubRepository repository = new KeycloakStubRepository();
+    private final KeycloakConfig config = new KeycloakConfig();
+    private final KeycloakAdminClientProvider adminClientProvider = new KeycloakAdminClientProvider();
+    private final KeycloakGroupTreeCache groupTreeCache = new KeycloakGroupTreeCache();
+    private final KeycloakZoneAuthorities zoneAuthorities = new KeycloakZoneAuthorities();
+    private final KeycloakDirectGrantAuthenticator directGrantAuthenticator = new KeycloakDirectGrantAuthenticator();
+    private final KeycloakAuthenticationComponentImpl authenticationComponent = new KeycloakAuthenticationComponentImpl();
+
+    /**
+     * @param stub the stub the connector is connected to
+     * @param realms names of the configured realms, in authentication order
+     */
+    public KeycloakStubFixture(KeycloakStub stub, List<String> realms) {
+        applyDefaults(config);
+        config.setUrl(stub.getUrl());
+        config.setRealms(String.join(",", realms));
+        config.setRealmAffinityCacheSize(0);
+        config.setCredentialCacheSize(0);
+        config.setRejectedCredentialCacheSize(0);
+        config.setLoginThrottleThreshold(0);
+        config.setAdminClient("alfresco");
+        config.setAdminSecret("secret");
+        config.setEmailContributorAttribute(KeycloakStubRealm.EMAIL_CONTRIBUTOR_ATTRIBUTE);
+        config.setEmailAliasAttribute(KeycloakStubRealm.EMAIL_ALIAS_ATTRIBUTE);
+        config.setUserAspect("{http://www.example.com/model/keycloak/1.0}keycloakUser");
+        config.setServiceRegistry(repository.getServiceRegistry());
+        adminClientProvider.setConfig(config);
+        groupTreeCache.setConfig(config);
+        groupTreeCache.setAdminClientProvider(adminClientProvider);
+        zoneAuthorities.setConfig(config);
+        directGrantAuthenticator.setConfig(config);
+        authenticationComponent.setId("keycloak1");
+        authenticationComponent.setConfig(config);
+        authenticationComponent.setAdminClientProvider(adminClientProvider);
+        authenticationComponent.setDirectGrantAuthenticator(directGrantAuthenticator);
+        authenticationComponent.setGroupTreeCache(groupTreeCache);
+        authenticationComponent.setZoneAuthorities(zoneAuthorities);
+    }
+
+    /**
+     * sets the properties of the subsystem's configuration bean to the values its context gets from
+     * keycloak-authentication.properties, leaving the empty ones to the defaults of {@link KeycloakConfig}
+     */
+    private static void applyDefaults(KeycloakConfig config) {
+        Properties defaults = new Properties();
+        try (InputStream in = new ClassPathResource(SUBSYSTEM + "keycloak-authentication.properties").getInputStream()) {
+            defaults.load(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the keycloak subsystem properties", e);
+        }
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        new XmlBeanDefinitionReader(beanFactory).loadBeanDefinitions(new ClassPathResource(SUBSYSTEM + "keycloak-authentication-context.xml"));
+        PropertyPlaceholderHelper placeholders = new PropertyPlaceholderHelper("${", "}");
+        BeanWrapper configWrapper = new BeanWrapperImpl(config);
+        for (PropertyValue property : beanFactory.getBeanDefinition("keycloakConfig").getPropertyValues().getPropertyValues()) {
+            if(property.getValue() instanceof TypedStringValue) {
+                String value = placeholders.replacePlaceholders(((TypedStringValue) property.getValue()).getValue(), defaults);
+                if(!value.isEmpty())
+                    configWrapper.setPropertyValue(property.getName(), value);
+            }
+        }
+    }
+
+    /**
+     * initializes the authentication component with the configuration set so far
+     *
+     * @return this fixture
+     * @throws Exception if the configuration is invalid
+     */
+    public KeycloakStubFixture start() throws Exception {
+        authenticationComponent.afterPropertiesSet();
+        return this;
+    }
+
+    /**
+     * @return a new synchronization instance, initialized with the groups and memberships of all the realms
+     */
+    public KeycloakThreadInstance newSynchronizationInstance() {
+        return new KeycloakThreadInstance(config, adminClientProvider, groupTreeCache, zoneAuthorities);
+    }
+
+    /**
+     * @return the shards of the synchronizations of a node of a cluster sharing the fixture's repository
+     */
+    public KeycloakSyncShards newSyncShards() {
+        KeycloakSyncShards shards = new KeycloakSyncShards();
+        shards.setConfig(config);
+        shards.setAdminClientProvider(adminClientProvider);
+        shards.setGroupTreeCache(groupTreeCache);
+        return shards;
+    }
+
+    /**
+     * @return a new synchronization instance reading the groups and memberships through the shards
+     */
+    public KeycloakThreadInstance newSynchronizationInstance(KeycloakSyncShards shards) {
+        return new KeycloakThreadInstance(config, adminClientProvider, groupTreeCache, zoneAuthorities, shards);
+    }
+
+    /**
+     * @return a new instance of an authenticating user, that reads the user from keycloak on first use
+     */
+    public KeycloakThreadInstance newLoginInstance(String realm, String username) {
+        return new KeycloakThreadInstance(config, adminClientProvider, groupTreeCache, zoneAuthorities, realm, username);
+    }
+
+    /**
+     * @return a new instance of a targeted synchronization, that reads the users and groups from keycloak on first use
+     */
+    public KeycloakThreadInstance newTargetedInstance(String realm, Collection<String> userIds, Collection<String> groupIds) {
+        return new KeycloakThreadInstance(config, adminClientProvider, groupTreeCache, zoneAuthorities, realm, userIds, groupIds);
+    }
+
+    /**
+     * @return a new user registry, used as the synchronization job uses it
+     * @throws Exception if the registry cannot be initialized
+     */
+    public KeycloakUserRegistry newUserRegistry() throws Exception {
+        KeycloakUserRegistry userRegistry = new KeycloakUserRegistry();
+        userRegistry.setActive(true);
+        userRegistry.setServiceRegistry(repository.getServiceRegistry());
+        userRegistry.setConfig(config);
+        userRegistry.setAdminClientProvider(adminClientProvider);
+        userRegistry.setGroupTreeCache(groupTreeCache);
+        userRegistry.setZoneAuthorities(zoneAuthorities);
+        userRegistry.setPersonAttributeMapping(Collections.emptyMap());
+        userRegistry.afterPropertiesSet();
+        return userRegistry;
+    }
+
+    public KeycloakStubRepository getRepository() {
+        return repository;
+    }
+
+    public KeycloakConfig getConfig() {
+        return config;
+    }
+
+    public KeycloakAuthenticationComponentImpl getAuthenticationComponent() {
+        return authenticationComponent;
+    }
+
+    public KeycloakAdminClientProvider getAdminClientProvider() {
+        return adminClientProvider;
+    }
+
+    public KeycloakGroupTreeCache getGroupTreeCache() {
+        return groupTreeCache;
+    }
+
+    public KeycloakZoneAuthorities getZoneAuthorities() {
+        return zoneAuthorities;
+    }
+
+    /**
+     * releases the clients and the threads of the connector
+     */
+    @Override
+    public void close() {
+        authenticationComponent.destroy();
+        directGrantAuthenticator.destroy();
+        groupTreeCache.destroy();
+        adminClientProvider.destroy();
+    }
+}
@@ -0,0 +1,179 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.*;
+
+/**
+ * users, groups and memberships of a realm served by the {@link KeycloakStub}.
+ * Users are kept in username order, as keycloak lists them.
+ *
+ * @since   1.0
+ */
+public class KeycloakStubRealm {
+
+    public static final String EMAIL_CONTRIBUTOR_ATTRIBUTE = "alfresco-email-contributor";
+    public static final String EMAIL_ALIAS_ATTRIBUTE = "email-alias";
+
+    private final String name;
+    private final List<UserRepresentation> users = new ArrayList<>();
+    private final Map<String, UserRepresentation> usersById = new HashMap<>();
+    private final Map<String, UserRepresentation> usersByUsername = new HashMap<>();
+    private final List<GroupRepresentation> topGroups = new ArrayList<>();
+    private final Map<String, GroupRepresentation> groupsById = new LinkedHashMap<>();
+    private final Map<String, List<UserRepresentation>> membersByGroup = new HashMap<>();
+    private final Map<String, List<GroupRepresentation>> groupsByUser = new HashMap<>();
+
+    public KeycloakStubRealm(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name realm name
+     * @param userCount number of users
+     * @param groupCount number of groups, ten top level groups with four subgroups each below them
+     * @param membershipsPerUser number of random groups each user is member of
+     * @param seed seed of the random memberships
+     * @return a realm where one group in fifty and one user in a hundred are email contributors,
+     * and one user in ten has an email alias
+     */
+    public static KeycloakStubRealm generate(String name, int userCount, int groupCount, int membershipsPerUser, long seed) {
+        KeycloakStubRealm realm = new KeycloakStubRealm(name);
+        int roots = Math.min(groupCount, 10);
+        List<GroupRepresentation> groups = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            GroupRepresentation parent = i < roots ? null : groups.get((i - roots) / 4);
+            Map<String, List<String>> attributes = new HashMap<>();
+            if(i % 50 == 0)
+                attributes.put(EMAIL_CONTRIBUTOR_ATTRIBUTE, Collections.singletonList("true"));
+            groups.add(realm.addGroup(String.format("group-%05d", i), parent, attributes));
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < userCount; i++) {
+            String username = String.format("%s-user-%07d", name, i);
+            Map<String, List<String>> attributes = new HashMap<>();
+            if(i % 100 == 0)
+                attributes.put(EMAIL_CONTRIBUTOR_ATTRIBUTE, Collections.singletonList("true"));
+            if(i % 10 == 0)
+                attributes.put(EMAIL_ALIAS_ATTRIBUTE, Collections.singletonList(String.format("alias-%s@example.com", username)));
+            UserRepresentation user = realm.addUser(username, String.format("%s@example.com", username),
+                    "First" + i, "Last" + i, attributes);
+            Set<GroupRepresentation> memberships = new HashSet<>();
+            while(memberships.size() < Math.min(membershipsPerUser, groupCount)) {
+                memberships.add(groups.get(random.nextInt(groupCount)));
+            }
+            for (GroupRepresentation group : memberships) {
+                realm.addMember(group, user);
+            }
+        }
+        return realm;
+    }
+
+    /**
+     * @param name group name
+     * @param parent parent group, null for a top level group
+     * @param attributes group attributes
+     * @return the added group, with a random id
+     */
+    public GroupRepresentation addGroup(String name, GroupRepresentation parent, Map<String, List<String>> attributes) {
+        return addGroup(UUID.randomUUID().toString(), name, parent, attributes);
+    }
+
+    /**
+     * @param id group id
+     * @param name group name
+     * @param parent parent group, null for a top level group
+     * @param attributes group attributes
+     * @return the added group
+     */
+    public GroupRepresentation addGroup(String id, String name, GroupRepresentation parent, Map<String, List<String>> attributes) {
+        GroupRepresentation group = new GroupRepresentation();
+        group.setId(id);
+        group.setName(name);
+        group.setPath(parent == null ? "/" + name : parent.getPath() + "/" + name);
+        group.setAttributes(attributes);
+        group.setSubGroups(new ArrayList<>());
+        if(parent == null)
+            topGroups.add(group);
+        else
+            parent.getSubGroups().add(group);
+        groupsById.put(group.getId(), group);
+        membersByGroup.put(group.getId(), new ArrayList<>());
+        return group;
+    }
+
+    /**
+     * @return the added user, with a random id, placed in username order
+     */
+    public UserRepresentation addUser(String username, String email, String firstName, String lastName,
+                                      Map<String, List<String>> attributes) {
+        return addUser(UUID.randomUUID().toString(), username, email, firstName, lastName, attributes);
+    }
+
+    /**
+     * @return the added user, placed in username order
+     */
+    public UserRepresentation addUser(String id, String username, String email, String firstName, String lastName,
+                                      Map<String, List<String>> attributes) {
+        UserRepresentation user = new UserRepresentation();
+        user.setId(id);
+        user.setUsername(username);
+        user.setEmail(email);
+        user.setFirstName(firstName);
+        user.setLastName(lastName);
+        user.setEnabled(true);
+        user.setAttributes(attributes);
+        int index = users.isEmpty() || users.get(users.size() - 1).getUsername().compareTo(username) < 0 ? users.size() :
+                -Collections.binarySearch(users, user, Comparator.comparing(UserRepresentation::getUsername)) - 1;
+        users.add(index, user);
+        usersById.put(user.getId(), user);
+        usersByUsername.put(username, user);
+        groupsByUser.put(user.getId(), new ArrayList<>());
+        return user;
+    }
+
+    public void addMember(GroupRepresentation group, UserRepresentation user) {
+        membersByGroup.get(group.getId()).add(user);
+        groupsByUser.get(user.getId()).add(group);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<UserRepresentation> getUsers() {
+        return users;
+    }
+
+    public UserRepresentation getUser(String id) {
+        return usersById.get(id);
+    }
+
+    public UserRepresentation getUserByUsername(String username) {
+        return usersByUsername.get(username);
+    }
+
+    public List<GroupRepresentation> getTopGroups() {
+        return topGroups;
+    }
+
+    public GroupRepresentation getGroup(String id) {
+        return groupsById.get(id);
+    }
+
+    public Collection<GroupRepresentation> getGroups() {
+        return groupsById.values();
+    }
+
+    /**
+     * @return members of the group, in the order they were added
+     */
+    public List<UserRepresentation> getMembers(String groupId) {
+        return membersByGroup.get(groupId);
+    }
+
+    public List<GroupRepresentation> getUserGroups(String userId) {
+        return groupsByUser.get(userId);
+    }
+}
@@ -0,0 +1,211 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.AuthorityType;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * in-memory stand-in for the alfresco services used by the connector outside a login:
+ * the authorities of the authentication zones, the attributes storing the fingerprints and the shards,
+ * the job locks of a single node cluster and transactions that just run their callback.
+ * The authorities imported are recorded with {@link #importPerson(String)} and {@link #importGroup(String, Collection)},
+ * as alfresco would apply them. The email contributors group has no members created in alfresco.
+ *
+ * @since   1.0
+ */
+public class KeycloakStubRepository {
+
+    /**
+     * authorities in the authentication zones, as if alfresco imported them
+     */
+    private final Set<String> zoneAuthorities = ConcurrentHashMap.newKeySet();
+    /**
+     * members of the groups imported, by authority name
+     */
+    private final Map<String, Set<String>> groupMembers = new ConcurrentHashMap<>();
+    private final Map<List<Serializable>, Serializable> attributes = new ConcurrentHashMap<>();
+    /**
+     * tokens of the locks held, by name
+     */
+    private final Map<QName, String> locks = new HashMap<>();
+    /**
+     * callbacks of the locks kept until they are no more active
+     */
+    private final Map<QName, JobLockService.JobLockRefreshCallback> lockCallbacks = new HashMap<>();
+    private final ServiceRegistry serviceRegistry;
+
+    public KeycloakStubRepository() {
+        Map<String, Function<Object[], Object>> authorityMethods = new HashMap<>();
+        authorityMethods.put("getAllAuthoritiesInZone", args -> new HashSet<>(zoneAuthorities));
+        authorityMethods.put("getContainedAuthorities", args -> {
+            Set<String> members = new HashSet<>();
+            for (String member : groupMembers.getOrDefault((String) args[1], Collections.emptySet())) {
+                if(args[0] == null || (args[0] == AuthorityType.GROUP) == member.startsWith("GROUP_"))
+                    members.add(member);
+            }
+            return members;
+        });
+        authorityMethods.put("authorityExists", args -> zoneAuthorities.contains((String) args[0]) || groupMembers.containsKey((String) args[0]));
+        AuthorityService authorityService = proxy(AuthorityService.class, authorityMethods);
+
+        Map<String, Function<Object[], Object>> attributeMethods = new HashMap<>();
+        attributeMethods.put("setAttribute", args -> attributes.put(Arrays.asList((Serializable[]) args[1]), (Serializable) args[0]));
+        attributeMethods.put("getAttribute", args -> attributes.get(Arrays.asList((Serializable[]) args[0])));
+        attributeMethods.put("exists", args -> attributes.containsKey(Arrays.asList((Serializable[]) args[0])));
+        attributeMethods.put("removeAttribute", args -> attributes.remove(Arrays.asList((Serializable[]) args[0])));
+        attributeMethods.put("removeAttributes", args -> {
+            List<Serializable> prefix = Arrays.asList((Serializable[]) args[0]);
+            attributes.keySet().removeIf(keys -> keys.size() >= prefix.size() && keys.subList(0, prefix.size()).equals(prefix));
+            return null;
+        });
+        attributeMethods.put("getAttributes", args -> {
+            AttributeService.AttributeQueryCallback callback = (AttributeService.AttributeQueryCallback) args[0];
+            List<Serializable> prefix = Arrays.asList((Serializable[]) args[1]);
+            long id = 0;
+            for (Map.Entry<List<Serializable>, Serializable> attribute : new ArrayList<>(attributes.entrySet())) {
+                List<Serializable> keys = attribute.getKey();
+                if(keys.size() >= prefix.size() && keys.subList(0, prefix.size()).equals(prefix)
+                        && !callback.handleAttribute(++id, attribute.getValue(), keys.toArray(new Serializable[0])))
+                    break;
+            }
+            return null;
+        });
+        AttributeService attributeService = proxy(AttributeService.class, attributeMethods);
+
+        RetryingTransactionHelper transactionHelper = new RetryingTransactionHelper() {
+            @Override
+            public <R> R doInTransaction(RetryingTransactionCallback<R> callback, boolean readOnly, boolean requiresNew) {
+                try {
+                    return callback.execute();
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        TransactionService transactionService = proxy(TransactionService.class,
+                Collections.singletonMap("getRetryingTransactionHelper", args -> transactionHelper));
+
+        Map<String, Function<Object[], Object>> lockMethods = new HashMap<>();
+        lockMethods.put("getLock", args -> {
+            String token = acquireLock((QName) args[0]);
+            if(args.length == 3)
+                synchronized (locks) {
+                    lockCallbacks.put((QName) args[0], (JobLockService.JobLockRefreshCallback) args[2]);
+                }
+            return args.length == 3 ? null : token;
+        });
+        lockMethods.put("refreshLock", args -> {
+            synchronized (locks) {
+                if(!args[0].equals(locks.get((QName) args[1])))
+                    throw new LockAcquisitionException("Lock " + args[1] + " lost");
+            }
+            return null;
+        });
+        lockMethods.put("releaseLock", args -> {
+            synchronized (locks) {
+                locks.remove((QName) args[1], args[0]);
+            }
+            return null;
+        });
+        JobLockService jobLockService = proxy(JobLockService.class, lockMethods);
+
+        Map<String, Function<Object[], Object>> serviceMethods = new HashMap<>();
+        serviceMethods.put("getAuthorityService", args -> authorityService);
+        serviceMethods.put("getAttributeService", args -> attributeService);
+        serviceMethods.put("getTransactionService", args -> transactionService);
+        serviceMethods.put("getJobLockService", args -> jobLockService);
+        serviceRegistry = proxy(ServiceRegistry.class, serviceMethods);
+    }
+
+    /**
+     * @return the token of the lock
+     * @throws LockAcquisitionException if the lock is held, by a callback still active
+     */
+    private String acquireLock(QName lockQName) {
+        synchronized (locks) {
+            JobLockService.JobLockRefreshCallback callback = lockCallbacks.get(lockQName);
+            if(callback != null && !callback.isActive()) {
+                lockCallbacks.remove(lockQName);
+                locks.remove(lockQName);
+                callback.lockReleased();
+            }
+            if(locks.containsKey(lockQName))
+                throw new LockAcquisitionException("Lock " + lockQName + " held");
+            String token = UUID.randomUUID().toString();
+            locks.put(lockQName, token);
+            return token;
+        }
+    }
+
+    /**
+     * @param type interface to implement
+     * @param methods implementation of the methods used by the connector, by name
+     * @return an implementation of the interface throwing {@link UnsupportedOperationException} from the other methods
+     */
+    private static <T> T proxy(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            Function<Object[], Object> implementation = methods.get(method.getName());
+            if(implementation != null)
+                return implementation.apply(args);
+            switch (method.getName()) {
+                case "toString":
+                    return type.getSimpleName() + " stub";
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+    }
+
+    public ServiceRegistry getServiceRegistry() {
+        return serviceRegistry;
+    }
+
+    /**
+     * @return the authorities in the authentication zones, that can be changed to reflect what alfresco imported
+     */
+    public Set<String> getZoneAuthorities() {
+        return zoneAuthorities;
+    }
+
+    /**
+     * records a person synchronized by alfresco
+     */
+    public void importPerson(String username) {
+        zoneAuthorities.add(username);
+    }
+
+    /**
+     * records a group synchronized by alfresco
+     *
+     * @param children authority names of the members it was synchronized with
+     */
+    public void importGroup(String authorityName, Collection<String> children) {
+        zoneAuthorities.add(authorityName);
+        groupMembers.put(authorityName, new HashSet<>(children));
+    }
+
+    /**
+     * @return number of stored attributes
+     */
+    public int getAttributeCount() {
+        return attributes.size();
+    }
+}
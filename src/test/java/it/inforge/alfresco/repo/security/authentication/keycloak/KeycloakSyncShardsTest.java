@@ -0,0 +1,104 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.representations.idm.GroupRepresentation;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class KeycloakSyncShardsTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStubRealm realm;
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+    private KeycloakSyncShards coordinator;
+    private KeycloakSyncShards worker;
+
+    @Before
+    public void setUp() throws Exception {
+        realm = new KeycloakStubRealm(REALM);
+        GroupRepresentation staff = realm.addGroup("staff", null, Collections.emptyMap());
+        for (int i = 0; i < 10; i++) {
+            realm.addMember(staff, realm.addUser("user" + i, "user" + i + "@example.com", "user", String.valueOf(i), Collections.emptyMap()));
+        }
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.getConfig().setSynchronizationShardUsers(4);
+        fixture.getConfig().setSynchronizationShardTimeout(1);
+        fixture.getConfig().setSynchronizationCheckpoints(true);
+        fixture.start();
+        coordinator = fixture.newSyncShards();
+        worker = fixture.newSyncShards();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void workerReadsTheShardsOfALivePlan() {
+        KeycloakSyncShards.Plan plan = plan();
+        stub.resetRequestCount();
+        worker.work();
+        assertTrue(stub.getRequestCount() > 0);
+        stub.resetRequestCount();
+        coordinator.read(plan, true, System.currentTimeMillis() + 1000);
+        assertEquals(0, stub.getRequestCount());
+        assertEquals(10, usernames(plan).size());
+    }
+
+    @Test
+    public void workerIgnoresAPlanNoMoreCoordinated() throws Exception {
+        plan();
+        // the plan kept by a failed synchronization, once its coordinator stopped waiting for it
+        Thread.sleep(1100);
+        stub.resetRequestCount();
+        worker.work();
+        assertEquals(0, stub.getRequestCount());
+    }
+
+    @Test
+    public void resumedPlanIsLiveAgain() throws Exception {
+        KeycloakSyncShards.Plan plan = plan();
+        Thread.sleep(1100);
+        KeycloakSyncShards.Plan resumed = plan();
+        assertEquals(plan.getId(), resumed.getId());
+        stub.resetRequestCount();
+        worker.work();
+        assertTrue(stub.getRequestCount() > 0);
+        stub.resetRequestCount();
+        coordinator.read(resumed, true, System.currentTimeMillis() + 1000);
+        assertEquals(0, stub.getRequestCount());
+    }
+
+    @Test
+    public void workerIgnoresAPlanRemoved() {
+        KeycloakSyncShards.Plan plan = plan();
+        coordinator.cleanup(plan);
+        stub.resetRequestCount();
+        worker.work();
+        assertEquals(0, stub.getRequestCount());
+    }
+
+    private KeycloakSyncShards.Plan plan() {
+        Map<String, KeycloakGroupTree> groupTrees = Collections.singletonMap(REALM, fixture.getGroupTreeCache().reload(REALM));
+        return coordinator.plan(fixture.getAdminClientProvider().getKeycloak(), new String[] {REALM}, groupTrees, new AtomicLong());
+    }
+
+    private List<String> usernames(KeycloakSyncShards.Plan plan) {
+        List<String> usernames = new ArrayList<>();
+        for (String username : coordinator.users(plan, (userRealm, userRepresentation) -> userRepresentation.getUsername(),
+                userRealm -> Collections.emptyList(), userRealm -> 10)) {
+            usernames.add(username);
+        }
+        return usernames;
+    }
+}
@@ -0,0 +1,195 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.sync.NodeDescription;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class KeycloakThreadInstanceTest {
+
+    private static final String REALM = "test";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private KeycloakStubRealm realm;
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        realm = new KeycloakStubRealm(REALM);
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.getConfig().setAdminRetries(0);
+        fixture.start();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void sameNamedGroupsAreUnioned() {
+        GroupRepresentation sales = realm.addGroup("sales", null, Collections.emptyMap());
+        GroupRepresentation support = realm.addGroup("support", null, Collections.emptyMap());
+        GroupRepresentation salesStaff = realm.addGroup("staff", sales, Collections.emptyMap());
+        GroupRepresentation supportStaff = realm.addGroup("staff", support, Collections.emptyMap());
+        realm.addMember(salesStaff, addUser("alice"));
+        realm.addMember(supportStaff, addUser("bob"));
+
+        KeycloakThreadInstance instance = fixture.newSynchronizationInstance();
+        try {
+            Map<String, Set<String>> groups = groups(instance);
+            assertEquals(new HashSet<>(Arrays.asList("alice", "bob")), groups.get("GROUP_test-staff"));
+            assertEquals(Collections.singleton("GROUP_test-staff"), groups.get("GROUP_test-sales"));
+            assertEquals(Collections.singleton("GROUP_test-staff"), groups.get("GROUP_test-support"));
+        } finally {
+            instance.dispose(logger);
+        }
+    }
+
+    @Test
+    public void shardedSynchronizationUnionsSameNamedGroups() {
+        GroupRepresentation sales = realm.addGroup("sales", null, Collections.emptyMap());
+        GroupRepresentation support = realm.addGroup("support", null, Collections.emptyMap());
+        GroupRepresentation salesStaff = realm.addGroup("staff", sales, Collections.emptyMap());
+        realm.addMember(salesStaff, addUser("alice"));
+        // the shards are read with a group hierarchy loaded before the second group was created
+        KeycloakGroupTreeCache staleGroupTreeCache = new KeycloakGroupTreeCache();
+        staleGroupTreeCache.setConfig(fixture.getConfig());
+        staleGroupTreeCache.setAdminClientProvider(fixture.getAdminClientProvider());
+        staleGroupTreeCache.reload(REALM);
+        GroupRepresentation supportStaff = realm.addGroup("staff", support, Collections.emptyMap());
+        realm.addMember(supportStaff, addUser("bob"));
+        KeycloakSyncShards shards = fixture.newSyncShards();
+        shards.setGroupTreeCache(staleGroupTreeCache);
+        assertTrue(shards.acquireCoordination());
+
+        KeycloakThreadInstance instance = fixture.newSynchronizationInstance(shards);
+        try {
+            Map<String, Set<String>> groups = groups(instance);
+            assertEquals(new HashSet<>(Arrays.asList("alice", "bob")), groups.get("GROUP_test-staff"));
+            assertEquals(Collections.singleton("GROUP_test-staff"), groups.get("GROUP_test-support"));
+        } finally {
+            instance.dispose(logger);
+            shards.releaseCoordination();
+            staleGroupTreeCache.destroy();
+        }
+    }
+
+    @Test
+    public void targetedSynchronizationUnionsSameNamedGroups() {
+        GroupRepresentation sales = realm.addGroup("sales", null, Collections.emptyMap());
+        GroupRepresentation support = realm.addGroup("support", null, Collections.emptyMap());
+        GroupRepresentation salesStaff = realm.addGroup("staff", sales, Collections.emptyMap());
+        GroupRepresentation supportStaff = realm.addGroup("staff", support, Collections.emptyMap());
+        realm.addGroup("interns", supportStaff, Collections.emptyMap());
+        realm.addMember(salesStaff, addUser("alice"));
+        realm.addMember(supportStaff, addUser("bob"));
+
+        KeycloakThreadInstance instance = fixture.newTargetedInstance(REALM, Collections.emptyList(),
+                Collections.singletonList(salesStaff.getId()));
+        try {
+            Map<String, Set<String>> groups = groups(instance);
+            assertEquals(new HashSet<>(Arrays.asList("alice", "bob", "GROUP_test-interns")), groups.get("GROUP_test-staff"));
+            assertEquals(Collections.singleton("GROUP_test-staff"), groups.get("GROUP_test-sales"));
+            assertFalse(groups.containsKey("GROUP_test-support"));
+        } finally {
+            instance.dispose(logger);
+        }
+    }
+
+    @Test
+    public void loginInstanceReturnsCompleteGroups() {
+        GroupRepresentation company = realm.addGroup("company", null, Collections.emptyMap());
+        GroupRepresentation staff = realm.addGroup("staff", company, Collections.emptyMap());
+        realm.addGroup("sales", staff, Collections.emptyMap());
+        realm.addMember(company, addUser("carol"));
+        realm.addMember(staff, addUser("bob"));
+        // the user's group is created after the group hierarchy was cached
+        fixture.getGroupTreeCache().get(REALM);
+        GroupRepresentation interns = realm.addGroup("interns", staff, Collections.emptyMap());
+        realm.addMember(interns, addUser("alice"));
+
+        KeycloakThreadInstance instance = fixture.newLoginInstance(REALM, "alice");
+        try {
+            assertEquals(Collections.singletonList("alice"), new ArrayList<>(instance.getPersonNames()));
+            Map<String, Set<String>> groups = groups(instance);
+            assertEquals(new HashSet<>(Arrays.asList("GROUP_test-interns", "GROUP_test-staff")), groups.keySet());
+            assertEquals(Collections.singleton("alice"), groups.get("GROUP_test-interns"));
+            assertEquals(new HashSet<>(Arrays.asList("bob", "GROUP_test-sales", "GROUP_test-interns")), groups.get("GROUP_test-staff"));
+        } finally {
+            instance.dispose(logger);
+        }
+    }
+
+    @Test
+    public void loginInstanceIsLoadedAgainAfterFailure() {
+        GroupRepresentation staff = realm.addGroup("staff", null, Collections.emptyMap());
+        realm.addMember(staff, addUser("alice"));
+
+        KeycloakThreadInstance instance = fixture.newLoginInstance(REALM, "alice");
+        try {
+            stub.failAdminRequests("users", 1);
+            try {
+                instance.getUsers();
+                fail("the failed keycloak request is not reported");
+            } catch (RuntimeException e) {
+                // expected
+            }
+            assertEquals(Collections.singletonList("alice"), new ArrayList<>(instance.getPersonNames()));
+            assertEquals(Collections.singleton("alice"), groups(instance).get("GROUP_test-staff"));
+        } finally {
+            instance.dispose(logger);
+        }
+    }
+
+    @Test
+    public void targetedInstanceIsLoadedAgainAfterFailure() {
+        GroupRepresentation staff = realm.addGroup("staff", null, Collections.emptyMap());
+        realm.addMember(staff, addUser("alice"));
+
+        KeycloakThreadInstance instance = fixture.newTargetedInstance(REALM,
+                Collections.singletonList(realm.getUserByUsername("alice").getId()), Collections.singletonList(staff.getId()));
+        try {
+            // the user and the group hierarchy are read, the group members are not
+            stub.failAdminRequests("groups", 1);
+            try {
+                instance.getGroups();
+                fail("the failed keycloak request is not reported");
+            } catch (RuntimeException e) {
+                // expected
+            }
+            assertEquals(Collections.singletonList("alice"), new ArrayList<>(instance.getPersonNames()));
+            assertEquals(Collections.singleton("alice"), groups(instance).get("GROUP_test-staff"));
+        } finally {
+            instance.dispose(logger);
+        }
+    }
+
+    private UserRepresentation addUser(String username) {
+        return realm.addUser(username, username + "@example.com", username, username, Collections.emptyMap());
+    }
+
+    /**
+     * @return members by authority name of the groups the instance imports
+     */
+    private static Map<String, Set<String>> groups(KeycloakThreadInstance instance) {
+        Map<String, Set<String>> groups = new HashMap<>();
+        for (NodeDescription group : instance.getGroups()) {
+            groups.put((String) group.getProperties().get(ContentModel.PROP_AUTHORITY_NAME), new HashSet<>(group.getChildAssociations()));
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,96 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class KeycloakUserPagesTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStubRealm realm;
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        realm = new KeycloakStubRealm(REALM);
+        for (int i = 0; i < 23; i++) {
+            addUser(String.format("user-%03d", i));
+        }
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.getConfig().setUserListingBatchSize(5);
+        fixture.getConfig().setUserListingAdaptive(false);
+        fixture.start();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void usersAreReturnedOnceInOrder() {
+        List<String> usernames = new ArrayList<>();
+        for (UserRepresentation userRepresentation : newUserPages(2)) {
+            usernames.add(userRepresentation.getUsername());
+        }
+        List<String> expected = new ArrayList<>();
+        for (UserRepresentation userRepresentation : realm.getUsers()) {
+            expected.add(userRepresentation.getUsername());
+        }
+        assertEquals(expected, usernames);
+        assertEquals(23, newUserPages(2).size());
+    }
+
+    @Test
+    public void shiftedRealmIsReconciledReturningEachUserOnce() {
+        List<String> usernames = new ArrayList<>();
+        Iterator<UserRepresentation> users = newUserPages(2).iterator();
+        usernames.add(users.next().getUsername());
+        // shifts the following pages by one user
+        addUser("user-000a");
+        while(users.hasNext()) {
+            usernames.add(users.next().getUsername());
+        }
+        assertEquals(24, usernames.size());
+        assertEquals(24, new HashSet<>(usernames).size());
+        assertTrue(usernames.contains("user-000a"));
+    }
+
+    @Test
+    public void deletedUserDoesNotHideTheOthers() {
+        List<String> usernames = new ArrayList<>();
+        Iterator<UserRepresentation> users = newUserPages(2).iterator();
+        usernames.add(users.next().getUsername());
+        realm.getUsers().remove(1);
+        while(users.hasNext()) {
+            usernames.add(users.next().getUsername());
+        }
+        Set<String> expected = new HashSet<>();
+        for (UserRepresentation userRepresentation : realm.getUsers()) {
+            expected.add(userRepresentation.getUsername());
+        }
+        assertTrue(usernames.containsAll(expected));
+        assertEquals(new HashSet<>(usernames).size(), usernames.size());
+    }
+
+    private KeycloakUserPages<UserRepresentation> newUserPages(int overlap) {
+        KeycloakConfig config = fixture.getConfig();
+        KeycloakPageFetcher fetcher = new KeycloakPageFetcher(Runnable::run, 1, 1, new KeycloakPageSizer(config));
+        return new KeycloakUserPages<>(fetcher, fixture.getAdminClientProvider().getKeycloak(), new String[] {REALM}, overlap,
+                (userRealm, userRepresentation) -> userRepresentation, new AtomicLong(), config.getMetrics(), "test");
+    }
+
+    private void addUser(String username) {
+        realm.addUser(username, username + "@example.com", username, username, Collections.emptyMap());
+    }
+}
@@ -0,0 +1,44 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class KeycloakZoneAuthoritiesTest {
+
+    private KeycloakStubRepository repository;
+    private KeycloakZoneAuthorities zoneAuthorities;
+
+    @Before
+    public void setUp() {
+        repository = new KeycloakStubRepository();
+        KeycloakConfig config = new KeycloakConfig();
+        config.setAuthZones("AUTH.EXT.keycloak1");
+        config.setServiceRegistry(repository.getServiceRegistry());
+        zoneAuthorities = new KeycloakZoneAuthorities();
+        zoneAuthorities.setConfig(config);
+    }
+
+    @Test
+    public void authoritiesAreLoadedOnFirstUse() {
+        repository.importPerson("alice");
+        repository.importGroup("GROUP_staff", Collections.singleton("alice"));
+        assertTrue(zoneAuthorities.contains("alice"));
+        assertTrue(zoneAuthorities.contains("GROUP_staff"));
+        assertFalse(zoneAuthorities.contains("bob"));
+    }
+
+    @Test
+    public void authoritiesImportedLaterAreSeenOnceInvalidated() {
+        repository.importPerson("alice");
+        assertFalse(zoneAuthorities.contains("bob"));
+        repository.importPerson("bob");
+        assertFalse(zoneAuthorities.contains("bob"));
+        zoneAuthorities.invalidate();
+        assertTrue(zoneAuthorities.contains("bob"));
+        assertTrue(zoneAuthorities.contains("alice"));
+    }
+}
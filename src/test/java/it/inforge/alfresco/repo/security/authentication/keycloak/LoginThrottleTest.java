@@ -0,0 +1,49 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoginThrottleTest {
+
+    @Test
+    public void realmIsBlockedAfterThresholdRejections() {
+        LoginThrottle throttle = new LoginThrottle(10, 2, 60, 600);
+        throttle.rejected("test", "alice");
+        assertFalse(throttle.isBlocked("test", "alice"));
+        throttle.rejected("test", "Alice");
+        assertTrue(throttle.isBlocked("test", "alice"));
+        assertFalse(throttle.isBlocked("other", "alice"));
+        assertFalse(throttle.isBlocked("test", "bob"));
+    }
+
+    @Test
+    public void acceptedAuthenticationResetsTheBackoff() {
+        LoginThrottle throttle = new LoginThrottle(10, 1, 60, 600);
+        throttle.rejected("test", "alice");
+        assertTrue(throttle.isBlocked("test", "alice"));
+        throttle.accepted("test", "alice");
+        assertFalse(throttle.isBlocked("test", "alice"));
+        throttle.rejected("test", "alice");
+        assertTrue(throttle.isBlocked("test", "alice"));
+    }
+
+    @Test
+    public void clearResetsAllTheBackoffs() {
+        LoginThrottle throttle = new LoginThrottle(10, 1, 60, 600);
+        throttle.rejected("test", "alice");
+        throttle.rejected("test", "bob");
+        throttle.clear();
+        assertFalse(throttle.isBlocked("test", "alice"));
+        assertFalse(throttle.isBlocked("test", "bob"));
+    }
+
+    @Test
+    public void backoffExpires() throws Exception {
+        LoginThrottle throttle = new LoginThrottle(10, 1, 1, 1);
+        throttle.rejected("test", "alice");
+        assertTrue(throttle.isBlocked("test", "alice"));
+        Thread.sleep(1100);
+        assertFalse(throttle.isBlocked("test", "alice"));
+    }
+}
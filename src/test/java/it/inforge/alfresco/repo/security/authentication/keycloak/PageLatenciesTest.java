@@ -0,0 +1,28 @@
+package it.inforge.alfresco.repo.security.authentication.keycloak;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PageLatenciesTest {
+
+    @Test
+    public void summaryComparesTheDeepestPagesWithTheMean() {
+        PageLatencies latencies = new PageLatencies();
+        // recorded out of order, as by parallel readers
+        for (int page = 19; page >= 0; page--) {
+            latencies.record("test", page * 100, TimeUnit.MILLISECONDS.toNanos(page < 18 ? 10 : 100));
+        }
+        latencies.record("other", 0, TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals("realm \"other\": 1 pages, mean 5 ms, deepest 1 pages mean 5 ms, max 5 ms at offset 0\n"
+                + "realm \"test\": 20 pages, mean 19 ms, deepest 2 pages mean 100 ms, max 100 ms at offset 1800",
+                latencies.summary());
+    }
+
+    @Test
+    public void summaryIsEmptyWithoutPages() {
+        assertEquals("", new PageLatencies().summary());
+    }
+}
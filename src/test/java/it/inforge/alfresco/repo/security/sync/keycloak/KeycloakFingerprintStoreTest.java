@@ -0,0 +1,108 @@
+package it.inforge.alfresco.repo.security.sync.keycloak;
+
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStubRepository;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.sync.NodeDescription;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class KeycloakFingerprintStoreTest {
+
+    private KeycloakStubRepository repository;
+    private KeycloakFingerprintStore store;
+    private KeycloakFingerprintStore.Verifier verifier;
+
+    @Before
+    public void setUp() {
+        repository = new KeycloakStubRepository();
+        store = new KeycloakFingerprintStore(repository.getServiceRegistry(), Collections.singleton("AUTH.EXT.keycloak1"));
+        AuthorityService authorityService = repository.getServiceRegistry().getAuthorityService();
+        verifier = new KeycloakFingerprintStore.Verifier() {
+            @Override
+            public boolean exists(String type, String name) {
+                return authorityService.authorityExists(name);
+            }
+
+            @Override
+            public Collection<String> getChildren(String groupName) {
+                return authorityService.getContainedAuthorities(null, groupName, true);
+            }
+        };
+    }
+
+    @Test
+    public void unchangedNodesKeepTheirLastModifiedDate() {
+        KeycloakFingerprintStore.Session session = store.openSession();
+        NodeDescription alice = person("alice", "alice@example.com");
+        assertTrue(session.track(KeycloakFingerprintStore.TYPE_PERSON, alice));
+        repository.importPerson("alice");
+        session.commit(verifier);
+
+        NodeDescription unchanged = person("alice", "alice@example.com");
+        assertFalse(store.openSession().track(KeycloakFingerprintStore.TYPE_PERSON, unchanged));
+        assertEquals(alice.getLastModified(), unchanged.getLastModified());
+        assertTrue(store.openSession().track(KeycloakFingerprintStore.TYPE_PERSON, person("alice", "alice@example.org")));
+    }
+
+    @Test
+    public void changesNotAppliedAreFoundAgain() {
+        KeycloakFingerprintStore.Session session = store.openSession();
+        session.track(KeycloakFingerprintStore.TYPE_PERSON, person("alice", "alice@example.com"));
+        session.track(KeycloakFingerprintStore.TYPE_PERSON, person("bob", "bob@example.com"));
+        session.track(KeycloakFingerprintStore.TYPE_GROUP, group("GROUP_test-staff", "alice", "bob"));
+        // alfresco failed to create bob, and so to add him to the group
+        repository.importPerson("alice");
+        repository.importGroup("GROUP_test-staff", Collections.singletonList("alice"));
+        session.commit(verifier);
+
+        session = store.openSession();
+        assertFalse(session.track(KeycloakFingerprintStore.TYPE_PERSON, person("alice", "alice@example.com")));
+        assertTrue(session.track(KeycloakFingerprintStore.TYPE_PERSON, person("bob", "bob@example.com")));
+        assertTrue(session.track(KeycloakFingerprintStore.TYPE_GROUP, group("GROUP_test-staff", "alice", "bob")));
+        repository.importPerson("bob");
+        repository.importGroup("GROUP_test-staff", Arrays.asList("alice", "bob"));
+        session.commit(verifier);
+
+        session = store.openSession();
+        assertFalse(session.track(KeycloakFingerprintStore.TYPE_PERSON, person("bob", "bob@example.com")));
+        assertFalse(session.track(KeycloakFingerprintStore.TYPE_GROUP, group("GROUP_test-staff", "alice", "bob")));
+    }
+
+    @Test
+    public void fingerprintsOfRemovedNodesAreDeleted() {
+        KeycloakFingerprintStore.Session session = store.openSession();
+        session.track(KeycloakFingerprintStore.TYPE_PERSON, person("alice", "alice@example.com"));
+        session.track(KeycloakFingerprintStore.TYPE_PERSON, person("bob", "bob@example.com"));
+        repository.importPerson("alice");
+        repository.importPerson("bob");
+        session.commit(verifier);
+        assertEquals(2, repository.getAttributeCount());
+
+        session = store.openSession();
+        session.track(KeycloakFingerprintStore.TYPE_PERSON, person("alice", "alice@example.com"));
+        session.commit(verifier);
+        assertEquals(1, repository.getAttributeCount());
+        assertTrue(store.openSession().track(KeycloakFingerprintStore.TYPE_PERSON, person("bob", "bob@example.com")));
+    }
+
+    private static NodeDescription person(String username, String email) {
+        NodeDescription person = new NodeDescription("id-" + username);
+        person.getProperties().put(ContentModel.PROP_USERNAME, username);
+        person.getProperties().put(ContentModel.PROP_EMAIL, email);
+        return person;
+    }
+
+    private static NodeDescription group(String authorityName, String... members) {
+        NodeDescription group = new NodeDescription("id-" + authorityName);
+        group.getProperties().put(ContentModel.PROP_AUTHORITY_NAME, authorityName);
+        group.getChildAssociations().addAll(Arrays.asList(members));
+        return group;
+    }
+}
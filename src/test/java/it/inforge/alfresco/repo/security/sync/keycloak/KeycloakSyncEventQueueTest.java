@@ -0,0 +1,154 @@
+package it.inforge.alfresco.repo.security.sync.keycloak;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStub;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStubFixture;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStubRealm;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.management.subsystems.ActivateableBean;
+import org.alfresco.repo.management.subsystems.ChildApplicationContextManager;
+import org.alfresco.repo.security.sync.NodeDescription;
+import org.alfresco.repo.security.sync.UserRegistrySynchronizer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeycloakSyncEventQueueTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStubRealm realm;
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+    private KeycloakUserRegistry userRegistry;
+    private KeycloakSyncEventQueue queue;
+    /**
+     * the persons and groups each synchronization read from the user registry
+     */
+    private final BlockingQueue<Set<String>> synchronizations = new LinkedBlockingQueue<>();
+    /**
+     * the user registries of the authentication chain, by subsystem id
+     */
+    private final Map<String, ApplicationContext> chain = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        realm = new KeycloakStubRealm(REALM);
+        GroupRepresentation staff = realm.addGroup("staff", null, Collections.emptyMap());
+        realm.addMember(staff, realm.addUser("alice", "alice@example.com", "alice", "alice", Collections.emptyMap()));
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.getConfig().setSynchronizationEventsDelay(10);
+        fixture.start();
+        userRegistry = fixture.newUserRegistry();
+        chain.put("keycloak1", newContext(userRegistry));
+
+        queue = new KeycloakSyncEventQueue();
+        queue.setConfig(fixture.getConfig());
+        queue.setUserRegistry(userRegistry);
+        queue.setUserRegistrySynchronizer((UserRegistrySynchronizer) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {UserRegistrySynchronizer.class}, (proxy, method, args) -> {
+                    if("synchronize".equals(method.getName()))
+                        synchronize();
+                    return null;
+                }));
+        queue.setApplicationContextManager((ChildApplicationContextManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {ChildApplicationContextManager.class}, (proxy, method, args) -> {
+                    if("getInstanceIds".equals(method.getName()))
+                        return new ArrayList<>(chain.keySet());
+                    return chain.get((String) args[0]);
+                }));
+        queue.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.destroy();
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void eventsAreSynchronized() throws Exception {
+        assertTrue(queue.addEvent(userEvent("UPDATE_PROFILE", "alice")));
+        assertEquals(Collections.singleton("alice"), synchronizations.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void eventsOfOtherRealmsAndTypesAreIgnored() {
+        assertFalse(queue.addEvent(event("realm", "other", "type", "UPDATE_PROFILE", "userId", userId("alice"))));
+        assertFalse(queue.addEvent(userEvent("LOGIN", "alice")));
+        assertFalse(queue.addEvent(event("realmId", REALM, "resourceType", "USER", "operationType", "DELETE",
+                "resourcePath", "users/" + userId("alice"))));
+    }
+
+    @Test
+    public void eventsAreDroppedWithOtherActiveRegistries() throws Exception {
+        chain.put("ldap1", newContext((ActivateableBean) () -> true));
+        assertTrue(queue.addEvent(userEvent("UPDATE_PROFILE", "alice")));
+        assertNull(synchronizations.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void inactiveRegistriesAreNotSynchronized() throws Exception {
+        chain.put("ldap1", newContext((ActivateableBean) () -> false));
+        assertTrue(queue.addEvent(userEvent("UPDATE_PROFILE", "alice")));
+        assertEquals(Collections.singleton("alice"), synchronizations.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void eventsAreSynchronizedWithOtherRegistriesIfAllowed() throws Exception {
+        fixture.getConfig().setSynchronizationEventsWithOtherRegistries(true);
+        chain.put("ldap1", newContext((ActivateableBean) () -> true));
+        assertTrue(queue.addEvent(userEvent("UPDATE_PROFILE", "alice")));
+        assertEquals(Collections.singleton("alice"), synchronizations.poll(5, TimeUnit.SECONDS));
+    }
+
+    private String userId(String username) {
+        return realm.getUserByUsername(username).getId();
+    }
+
+    private JsonNode userEvent(String type, String username) {
+        return event("realm", REALM, "type", type, "userId", userId(username));
+    }
+
+    private static JsonNode event(String... fields) {
+        Map<String, String> event = new LinkedHashMap<>();
+        for (int i = 0; i < fields.length; i += 2) {
+            event.put(fields[i], fields[i + 1]);
+        }
+        return KeycloakSyncEventWebScript.OBJECT_MAPPER.valueToTree(event);
+    }
+
+    private static ApplicationContext newContext(Object userRegistry) {
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.getBeanFactory().registerSingleton("userRegistry", userRegistry);
+        context.refresh();
+        return context;
+    }
+
+    /**
+     * reads the user registry as alfresco's differential synchronization would
+     */
+    private void synchronize() {
+        Set<String> read = new HashSet<>();
+        for (NodeDescription group : userRegistry.getGroups(null)) {
+            read.add((String) group.getProperties().get(ContentModel.PROP_AUTHORITY_NAME));
+        }
+        for (NodeDescription person : userRegistry.getPersons(null)) {
+            read.add((String) person.getProperties().get(ContentModel.PROP_USERNAME));
+        }
+        synchronizations.add(read);
+    }
+}
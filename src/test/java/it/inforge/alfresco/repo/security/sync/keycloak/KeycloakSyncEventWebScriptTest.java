@@ -0,0 +1,148 @@
+package it.inforge.alfresco.repo.security.sync.keycloak;
+
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStub;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStubFixture;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStubRealm;
+import org.alfresco.repo.management.subsystems.ChildApplicationContextManager;
+import org.alfresco.repo.security.sync.UserRegistrySynchronizer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.extensions.surf.util.Content;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class KeycloakSyncEventWebScriptTest {
+
+    private static final String REALM = "test";
+    private static final String SECRET = "secret";
+
+    private KeycloakStubRealm realm;
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+    private KeycloakSyncEventQueue queue;
+    private KeycloakSyncEventWebScript webScript;
+    /**
+     * the response of the last request
+     */
+    private final Map<String, Object> response = new HashMap<>();
+    private final StringWriter body = new StringWriter();
+
+    @Before
+    public void setUp() throws Exception {
+        realm = new KeycloakStubRealm(REALM);
+        realm.addUser("alice", "alice@example.com", "alice", "alice", Collections.emptyMap());
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.getConfig().setSynchronizationEventsSecret(SECRET);
+        fixture.getConfig().setSynchronizationEventsDelay(60000);
+        fixture.start();
+
+        queue = new KeycloakSyncEventQueue();
+        queue.setConfig(fixture.getConfig());
+        queue.setUserRegistry(fixture.newUserRegistry());
+        queue.setUserRegistrySynchronizer((UserRegistrySynchronizer) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {UserRegistrySynchronizer.class}, (proxy, method, args) -> null));
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.getBeanFactory().registerSingleton("keycloakSyncEventQueue", queue);
+        context.refresh();
+        ChildApplicationContextManager applicationContextManager = (ChildApplicationContextManager) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] {ChildApplicationContextManager.class}, (proxy, method, args) -> {
+                    if("getInstanceIds".equals(method.getName()))
+                        return Collections.singletonList("keycloak1");
+                    return context;
+                });
+        queue.setApplicationContextManager(applicationContextManager);
+        queue.afterPropertiesSet();
+
+        webScript = new KeycloakSyncEventWebScript();
+        webScript.setApplicationContextManager(applicationContextManager);
+        webScript.setKeycloakSystem("keycloak1");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.destroy();
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void eventsAreCountedAcceptedOrIgnored() throws Exception {
+        String userId = realm.getUserByUsername("alice").getId();
+        webScript.execute(request(SECRET, String.format("[{\"realm\":\"%s\",\"type\":\"UPDATE_PROFILE\",\"userId\":\"%s\"},"
+                + "{\"realm\":\"%s\",\"type\":\"LOGIN\",\"userId\":\"%s\"}]", REALM, userId, REALM, userId)), response());
+        assertEquals(Status.STATUS_ACCEPTED, response.get("setStatus"));
+        assertEquals("{\"accepted\":1,\"ignored\":1}", body.toString());
+    }
+
+    @Test
+    public void singleEventIsAccepted() throws Exception {
+        webScript.execute(request(SECRET, String.format("{\"realm\":\"%s\",\"type\":\"UPDATE_PROFILE\",\"userId\":\"%s\"}",
+                REALM, realm.getUserByUsername("alice").getId())), response());
+        assertEquals("{\"accepted\":1,\"ignored\":0}", body.toString());
+    }
+
+    @Test
+    public void eventsWithoutTheSecretAreRefused() throws Exception {
+        assertStatus(Status.STATUS_FORBIDDEN, request("wrong", "[]"));
+        assertStatus(Status.STATUS_FORBIDDEN, request(null, "[]"));
+    }
+
+    @Test
+    public void invalidEventsAreRefused() throws Exception {
+        assertStatus(Status.STATUS_BAD_REQUEST, request(SECRET, "{\"realm\""));
+        assertStatus(Status.STATUS_BAD_REQUEST, request(SECRET, "\"event\""));
+    }
+
+    @Test
+    public void unknownSubsystemIsNotFound() throws Exception {
+        webScript.setKeycloakSystem("keycloak2");
+        assertStatus(Status.STATUS_NOT_FOUND, request(SECRET, "[]"));
+    }
+
+    private void assertStatus(int status, WebScriptRequest request) throws Exception {
+        try {
+            webScript.execute(request, response());
+            fail("request accepted");
+        } catch (WebScriptException e) {
+            assertEquals(status, e.getStatus());
+        }
+    }
+
+    private WebScriptRequest request(String secret, String events) {
+        Content content = (Content) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Content.class},
+                (proxy, method, args) -> "getInputStream".equals(method.getName())
+                        ? new ByteArrayInputStream(events.getBytes(StandardCharsets.UTF_8)) : null);
+        return (WebScriptRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {WebScriptRequest.class},
+                (proxy, method, args) -> {
+                    if("getHeader".equals(method.getName()))
+                        return KeycloakSyncEventWebScript.SECRET_HEADER.equals(args[0]) ? secret : null;
+                    return "getContent".equals(method.getName()) ? content : null;
+                });
+    }
+
+    private WebScriptResponse response() {
+        return (WebScriptResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {WebScriptResponse.class},
+                (proxy, method, args) -> {
+                    if("getWriter".equals(method.getName()))
+                        return body;
+                    if(args != null && args.length == 1)
+                        response.put(method.getName(), args[0]);
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,104 @@
+package it.inforge.alfresco.repo.security.sync.keycloak;
+
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStub;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStubFixture;
+import it.inforge.alfresco.repo.security.authentication.keycloak.KeycloakStubRealm;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.sync.NodeDescription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class KeycloakUserRegistryTest {
+
+    private static final String REALM = "test";
+
+    private KeycloakStubRealm realm;
+    private KeycloakStub stub;
+    private KeycloakStubFixture fixture;
+    private KeycloakUserRegistry userRegistry;
+
+    @Before
+    public void setUp() throws Exception {
+        realm = new KeycloakStubRealm(REALM);
+        GroupRepresentation staff = realm.addGroup("staff", null, Collections.emptyMap());
+        realm.addMember(staff, addUser("alice"));
+        realm.addMember(staff, addUser("bob"));
+        stub = new KeycloakStub(Collections.singletonList(realm), 0);
+        fixture = new KeycloakStubFixture(stub, Collections.singletonList(REALM));
+        fixture.getConfig().setSynchronizationFingerprints(true);
+        fixture.getConfig().setSynchronizationSuppressUnchanged(true);
+        fixture.getConfig().setSynchronizationSuppressUnchangedRepairInterval(3600);
+        fixture.start();
+        userRegistry = fixture.newUserRegistry();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+        stub.close();
+    }
+
+    @Test
+    public void unchangedNodesAreSuppressed() {
+        assertEquals(new HashSet<>(Arrays.asList("GROUP_test-staff", "alice", "bob")), synchronize());
+        assertEquals(Collections.emptySet(), synchronize());
+        realm.getUserByUsername("bob").setEmail("bob@example.org");
+        assertEquals(Collections.singleton("bob"), synchronize());
+    }
+
+    @Test
+    public void groupsOfLostPersonsAreReturned() {
+        synchronize();
+        // bob deleted from alfresco, with his memberships
+        fixture.getRepository().getZoneAuthorities().remove("bob");
+        assertEquals(new HashSet<>(Arrays.asList("GROUP_test-staff", "bob")), synchronize());
+        assertEquals(Collections.emptySet(), synchronize());
+    }
+
+    @Test
+    public void repairReturnsAllNodes() throws Exception {
+        fixture.getConfig().setSynchronizationSuppressUnchangedRepairInterval(1);
+        synchronize();
+        assertEquals(Collections.emptySet(), synchronize());
+        Thread.sleep(1100);
+        assertEquals(new HashSet<>(Arrays.asList("GROUP_test-staff", "alice", "bob")), synchronize());
+        assertEquals(Collections.emptySet(), synchronize());
+    }
+
+    private UserRepresentation addUser(String username) {
+        return realm.addUser(username, username + "@example.com", username, username, Collections.emptyMap());
+    }
+
+    /**
+     * runs a full synchronization, applying to the repository the persons and groups returned as alfresco would
+     *
+     * @return the names of the persons and groups returned
+     */
+    private Set<String> synchronize() {
+        Set<String> returned = new HashSet<>();
+        userRegistry.pushThreadLocalInstance();
+        try {
+            for (NodeDescription group : userRegistry.getGroups(null)) {
+                String name = (String) group.getProperties().get(ContentModel.PROP_AUTHORITY_NAME);
+                fixture.getRepository().importGroup(name, group.getChildAssociations());
+                returned.add(name);
+            }
+            for (NodeDescription person : userRegistry.getPersons(null)) {
+                String name = (String) person.getProperties().get(ContentModel.PROP_USERNAME);
+                fixture.getRepository().importPerson(name);
+                returned.add(name);
+            }
+            userRegistry.commitThreadLocalInstance();
+        } finally {
+            userRegistry.clearThreadLocalInstance();
+        }
+        return returned;
+    }
+}